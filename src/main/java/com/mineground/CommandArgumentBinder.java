@@ -0,0 +1,295 @@
+/**
+ * Copyright (c) 2011 - 2014 Mineground, Las Venturas Playground
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.mineground;
+
+import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.bukkit.Server;
+import org.bukkit.World;
+import org.bukkit.command.Command;
+import org.bukkit.command.CommandSender;
+import org.bukkit.entity.Player;
+
+import com.mineground.base.CommandMessages;
+import com.mineground.base.ServerSnapshot;
+
+/**
+ * Binds the arguments of a command to the parameters of its handler. Besides the traditional
+ * (CommandSender, String[]) signature, command handlers may declare typed parameters after the
+ * sender, which will be resolved from the command's arguments in order:
+ *
+ *   public void onKickCommand(CommandSender sender, Player player, String[] reason)
+ *
+ * Supported types are String, int, double, Player (online players, by partial name), World and
+ * all enumerations (by case insensitive name). A String[] parameter may be declared last, which
+ * will receive all remaining arguments. When an argument is missing or cannot be resolved, the
+ * sender will be informed and the handler will not be invoked.
+ *
+ * Arguments are bound before the handler gets invoked. Commands requiring a permission should thus
+ * declare it in their @CommandHandler annotation, which the CommandManager checks before binding,
+ * as otherwise senders without the permission would learn whether a given player is online.
+ *
+ * A ServerSnapshot may be declared directly after the sender, which will receive a snapshot of the
+ * server's state rather than an argument. Asynchronous commands may not declare Player or World
+ * parameters, as those objects may only be used on the main thread.
+ *
+ * Resolvers are created when the command is registered, and are shared between all commands.
+ */
+class CommandArgumentBinder {
+    /**
+     * Resolves a single argument to a typed value.
+     */
+    interface ArgumentResolver {
+        /**
+         * Resolves |argument| to a value of the resolver's type.
+         * 
+         * @param argument  The argument as entered by the player.
+         * @return          The resolved value, or NULL if the argument could not be resolved.
+         */
+        public Object resolve(String argument);
+        
+        /**
+         * Returns the error message to display when |argument| could not be resolved.
+         * 
+         * @param argument  The argument as entered by the player.
+         * @return          The error message, in which highlights may be used.
+         */
+        public String getErrorMessage(String argument);
+    }
+    
+    /**
+     * Factory for the resolvers of each supported type, caching the resolvers which have been
+     * created for enumerations. Owned by the CommandManager.
+     */
+    static class ResolverFactory {
+        private final Map<Class<?>, ArgumentResolver> mResolvers;
+        
+        public ResolverFactory(final OnlinePlayerIndex playerIndex, final Server server) {
+            mResolvers = new HashMap<Class<?>, ArgumentResolver>();
+            
+            final ArgumentResolver stringResolver = new ArgumentResolver() {
+                public Object resolve(String argument) { return argument; }
+                public String getErrorMessage(String argument) { return null; }
+            };
+            
+            final ArgumentResolver integerResolver = new ArgumentResolver() {
+                public Object resolve(String argument) {
+                    try {
+                        return Integer.valueOf(argument);
+                    } catch (NumberFormatException exception) {
+                        return null;
+                    }
+                }
+                public String getErrorMessage(String argument) {
+                    return "**" + argument + "** is not a valid number.";
+                }
+            };
+            
+            final ArgumentResolver doubleResolver = new ArgumentResolver() {
+                public Object resolve(String argument) {
+                    try {
+                        return Double.valueOf(argument);
+                    } catch (NumberFormatException exception) {
+                        return null;
+                    }
+                }
+                public String getErrorMessage(String argument) {
+                    return "**" + argument + "** is not a valid number.";
+                }
+            };
+            
+            mResolvers.put(String.class, stringResolver);
+            mResolvers.put(int.class, integerResolver);
+            mResolvers.put(Integer.class, integerResolver);
+            mResolvers.put(double.class, doubleResolver);
+            mResolvers.put(Double.class, doubleResolver);
+            
+            mResolvers.put(Player.class, new ArgumentResolver() {
+                public Object resolve(String argument) { return playerIndex.findPlayer(argument); }
+                public String getErrorMessage(String argument) {
+                    return "No one named **" + argument + "** is on Mineground now.";
+                }
+            });
+            
+            // Bukkit already keeps an index of the loaded worlds by their (lowercase) name, and new
+            // worlds may be created at runtime, so there is no need to duplicate it here.
+            mResolvers.put(World.class, new ArgumentResolver() {
+                public Object resolve(String argument) { return server.getWorld(argument); }
+                public String getErrorMessage(String argument) {
+                    return "The world **" + argument + "** does not exist.";
+                }
+            });
+        }
+        
+        /**
+         * Returns the resolver for arguments of |type|, or NULL when the type is not supported.
+         * 
+         * @param type  The type of the parameter to resolve arguments for.
+         * @return      The resolver for the type, or NULL.
+         */
+        public ArgumentResolver getResolver(Class<?> type) {
+            ArgumentResolver resolver = mResolvers.get(type);
+            if (resolver == null && type.isEnum()) {
+                resolver = createEnumResolver(type);
+                mResolvers.put(type, resolver);
+            }
+            
+            return resolver;
+        }
+        
+        /**
+         * Creates a resolver for the constants of |type|, which must be an enumeration.
+         * 
+         * @param type  The enumeration to create a resolver for.
+         * @return      The resolver for the enumeration.
+         */
+        private static ArgumentResolver createEnumResolver(Class<?> type) {
+            final Map<String, Object> constants = new HashMap<String, Object>();
+            final StringBuilder options = new StringBuilder();
+            
+            for (Object constant : type.getEnumConstants()) {
+                final String name = ((Enum<?>) constant).name().toLowerCase();
+                if (options.length() > 0)
+                    options.append(", ");
+                
+                options.append(name);
+                constants.put(name, constant);
+            }
+            
+            final String optionList = options.toString();
+            return new ArgumentResolver() {
+                public Object resolve(String argument) { return constants.get(argument.toLowerCase()); }
+                public String getErrorMessage(String argument) {
+                    return "**" + argument + "** is not valid, choose one of: " + optionList + ".";
+                }
+            };
+        }
+    }
+    
+    /**
+     * The resolvers for each of the typed parameters, in order.
+     */
+    private final ArgumentResolver[] mResolvers;
+    
+    /**
+     * Whether the handler's last parameter is a String[], receiving the remaining arguments.
+     */
+    private final boolean mHasRemainingArguments;
+    
+    /**
+     * Whether the handler's second parameter is a ServerSnapshot.
+     */
+    private final boolean mHasServerSnapshot;
+    
+    private CommandArgumentBinder(ArgumentResolver[] resolvers, boolean hasRemainingArguments, boolean hasServerSnapshot) {
+        mResolvers = resolvers;
+        mHasRemainingArguments = hasRemainingArguments;
+        mHasServerSnapshot = hasServerSnapshot;
+    }
+    
+    /**
+     * Creates the binder for |method|. Returns NULL when the method's first parameter cannot
+     * receive the command's sender, or when one of its other parameters is of an unsupported type.
+     * 
+     * @param method    The command handler to create a binder for.
+     * @param factory   The factory which provides the resolvers.
+     * @param async     Whether the command will be executed asynchronously.
+     * @return          The binder for the command handler, or NULL.
+     */
+    public static CommandArgumentBinder create(Method method, ResolverFactory factory, boolean async) {
+        final Class<?>[] parameterTypes = method.getParameterTypes();
+        if (parameterTypes.length == 0 || !parameterTypes[0].isAssignableFrom(CommandSender.class))
+            return null;
+        
+        final boolean hasServerSnapshot = parameterTypes.length >= 2 && parameterTypes[1] == ServerSnapshot.class;
+        final boolean hasRemainingArguments = parameterTypes[parameterTypes.length - 1] == String[].class;
+        final int firstTypedParameter = hasServerSnapshot ? 2 : 1;
+        final int typedParameterCount = parameterTypes.length - firstTypedParameter - (hasRemainingArguments ? 1 : 0);
+        
+        final ArgumentResolver[] resolvers = new ArgumentResolver[typedParameterCount];
+        for (int index = 0; index < typedParameterCount; ++index) {
+            final Class<?> parameterType = parameterTypes[firstTypedParameter + index];
+            if (async && (parameterType == Player.class || parameterType == World.class))
+                return null;
+            
+            resolvers[index] = factory.getResolver(parameterType);
+            if (resolvers[index] == null)
+                return null;
+        }
+        
+        return new CommandArgumentBinder(resolvers, hasRemainingArguments, hasServerSnapshot);
+    }
+    
+    /**
+     * Returns the number of parameters of the handler, including the sender.
+     * 
+     * @return The number of parameters.
+     */
+    public int getParameterCount() {
+        return 1 + (mHasServerSnapshot ? 1 : 0) + mResolvers.length + (mHasRemainingArguments ? 1 : 0);
+    }
+    
+    /**
+     * Returns whether the handler has a ServerSnapshot parameter, which must be passed to bind().
+     * 
+     * @return Whether the handler requires a snapshot of the server's state.
+     */
+    public boolean hasServerSnapshot() {
+        return mHasServerSnapshot;
+    }
+    
+    /**
+     * Binds |arguments| to the parameters of the command handler. When an argument is missing or
+     * cannot be resolved, |sender| will be informed and NULL will be returned.
+     * 
+     * @param sender    The player, console or remote user who executed the command.
+     * @param command   The command which has been executed, used for displaying its usage.
+     * @param arguments The arguments which have been passed to the command.
+     * @param snapshot  Snapshot of the server's state, or NULL when not required by the handler.
+     * @return          The values for each of the handler's parameters, or NULL.
+     */
+    public Object[] bind(CommandSender sender, Command command, String[] arguments, ServerSnapshot snapshot) {
+        final Object[] values = new Object[getParameterCount()];
+        final int firstTypedValue = mHasServerSnapshot ? 2 : 1;
+        
+        values[0] = sender;
+        if (mHasServerSnapshot)
+            values[1] = snapshot;
+        
+        if (arguments.length < mResolvers.length) {
+            CommandMessages.displayUsage(sender, command.getUsage());
+            return null;
+        }
+        
+        for (int index = 0; index < mResolvers.length; ++index) {
+            values[firstTypedValue + index] = mResolvers[index].resolve(arguments[index]);
+            if (values[firstTypedValue + index] == null) {
+                CommandMessages.displayError(sender, mResolvers[index].getErrorMessage(arguments[index]));
+                return null;
+            }
+        }
+        
+        if (mHasRemainingArguments) {
+            values[values.length - 1] = mResolvers.length == 0 ? arguments :
+                    Arrays.copyOfRange(arguments, mResolvers.length, arguments.length);
+        }
+        
+        return values;
+    }
+}
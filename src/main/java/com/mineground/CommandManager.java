@@ -16,24 +16,33 @@
 package com.mineground;
 
 import java.lang.annotation.Annotation;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
 import java.lang.ref.WeakReference;
-import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.Executor;
 import java.util.logging.Logger;
 
 import org.bukkit.command.Command;
 import org.bukkit.command.CommandSender;
 import org.bukkit.command.PluginCommand;
 import org.bukkit.command.TabCompleter;
+import org.bukkit.configuration.Configuration;
 import org.bukkit.entity.Player;
 import org.bukkit.plugin.java.JavaPlugin;
 
+import com.mineground.account.AccountManager;
+import com.mineground.base.AsyncCommandSender;
+import com.mineground.base.CommandMessages;
 import com.mineground.base.CommandCompletionHandler;
 import com.mineground.base.CommandHandler;
+import com.mineground.base.ServerSnapshot;
 import com.mineground.remote.RemoteCommandSender;
 
 /**
@@ -47,45 +56,63 @@ public class CommandManager implements TabCompleter {
      * Private inner class representing the fact that |method| on |instance| handles a command. Weak
      * references are kept of command handler instances, because we don't want to keep features
      * alive (as we allow them to be enabled and disabled during runtime).
+     * 
+     * The |method| and |autocomplete| handlers are method handles, resolved once when registering
+     * the command. The |method| takes the instance and an array with the values bound by |binder|,
+     * whereas |autocomplete| takes the instance, the sender and the arguments, returning a list.
      */
     private class CommandHandlerRef {
+        private String name;
+        private String[] aliases;
         private WeakReference<Object> instance;
-        private Method autocomplete;
-        private Method method;
+        private MethodHandle autocomplete;
+        private MethodHandle method;
+        private CommandArgumentBinder binder;
         private boolean ingame;
         private boolean console;
         private boolean remote;
+        private boolean async;
+        private String permission;
+        private String permissionMessage;
         
-        private CommandHandlerRef(Object instance_, Method method_, boolean ingame_, boolean console_, boolean remote_) {
+        private CommandHandlerRef(String name_, String[] aliases_, Object instance_, MethodHandle method_, CommandArgumentBinder binder_, boolean ingame_, boolean console_, boolean remote_, boolean async_, String permission_, String permissionMessage_) {
+            name = name_;
+            aliases = aliases_;
             instance = new WeakReference<Object>(instance_);
             autocomplete = null;
             method = method_;
+            binder = binder_;
             ingame = ingame_;
             console = console_;
             remote = remote_;
+            async = async_;
+            permission = permission_;
+            permissionMessage = permissionMessage_;
         }
         
-        private CommandHandlerRef(Object instance_, Method autocomplete_) {
+        private CommandHandlerRef(String name_, Object instance_, MethodHandle autocomplete_) {
+            name = name_;
+            aliases = new String[0];
             instance = new WeakReference<Object>(instance_);
             autocomplete = autocomplete_;
             method = null;
+            binder = null;
             ingame = true;
             console = false;
             remote = false;
+            async = false;
+            permission = "";
+            permissionMessage = "";
         }
     }
     
     /**
      * Map between a command name and the handler which will be handling it, as well as the handler
-     * which is responsible for providing auto-complete suggestions for this command.
+     * which is responsible for providing auto-complete suggestions for this command. Aliases map
+     * to the same handler as the command itself, so that they can be resolved in a single lookup.
      */
     private final Map<String, CommandHandlerRef> mCommandMap;
     
-    /**
-     * Map between an alias name and the command it should map to.
-     */
-    private final Map<String, String> mCommandAliasMap;
-    
     /**
      * List of command observers. Each observer will have a method invoked whenever a certain event
      * happens in the command manager, most likely adding or removing a command.
@@ -98,32 +125,94 @@ public class CommandManager implements TabCompleter {
      */
     private final JavaPlugin mPlugin;
     
+    /**
+     * Factory for the resolvers used to bind command arguments to typed parameters. Resolvers are
+     * shared between all commands which have parameters of the same type.
+     */
+    private final CommandArgumentBinder.ResolverFactory mResolverFactory;
+    
+    /**
+     * The account manager, used for creating snapshots of the server's state for asynchronous
+     * commands, and the executor through which they deliver their messages to the sender.
+     */
+    private final AccountManager mAccountManager;
+    private final Executor mMainThreadExecutor;
+    
+    /**
+     * The pool on which asynchronous commands will be executed. Will be created when the first
+     * asynchronous command gets executed.
+     */
+    private WorkerPool mWorkerPool;
+    
+    /**
+     * Serial lanes for the senders of asynchronous commands, making sure that the commands of a
+     * single sender are executed, and thus answered, in order. Weakly keyed by the sender.
+     */
+    private final Map<CommandSender, WorkerPool.SerialLane> mSenderLanes;
+    
+    /**
+     * Token buckets limiting the rate at which senders may execute commands. Checked once the
+     * command is known to be available to the sender, before its arguments are bound.
+     */
+    private final CommandRateLimiter mRateLimiter;
+    
+    /**
+     * Execution counts, latencies and allocations of the commands and their tab completions.
+     */
+    private final CommandStatistics mStatistics;
+    
     /**
      * Logger used for outputting warnings and errors which occurred whilst executing a command.
      */
     private final Logger mLogger;
 
-    public CommandManager(JavaPlugin plugin) {
+    public CommandManager(Configuration configuration, JavaPlugin plugin, OnlinePlayerIndex playerIndex, AccountManager accountManager, Executor mainThreadExecutor) {
         mCommandMap = new HashMap<String, CommandHandlerRef>();
-        mCommandAliasMap = new HashMap<String, String>();
         mCommandObservers = new LinkedList<CommandObserver>();
+        mSenderLanes = new WeakHashMap<CommandSender, WorkerPool.SerialLane>();
+        mRateLimiter = new CommandRateLimiter(configuration);
+        
+        mAccountManager = accountManager;
+        mMainThreadExecutor = mainThreadExecutor;
 
         mLogger = Logger.getLogger(CommandManager.class.getCanonicalName());
         mPlugin = plugin;
+        
+        mResolverFactory = new CommandArgumentBinder.ResolverFactory(playerIndex, plugin.getServer());
+        
+        mStatistics = new CommandStatistics(configuration, plugin.getDataFolder());
+        mStatistics.startDumping(plugin);
+        
+        registerCommands(mStatistics);
     }
 
     /**
      * Registers all commands we can find in |instance|. Commands are identified by their mandatory
-     * CommandHandler annotation. Permissions for the commands will be dealt with by Bukkit.
+     * CommandHandler annotation, on the candidate methods listed by the RegistrationIndex.
+     * Commands may declare the permission they require in their annotation, which will be checked
+     * before their arguments are bound. Other permissions will be dealt with by Bukkit.
+     * 
+     * Command handlers may declare typed parameters following the sender, which will be bound from
+     * the command's arguments by the CommandArgumentBinder. See that class for the supported types.
      * 
      * @param instance The object to scan for command handlers.
      */
     public void registerCommands(Object instance) {
-        Method[] reflectionMethods = instance.getClass().getMethods();
+        Method[] reflectionMethods = RegistrationIndex.getInstance().getMethods(instance.getClass());
         for (Method method : reflectionMethods) {
             final Annotation commandAnnotation = method.getAnnotation(CommandHandler.class);
             if (commandAnnotation != null) {
                 CommandHandler command = (CommandHandler) commandAnnotation;
+                
+                final CommandArgumentBinder binder = CommandArgumentBinder.create(method, mResolverFactory, command.async());
+                if (binder == null) {
+                    mLogger.severe("Unable to bind the arguments of /" + command.value() + " to the parameters of " + method + ".");
+                    continue;
+                }
+                
+                final MethodHandle invoker = createCommandInvoker(method, binder.getParameterCount());
+                if (invoker == null)
+                    continue;
 
                 CommandHandlerRef handler = mCommandMap.get(command.value());
                 if (handler != null) {
@@ -132,17 +221,28 @@ public class CommandManager implements TabCompleter {
                         continue;
                     }
                     
-                    handler.method = method;
+                    handler.aliases = command.aliases();
+                    handler.method = invoker;
+                    handler.binder = binder;
                     handler.ingame = command.ingame();
                     handler.console = command.console();
                     handler.remote = command.remote();
+                    handler.async = command.async();
+                    handler.permission = command.permission();
+                    handler.permissionMessage = command.permissionMessage();
+                    
+                    for (String alias : command.aliases())
+                        mCommandMap.put(alias, handler);
+                    
                     continue;
                 }
                 
+                handler = new CommandHandlerRef(command.value(), command.aliases(), instance, invoker, binder, command.ingame(), command.console(), command.remote(), command.async(), command.permission(), command.permissionMessage());
+                
+                mCommandMap.put(command.value(), handler);
                 for (String alias : command.aliases())
-                    mCommandAliasMap.put(alias, command.value());
+                    mCommandMap.put(alias, handler);
                 
-                mCommandMap.put(command.value(), new CommandHandlerRef(instance, method, command.ingame(), command.console(), command.remote()));
                 for (CommandObserver observer : mCommandObservers)
                     observer.onCommandRegistered(command.value(), command.ingame(), command.console(), command.remote());
                 
@@ -153,6 +253,10 @@ public class CommandManager implements TabCompleter {
             if (commandTabAnnotation != null) {
                 CommandCompletionHandler completion = (CommandCompletionHandler) commandTabAnnotation;
                 
+                final MethodHandle invoker = createCompletionInvoker(method);
+                if (invoker == null)
+                    continue;
+                
                 final PluginCommand pluginCommand = mPlugin.getCommand(completion.value());
                 if (pluginCommand == null) {
                     mLogger.severe("Attempted to install a tab handler for /" + completion.value() + ", but the command does not exist.");
@@ -168,16 +272,60 @@ public class CommandManager implements TabCompleter {
                         continue;
                     }
                     
-                    handler.autocomplete = method;
+                    handler.autocomplete = invoker;
                     continue;
                 }
                 
-                mCommandMap.put(completion.value(), new CommandHandlerRef(instance, method));
+                mCommandMap.put(completion.value(), new CommandHandlerRef(completion.value(), instance, invoker));
                 continue;
             }
         }
     }
     
+    /**
+     * Creates the invoker for the command handler |method|, which has |parameterCount| parameters.
+     * The invoker takes the instance and an Object array with a value for each of the parameters.
+     * 
+     * @param method            The method which handles the command.
+     * @param parameterCount    The number of parameters of the method.
+     * @return                  The invoker for the method, or NULL when it cannot be created.
+     */
+    private MethodHandle createCommandInvoker(Method method, int parameterCount) {
+        try {
+            method.setAccessible(true);
+            return MethodHandles.lookup().unreflect(method).asSpreader(Object[].class, parameterCount)
+                    .asType(MethodType.methodType(void.class, Object.class, Object[].class));
+            
+        } catch (Exception exception) {
+            mLogger.severe("Unable to register " + method + " as a command handler: " + exception.toString());
+            return null;
+        }
+    }
+    
+    /**
+     * Creates the invoker for the tab completion handler |method|, which must accept the sender and
+     * the entered arguments, and return a list of strings.
+     * 
+     * @param method    The method which provides tab completion for a command.
+     * @return          The invoker for the method, or NULL when it cannot be created.
+     */
+    private MethodHandle createCompletionInvoker(Method method) {
+        if (!List.class.isAssignableFrom(method.getReturnType())) {
+            mLogger.severe("The tab completion handler " + method + " must return a list of strings.");
+            return null;
+        }
+        
+        try {
+            method.setAccessible(true);
+            return MethodHandles.lookup().unreflect(method).asType(
+                    MethodType.methodType(List.class, Object.class, CommandSender.class, String[].class));
+            
+        } catch (Exception exception) {
+            mLogger.severe("Unable to register " + method + " as a tab completion handler: " + exception.toString());
+            return null;
+        }
+    }
+    
     /**
      * Returns the registered command handler for |command|. This method will automatically remove
      * commands from the Command Manager if the handling instance no longer is alive.
@@ -186,9 +334,6 @@ public class CommandManager implements TabCompleter {
      * @return          The command handler if available, otherwise NULL.
      */
     private CommandHandlerRef getCommandHandler(String command) {
-        if (mCommandAliasMap.containsKey(command))
-            command = mCommandAliasMap.get(command);
-        
         final CommandHandlerRef handler = mCommandMap.get(command);
         if (handler == null)
             return null;
@@ -199,15 +344,18 @@ public class CommandManager implements TabCompleter {
         // been garbage collected, then we should unregister this command from Bukkit.
         if (instance == null) {
             if (handler.autocomplete != null) {
-                final PluginCommand pluginCommand = mPlugin.getCommand(command);
+                final PluginCommand pluginCommand = mPlugin.getCommand(handler.name);
                 if (pluginCommand != null)
                     pluginCommand.setTabCompleter(null);
             }
             
             for (CommandObserver commandObserver : mCommandObservers)
-                commandObserver.onCommandRemoved(command);
+                commandObserver.onCommandRemoved(handler.name);
+            
+            mCommandMap.remove(handler.name);
+            for (String alias : handler.aliases)
+                mCommandMap.remove(alias);
             
-            mCommandMap.remove(command);
             return null;
         }
         
@@ -216,7 +364,10 @@ public class CommandManager implements TabCompleter {
 
     /**
      * Invoked when either the player or an operator through the console, identified by |sender|,
-     * executes |command|, with |arguments| as the entered arguments.
+     * executes |command|, with |arguments| as the entered arguments. The time spent on, and the
+     * memory allocated by dispatching the command will be recorded in the command statistics.
+     * Asynchronous commands are recorded by executeAsync() instead, on the worker thread which
+     * executes their handler, as only that reflects the cost of the command.
      * 
      * @param sender    Origin of the command, can be a Player or a console object.
      * @param command   The command which they executed.
@@ -225,9 +376,28 @@ public class CommandManager implements TabCompleter {
      */
     public boolean onCommand(CommandSender sender, Command command, String[] arguments) {
         final CommandHandlerRef handler = getCommandHandler(command.getName());
+        if (handler != null && handler.async)
+            return dispatchCommand(handler, sender, command, arguments);
+        
+        final long startAllocatedBytes = mStatistics.getAllocatedBytes();
+        final long startTime = mStatistics.startTiming();
+        try {
+            return dispatchCommand(handler, sender, command, arguments);
+        } finally {
+            mStatistics.recordExecution(command.getName(), startTime, startAllocatedBytes);
+        }
+    }
+    
+    /**
+     * Dispatches |command| executed by |sender| to |handler|, which may be NULL when the command is
+     * not handled by Mineground. See onCommand() for the other parameters.
+     */
+    private boolean dispatchCommand(CommandHandlerRef handler, CommandSender sender, Command command, String[] arguments) {
         if (handler == null || handler.method == null)
             return false;
         
+        final Object instance = handler.instance.get();
+        
         // Check what party executed the command. Mineground supports command senders from three
         // primary sources, namely players (in-game), the console and remote sources.
         if (!(sender instanceof Player)) {
@@ -244,13 +414,46 @@ public class CommandManager implements TabCompleter {
         } else if (handler.ingame == false)
             return true;  // the command is not available for in-game players.
         
-        // Execute the command by invoking the method, and returning the return value (which should
-        // be a boolean) to the caller of onCommand.
+        // Check whether the sender is allowed to execute the command, before binding its arguments,
+        // which could otherwise tell them whether a given player is online.
+        if (handler.permission.length() > 0 && !sender.hasPermission(handler.permission)) {
+            CommandMessages.displayError(sender, handler.permissionMessage);
+            return true;
+        }
+        
+        // Reject the command when the sender has been executing it too often, before binding its
+        // arguments, so that commands unavailable to the sender don't use up their tokens. Only
+        // the first of a series of rejections will be answered.
+        switch (mRateLimiter.acquire(sender, handler.name)) {
+            case REJECT:
+                CommandMessages.displayError(sender, "You're executing commands too quickly, please slow down.");
+                return true;
+            case REJECT_QUIETLY:
+                return true;
+            case ACCEPT:
+                break;
+        }
+        
+        // Bind the arguments to the handler's parameters. The binder informs the sender when one of
+        // the arguments is missing or invalid, in which case the command has been handled.
+        final ServerSnapshot snapshot = handler.binder.hasServerSnapshot() ?
+                new ServerSnapshot(mPlugin.getServer(), mAccountManager) : null;
+        
+        final Object[] values = handler.binder.bind(sender, command, arguments, snapshot);
+        if (values == null)
+            return true;
+        
+        if (handler.async) {
+            executeAsync(handler.method, instance, sender, values, command.getName());
+            return true;
+        }
+        
+        // Execute the command by invoking the method through its pre-bound invoker.
         try {
-            handler.method.invoke(handler.instance.get(), sender, arguments);
+            handler.method.invokeExact(instance, values);
             return true;
 
-        } catch (IllegalAccessException | IllegalArgumentException | InvocationTargetException e) {
+        } catch (Throwable e) {
             mLogger.severe("An exception occurred while attempting to execute the command /" + command.getName() + ":");
             e.printStackTrace();
         }
@@ -258,6 +461,61 @@ public class CommandManager implements TabCompleter {
         return false;
     }
 
+    /**
+     * Executes the command handler |method| on a worker thread. The sender in |values| will be
+     * replaced by an AsyncCommandSender, which delivers messages to |sender| on the main thread.
+     * The time spent on, and the memory allocated by the handler will be recorded in the command
+     * statistics from the worker thread.
+     * 
+     * @param method    Invoker of the command handler which should be executed.
+     * @param instance  The instance on which the command handler is defined.
+     * @param sender    The player, console or remote user who executed the command.
+     * @param values    The values bound to the command handler's parameters.
+     * @param name      Name of the command which is being executed.
+     */
+    private void executeAsync(final MethodHandle method, final Object instance, CommandSender sender, final Object[] values, final String name) {
+        if (mWorkerPool == null)
+            mWorkerPool = new WorkerPool("MinegroundAsyncCommands");
+        
+        WorkerPool.SerialLane lane = mSenderLanes.get(sender);
+        if (lane == null) {
+            lane = mWorkerPool.createLane();
+            mSenderLanes.put(sender, lane);
+        }
+        
+        values[0] = new AsyncCommandSender(sender, mMainThreadExecutor);
+        lane.submit(new Runnable() {
+            public void run() {
+                final long startAllocatedBytes = mStatistics.getAllocatedBytes();
+                final long startTime = mStatistics.startTiming();
+                try {
+                    method.invokeExact(instance, values);
+                } catch (Throwable e) {
+                    mLogger.severe("An exception occurred while attempting to execute the command /" + name + ":");
+                    e.printStackTrace();
+                } finally {
+                    mStatistics.recordExecution(name, startTime, startAllocatedBytes);
+                }
+            }
+        });
+    }
+    
+    /**
+     * Shuts down the pool on which asynchronous commands are executed, waiting for a short while
+     * for pending commands to finish. Must be called when the plugin is being disabled, before the
+     * main thread executor gets stopped, so that their final messages will still be delivered.
+     * The command statistics will be written to their file one final time as well.
+     */
+    public void shutdown() {
+        mStatistics.stopDumping();
+        if (mWorkerPool == null)
+            return;
+        
+        mWorkerPool.shutdown();
+        mWorkerPool = null;
+        mSenderLanes.clear();
+    }
+    
     /**
      * Called by Bukkit when a player is half-way typing a command, and pressed the <tab> key to
      * finish the value of the last argument they entered. Commands in Mineground may want to
@@ -270,8 +528,22 @@ public class CommandManager implements TabCompleter {
      * @return          A sorted list with the strings which could be auto-completed to.
      */
     @Override
-    @SuppressWarnings("unchecked")
     public List<String> onTabComplete(CommandSender sender, Command command, String alias, String[] arguments) {
+        final long startAllocatedBytes = mStatistics.getAllocatedBytes();
+        final long startTime = mStatistics.startTiming();
+        try {
+            return dispatchCompletion(sender, command, arguments);
+        } finally {
+            mStatistics.recordCompletion(command.getName(), startTime, startAllocatedBytes);
+        }
+    }
+    
+    /**
+     * Dispatches the tab completion of |command| for |sender| to its completion handler. See
+     * onTabComplete() for the parameters.
+     */
+    @SuppressWarnings("unchecked")
+    private List<String> dispatchCompletion(CommandSender sender, Command command, String[] arguments) {
         final CommandHandlerRef handler = getCommandHandler(command.getName());
         if (handler == null || handler.autocomplete == null)
             return null;
@@ -282,15 +554,9 @@ public class CommandManager implements TabCompleter {
         // Execute the tab completion handler. It should return a list of strings (or NULL) which
         // the player can then iterate over to choose which they mean to complete.
         try {
-            Object value = handler.autocomplete.invoke(handler.instance.get(), sender, arguments);
-            if (!(value instanceof List<?>)) {
-                mLogger.severe("The tab completion handler for /" + command.getName() + " must return a list of strings.");
-                return null;
-            }
-            
-            return (List<String>) value;
+            return (List<String>) handler.autocomplete.invokeExact(handler.instance.get(), sender, arguments);
 
-        } catch (IllegalAccessException | IllegalArgumentException | InvocationTargetException e) {
+        } catch (Throwable e) {
             mLogger.severe("An exception occurred while attempting to apply tab completion for /" + command.getName() + ":");
             e.printStackTrace();
         }
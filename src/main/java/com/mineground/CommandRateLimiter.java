@@ -0,0 +1,271 @@
+/**
+ * Copyright (c) 2011 - 2014 Mineground, Las Venturas Playground
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.mineground;
+
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.bukkit.command.CommandSender;
+import org.bukkit.configuration.Configuration;
+import org.bukkit.configuration.ConfigurationSection;
+import org.bukkit.entity.Player;
+
+import com.mineground.remote.RemoteCommandSender;
+
+/**
+ * Limits the rate at which commands may be executed, using a token bucket for each combination of
+ * source, sender and command. Limits are configured per source (in-game, console and remote) in
+ * the "command_rate_limits" section of mineground.yml, optionally overridden for specific commands.
+ *
+ * Buckets are implemented using the generic cell rate algorithm, in which the state of a bucket is
+ * a single timestamp: the time at which it would be full again. Acquiring a token advances this
+ * timestamp by the emission interval using a compare-and-set, which makes the limiter lock-free.
+ */
+class CommandRateLimiter {
+    /**
+     * Sources from which commands can be executed, each of which has its own limits.
+     */
+    enum Source {
+        INGAME("ingame"), CONSOLE("console"), REMOTE("remote");
+        
+        private final String mConfigurationKey;
+        
+        private Source(String configurationKey) {
+            mConfigurationKey = configurationKey;
+        }
+    }
+    
+    /**
+     * Decision on whether a command may be executed. A sender will only be informed about the first
+     * of a series of rejected commands, so that flooding doesn't result in a flood of replies.
+     */
+    enum Decision {
+        ACCEPT, REJECT, REJECT_QUIETLY
+    }
+    
+    /**
+     * Number of buckets after which idle buckets will be removed from the limiter. Buckets which
+     * are full again behave exactly like buckets which don't exist, so they can be removed.
+     */
+    private static final int MINIMUM_PRUNE_THRESHOLD = 1024;
+    
+    private static final long NANOSECONDS_PER_SECOND = 1000000000L;
+    
+    /**
+     * The limit applying to a bucket: the interval at which tokens are added to it, and the number
+     * of nanoseconds the bucket's timestamp may run ahead of the current time, i.e. its capacity.
+     */
+    private static class Limit {
+        private final long intervalNanos;
+        private final long toleranceNanos;
+        
+        private Limit(int burst, double perSecond) {
+            intervalNanos = (long) (NANOSECONDS_PER_SECOND / perSecond);
+            toleranceNanos = intervalNanos * burst;
+        }
+    }
+    
+    /**
+     * A single token bucket. |mFullAt| is the time, as per System.nanoTime(), at which the bucket
+     * will be completely refilled again.
+     */
+    private static class Bucket {
+        private final AtomicLong mFullAt;
+        private final AtomicBoolean mRejecting;
+        
+        private Bucket(long now) {
+            mFullAt = new AtomicLong(now);
+            mRejecting = new AtomicBoolean(false);
+        }
+        
+        private boolean tryAcquire(Limit limit, long now) {
+            for (;;) {
+                final long fullAt = mFullAt.get();
+                final long next = (fullAt - now > 0 ? fullAt : now) + limit.intervalNanos;
+                if (next - now > limit.toleranceNanos)
+                    return false;
+                
+                if (mFullAt.compareAndSet(fullAt, next))
+                    return true;
+            }
+        }
+    }
+    
+    /**
+     * Default limits for each of the sources, and the per-command overrides. Sources without a
+     * default limit are unlimited, unless a limit has been configured for the specific command.
+     * These maps are not modified after construction.
+     */
+    private final Map<Source, Limit> mDefaultLimits;
+    private final Map<Source, Map<String, Limit>> mCommandLimits;
+    
+    /**
+     * The buckets for each combination of source, sender and command.
+     */
+    private final ConcurrentHashMap<String, Bucket> mBuckets;
+    
+    /**
+     * Number of buckets after which the next prune will happen.
+     */
+    private volatile int mPruneThreshold;
+    
+    CommandRateLimiter(Configuration configuration) {
+        mDefaultLimits = new EnumMap<Source, Limit>(Source.class);
+        mCommandLimits = new EnumMap<Source, Map<String, Limit>>(Source.class);
+        mBuckets = new ConcurrentHashMap<String, Bucket>();
+        mPruneThreshold = MINIMUM_PRUNE_THRESHOLD;
+        
+        for (Source source : Source.values()) {
+            final String path = "command_rate_limits." + source.mConfigurationKey;
+            
+            final Limit defaultLimit = readLimit(configuration, path);
+            if (defaultLimit != null)
+                mDefaultLimits.put(source, defaultLimit);
+            
+            final Map<String, Limit> commandLimits = new HashMap<String, Limit>();
+            final ConfigurationSection commands = configuration.getConfigurationSection(path + ".commands");
+            if (commands != null) {
+                for (String command : commands.getKeys(false)) {
+                    final Limit commandLimit = readLimit(configuration, path + ".commands." + command);
+                    if (commandLimit != null)
+                        commandLimits.put(command.toLowerCase(), commandLimit);
+                }
+            }
+            
+            mCommandLimits.put(source, commandLimits);
+        }
+    }
+    
+    /**
+     * Decides whether |sender| may execute |command| right now, taking a token from their bucket if
+     * they may. This method is safe to call from any thread.
+     * 
+     * @param sender    The player, console or remote user who is executing the command.
+     * @param command   Name of the command being executed, not one of its aliases.
+     * @return          Whether the command may be executed, and whether to inform the sender if not.
+     */
+    Decision acquire(CommandSender sender, String command) {
+        return acquire(sender, command, System.nanoTime());
+    }
+    
+    /**
+     * Decides whether |sender| may execute |command| at |now|. See acquire() for the parameters.
+     * 
+     * @param now   The current time, as per System.nanoTime().
+     */
+    Decision acquire(CommandSender sender, String command, long now) {
+        final Source source = getSource(sender);
+        
+        Limit limit = mCommandLimits.get(source).get(command);
+        if (limit == null)
+            limit = mDefaultLimits.get(source);
+        
+        if (limit == null)
+            return Decision.ACCEPT;
+        
+        final String key = source.mConfigurationKey + ":" + sender.getName().toLowerCase() + ":" + command;
+        
+        boolean created = false;
+        
+        Bucket bucket = mBuckets.get(key);
+        if (bucket == null) {
+            final Bucket newBucket = new Bucket(now);
+            bucket = mBuckets.putIfAbsent(key, newBucket);
+            if (bucket == null) {
+                bucket = newBucket;
+                created = true;
+            }
+        }
+        
+        final boolean acquired = bucket.tryAcquire(limit, now);
+        
+        // Prune after the token has been taken, as the new bucket would otherwise be full, and
+        // thus removed, leaving the sender's token in a bucket which no longer is being used.
+        if (created && mBuckets.size() > mPruneThreshold)
+            prune(now);
+        
+        if (acquired) {
+            if (bucket.mRejecting.get())
+                bucket.mRejecting.set(false);
+            
+            return Decision.ACCEPT;
+        }
+        
+        return bucket.mRejecting.compareAndSet(false, true) ? Decision.REJECT : Decision.REJECT_QUIETLY;
+    }
+    
+    /**
+     * Returns the number of buckets which currently exist in the limiter.
+     * 
+     * @return Number of buckets in the limiter.
+     */
+    int getBucketCount() {
+        return mBuckets.size();
+    }
+    
+    /**
+     * Removes the buckets which have been completely refilled at |now|, and adjusts the threshold
+     * for the next prune to the number of buckets which remain in use.
+     * 
+     * @param now   The current time, as per System.nanoTime().
+     */
+    private void prune(long now) {
+        final Iterator<Bucket> iterator = mBuckets.values().iterator();
+        while (iterator.hasNext()) {
+            if (iterator.next().mFullAt.get() - now <= 0)
+                iterator.remove();
+        }
+        
+        mPruneThreshold = Math.max(MINIMUM_PRUNE_THRESHOLD, mBuckets.size() * 2);
+    }
+    
+    /**
+     * Reads the limit configured at |path|, which must have a "burst" and a "per_second" value.
+     * 
+     * @param configuration The configuration to read the limit from.
+     * @param path          Path of the section in which the limit has been configured.
+     * @return              The configured limit, or NULL when none (or an invalid one) is set.
+     */
+    private static Limit readLimit(Configuration configuration, String path) {
+        final int burst = configuration.getInt(path + ".burst", 0);
+        final double perSecond = configuration.getDouble(path + ".per_second", 0);
+        if (burst <= 0 || perSecond <= 0)
+            return null;
+        
+        return new Limit(burst, perSecond);
+    }
+    
+    /**
+     * Returns the source from which |sender| executes commands.
+     * 
+     * @param sender    The player, console or remote user who is executing a command.
+     * @return          The source which |sender| belongs to.
+     */
+    private static Source getSource(CommandSender sender) {
+        if (sender instanceof Player)
+            return Source.INGAME;
+        
+        if (sender instanceof RemoteCommandSender)
+            return Source.REMOTE;
+        
+        return Source.CONSOLE;
+    }
+}
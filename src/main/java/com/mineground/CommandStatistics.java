@@ -0,0 +1,390 @@
+/**
+ * Copyright (c) 2011 - 2014 Mineground, Las Venturas Playground
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.mineground;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.logging.Logger;
+
+import org.bukkit.command.CommandSender;
+import org.bukkit.configuration.Configuration;
+import org.bukkit.plugin.java.JavaPlugin;
+import org.bukkit.scheduler.BukkitTask;
+
+import com.mineground.base.CommandHandler;
+
+/**
+ * Collects the number of executions, a latency histogram and the number of allocated bytes for each
+ * of the commands dispatched by the CommandManager, as well as for their tab completions. The
+ * statistics can be displayed using the console-only /commandstats command, and will periodically
+ * be written to the file configured in the "command_statistics" section of mineground.yml.
+ *
+ * Allocations are measured using the per-thread allocation counters of HotSpot's ThreadMXBean, and
+ * will not be recorded on virtual machines which don't support them.
+ */
+class CommandStatistics {
+    /**
+     * Upper bounds, in microseconds, of the buckets in the latency histograms. Executions slower
+     * than the last bound will be counted in an additional overflow bucket.
+     */
+    private static final long[] HISTOGRAM_BOUNDS_US = {
+        100, 250, 500, 1000, 2500, 5000, 10000, 25000, 50000
+    };
+    
+    /**
+     * Number of seconds between two writes of the statistics file, when not configured.
+     */
+    private static final int DEFAULT_DUMP_INTERVAL_SECONDS = 300;
+    
+    /**
+     * Timings of either the executions or the tab completions of a single command. All counters
+     * may be updated and read from any thread.
+     */
+    private static class Timings {
+        private final AtomicLong mCount = new AtomicLong();
+        private final AtomicLong mTotalNanos = new AtomicLong();
+        private final AtomicLong mMaximumNanos = new AtomicLong();
+        private final AtomicLong mAllocatedBytes = new AtomicLong();
+        private final AtomicLong mAllocationSamples = new AtomicLong();
+        private final AtomicLongArray mHistogram = new AtomicLongArray(HISTOGRAM_BOUNDS_US.length + 1);
+        
+        private void record(long nanos, long allocatedBytes) {
+            mCount.incrementAndGet();
+            mTotalNanos.addAndGet(nanos);
+            
+            long maximum = mMaximumNanos.get();
+            while (nanos > maximum && !mMaximumNanos.compareAndSet(maximum, nanos))
+                maximum = mMaximumNanos.get();
+            
+            final long micros = nanos / 1000;
+            int bucket = 0;
+            while (bucket < HISTOGRAM_BOUNDS_US.length && micros > HISTOGRAM_BOUNDS_US[bucket])
+                ++bucket;
+            
+            mHistogram.incrementAndGet(bucket);
+            
+            if (allocatedBytes >= 0) {
+                mAllocatedBytes.addAndGet(allocatedBytes);
+                mAllocationSamples.incrementAndGet();
+            }
+        }
+        
+        /**
+         * Returns the upper bound, in microseconds, of the histogram bucket containing the given
+         * |percentile| of the recorded executions, or -1 when it falls in the overflow bucket.
+         */
+        private long getPercentileBound(double percentile) {
+            final long threshold = (long) Math.ceil(mCount.get() * percentile);
+            
+            long seen = 0;
+            for (int bucket = 0; bucket < HISTOGRAM_BOUNDS_US.length; ++bucket) {
+                seen += mHistogram.get(bucket);
+                if (seen >= threshold)
+                    return HISTOGRAM_BOUNDS_US[bucket];
+            }
+            
+            return -1;
+        }
+        
+        private void format(StringBuilder builder, String kind) {
+            final long count = mCount.get();
+            builder.append(count).append(" ").append(kind).append(", ");
+            if (count == 0)
+                return;
+            
+            builder.append(String.format("%.2f ms avg, %.2f ms max, ",
+                    mTotalNanos.get() / (count * 1000000.0), mMaximumNanos.get() / 1000000.0));
+            
+            final long p95 = getPercentileBound(0.95);
+            if (p95 == -1)
+                builder.append("p95 > ").append(HISTOGRAM_BOUNDS_US[HISTOGRAM_BOUNDS_US.length - 1] / 1000).append(" ms");
+            else
+                builder.append(String.format("p95 <= %.1f ms", p95 / 1000.0));
+            
+            final long samples = mAllocationSamples.get();
+            if (samples > 0)
+                builder.append(", ").append(mAllocatedBytes.get() / samples / 1024).append(" KB/call");
+        }
+    }
+    
+    /**
+     * Statistics of a single command, separately for executions and tab completions.
+     */
+    private static class CommandTimings {
+        private final String name;
+        private final Timings executions = new Timings();
+        private final Timings completions = new Timings();
+        
+        private CommandTimings(String name_) {
+            name = name_;
+        }
+        
+        private long getTotalNanos() {
+            return executions.mTotalNanos.get() + completions.mTotalNanos.get();
+        }
+    }
+    
+    /**
+     * The statistics for each of the commands which have been executed or completed, keyed by the
+     * name of the command.
+     */
+    private final ConcurrentHashMap<String, CommandTimings> mCommands;
+    
+    /**
+     * HotSpot's ThreadMXBean when it supports measuring per-thread allocations, NULL otherwise.
+     */
+    private final com.sun.management.ThreadMXBean mThreadBean;
+    
+    /**
+     * The file to which the statistics will periodically be written, and the task doing so.
+     */
+    private final File mDumpFile;
+    private final int mDumpIntervalSeconds;
+    private BukkitTask mDumpTask;
+    
+    private final Logger mLogger;
+    
+    CommandStatistics(Configuration configuration, File dataFolder) {
+        mCommands = new ConcurrentHashMap<String, CommandTimings>();
+        mLogger = Logger.getLogger(CommandStatistics.class.getCanonicalName());
+        
+        final String dumpFile = configuration.getString("command_statistics.dump_file", "");
+        mDumpFile = dumpFile.length() > 0 ? new File(dataFolder, dumpFile) : null;
+        mDumpIntervalSeconds = configuration.getInt("command_statistics.dump_interval", DEFAULT_DUMP_INTERVAL_SECONDS);
+        
+        mThreadBean = createThreadBean();
+    }
+    
+    /**
+     * Returns the current time, to be passed to one of the record methods once the command has
+     * finished executing.
+     * 
+     * @return The current time, as per System.nanoTime().
+     */
+    long startTiming() {
+        return System.nanoTime();
+    }
+    
+    /**
+     * Returns the number of bytes allocated by the current thread so far, or -1 when allocations
+     * cannot be measured on this virtual machine.
+     * 
+     * @return Number of bytes allocated by the current thread, or -1.
+     */
+    long getAllocatedBytes() {
+        if (mThreadBean == null)
+            return -1;
+        
+        return mThreadBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+    
+    /**
+     * Records an execution of |command| which started at |startTime|, when the current thread had
+     * allocated |startAllocatedBytes| bytes.
+     * 
+     * @param command               Name of the command which has been executed.
+     * @param startTime             Time at which the execution started, as per startTiming().
+     * @param startAllocatedBytes   Allocated bytes at the start, as per getAllocatedBytes().
+     */
+    void recordExecution(String command, long startTime, long startAllocatedBytes) {
+        getTimings(command).executions.record(System.nanoTime() - startTime,
+                getAllocationDelta(startAllocatedBytes));
+    }
+    
+    /**
+     * Records a tab completion of |command|. See recordExecution() for the parameters.
+     */
+    void recordCompletion(String command, long startTime, long startAllocatedBytes) {
+        getTimings(command).completions.record(System.nanoTime() - startTime,
+                getAllocationDelta(startAllocatedBytes));
+    }
+    
+    /**
+     * Displays the statistics of all commands to the console, ordered by the total amount of time
+     * spent on them. Passing "reset" as the argument clears the statistics afterwards.
+     * 
+     * @param sender    The console which requested the statistics.
+     * @param arguments Optionally "reset" to clear the statistics.
+     */
+    @CommandHandler(value = "commandstats", ingame = false, console = true)
+    public void onCommandStatsCommand(CommandSender sender, String[] arguments) {
+        final List<String> lines = formatStatistics();
+        if (lines.isEmpty())
+            sender.sendMessage("No commands have been executed yet.");
+        
+        for (String line : lines)
+            sender.sendMessage(line);
+        
+        if (arguments.length > 0 && arguments[0].equals("reset")) {
+            mCommands.clear();
+            sender.sendMessage("The command statistics have been reset.");
+        }
+    }
+    
+    /**
+     * Starts writing the statistics to the configured file periodically. Nothing will be written
+     * when no file has been configured.
+     * 
+     * @param plugin    The plugin on whose behalf the task will be scheduled.
+     */
+    void startDumping(JavaPlugin plugin) {
+        if (mDumpFile == null || mDumpIntervalSeconds <= 0)
+            return;
+        
+        final long intervalTicks = mDumpIntervalSeconds * 20L;
+        mDumpTask = plugin.getServer().getScheduler().runTaskTimerAsynchronously(plugin, new Runnable() {
+            public void run() {
+                dump();
+            }
+        }, intervalTicks, intervalTicks);
+    }
+    
+    /**
+     * Stops writing the statistics periodically, and writes them one final time.
+     */
+    void stopDumping() {
+        if (mDumpTask == null)
+            return;
+        
+        mDumpTask.cancel();
+        mDumpTask = null;
+        
+        dump();
+    }
+    
+    /**
+     * Writes the current statistics to |mDumpFile|, replacing its previous contents.
+     */
+    private void dump() {
+        final StringBuilder contents = new StringBuilder();
+        contents.append("Command statistics at ");
+        contents.append(new SimpleDateFormat("yyyy-MM-dd HH:mm:ss").format(new Date()));
+        contents.append("\n\n");
+        
+        for (String line : formatStatistics())
+            contents.append(line).append("\n");
+        
+        Writer writer = null;
+        try {
+            writer = new OutputStreamWriter(new FileOutputStream(mDumpFile), "UTF-8");
+            writer.write(contents.toString());
+        } catch (IOException exception) {
+            mLogger.warning("Unable to write the command statistics to " + mDumpFile + ": " + exception.getMessage());
+        } finally {
+            if (writer != null) {
+                try {
+                    writer.close();
+                } catch (IOException exception) {}
+            }
+        }
+    }
+    
+    /**
+     * Formats the statistics of all commands, one line per command, ordered by the total amount of
+     * time spent on executing and completing them.
+     * 
+     * @return The formatted statistics.
+     */
+    private List<String> formatStatistics() {
+        final List<CommandTimings> commands = new ArrayList<CommandTimings>(mCommands.values());
+        Collections.sort(commands, new Comparator<CommandTimings>() {
+            public int compare(CommandTimings lhs, CommandTimings rhs) {
+                return Long.compare(rhs.getTotalNanos(), lhs.getTotalNanos());
+            }
+        });
+        
+        final List<String> lines = new ArrayList<String>(commands.size());
+        for (CommandTimings command : commands) {
+            final StringBuilder builder = new StringBuilder();
+            builder.append("/").append(command.name).append(": ");
+            command.executions.format(builder, "executions");
+            builder.append("; ");
+            command.completions.format(builder, "completions");
+            
+            lines.add(builder.toString());
+        }
+        
+        return lines;
+    }
+    
+    /**
+     * Returns the timings for |command|, creating them when this is its first execution.
+     * 
+     * @param command   Name of the command to get the timings for.
+     * @return          The timings for the command.
+     */
+    private CommandTimings getTimings(String command) {
+        CommandTimings timings = mCommands.get(command);
+        if (timings == null) {
+            final CommandTimings created = new CommandTimings(command);
+            timings = mCommands.putIfAbsent(command, created);
+            if (timings == null)
+                timings = created;
+        }
+        
+        return timings;
+    }
+    
+    private long getAllocationDelta(long startAllocatedBytes) {
+        if (startAllocatedBytes < 0)
+            return -1;
+        
+        return getAllocatedBytes() - startAllocatedBytes;
+    }
+    
+    /**
+     * Returns HotSpot's ThreadMXBean with allocation measurements enabled, or NULL when this virtual
+     * machine doesn't provide it, or doesn't support measuring allocations.
+     * 
+     * @return The ThreadMXBean to measure allocations with, or NULL.
+     */
+    private com.sun.management.ThreadMXBean createThreadBean() {
+        try {
+            final java.lang.management.ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+            if (!(threadBean instanceof com.sun.management.ThreadMXBean))
+                return null;
+            
+            final com.sun.management.ThreadMXBean hotSpotBean = (com.sun.management.ThreadMXBean) threadBean;
+            if (!hotSpotBean.isThreadAllocatedMemorySupported())
+                return null;
+            
+            if (!hotSpotBean.isThreadAllocatedMemoryEnabled())
+                hotSpotBean.setThreadAllocatedMemoryEnabled(true);
+            
+            return hotSpotBean;
+            
+        } catch (UnsupportedOperationException exception) {
+            mLogger.info("Allocations of commands cannot be measured on this virtual machine.");
+        } catch (NoClassDefFoundError error) {
+            mLogger.info("Allocations of commands cannot be measured on this virtual machine.");
+        }
+        
+        return null;
+    }
+}
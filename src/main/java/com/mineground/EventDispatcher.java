@@ -15,19 +15,28 @@
 
 package com.mineground;
 
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
 import java.lang.ref.WeakReference;
-import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
-import java.util.ArrayList;
-import java.util.EnumMap;
 import java.util.HashMap;
-import java.util.Iterator;
 import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.logging.Logger;
 
+import org.bukkit.Location;
 import org.bukkit.entity.Player;
+import org.bukkit.event.block.BlockBreakEvent;
+import org.bukkit.event.block.BlockPlaceEvent;
+import org.bukkit.event.entity.EntityDamageEvent;
 import org.bukkit.event.entity.EntityDeathEvent;
+import org.bukkit.event.player.PlayerMoveEvent;
 
+import com.mineground.base.AsyncEventHandler;
 import com.mineground.base.DisconnectReason;
+import com.mineground.base.PlayerSnapshot;
 
 /** 
  * The EventDispatcher listens to all incoming events from Bukkit, validates them, and invokes all
@@ -38,136 +47,512 @@ public class EventDispatcher {
         /**
          * Invoked when the Mineground plugin gets loaded by the Bukkit server.
          */
-        MinegroundLoadedEvent("onMinegroundLoaded"),
+        MinegroundLoadedEvent("onMinegroundLoaded", 0, false),
         
         /**
          * Invoked when the Mineground plugin gets unloaded by the Bukkit server.
          */
-        MinegroundUnloadEvent("onMinegroundUnloaded"),
+        MinegroundUnloadEvent("onMinegroundUnloaded", 0, false),
         
         /**
          * Invoked when a player has joined Mineground, and the handshake with the Minecraft
          * server has successfully commenced. Their account is available at this point.
          */
-        PlayerJoinedEvent("onPlayerJoined"),
+        PlayerJoinedEvent("onPlayerJoined", 1, true),
         
         /**
          * Invoked when a player sends a chat message to other players, and none of the filters
          * registered on the Chat Manager has handled the message previously.
          */
-        PlayerChatEvent("onPlayerChat"),
+        PlayerChatEvent("onPlayerChat", 2, true),
         
         /**
          * Invoked when an entity has died. The reason of their death is not immediately included in
          * the event, but can be retrieved by reading the cause of their last damage.
          */
-        EntityDeathEvent("onEntityDeath"),
+        EntityDeathEvent("onEntityDeath", 1, false),
         
         /**
          * Invoked when a player disconnects from Mineground. Their account information is still
          * mutable during this call, but it will be serialized immediately after.
          */
-        PlayerDisconnectEvent("onPlayerDisconnect");
+        PlayerDisconnectEvent("onPlayerDisconnect", 2, true),
+        
+        // -----------------------------------------------------------------------------------------
+        // High-frequency events. These may be fired many times per tick, so observers must be fast.
+        // Dispatching them is free when nobody observes them, as the observer array will be empty.
+        // -----------------------------------------------------------------------------------------
+        
+        /**
+         * Invoked when an authenticated player moves to another position, or looks around. The
+         * Bukkit PlayerMoveEvent is passed on, allowing observers to change the destination.
+         */
+        PlayerMoveEvent("onPlayerMove", 1, false),
+        
+        /**
+         * Invoked when an authenticated player places a block in a world which is not read-only.
+         * The Bukkit BlockPlaceEvent is passed on, allowing observers to cancel it.
+         */
+        BlockPlaceEvent("onBlockPlace", 1, false),
+        
+        /**
+         * Invoked when an authenticated player breaks a block in a world which is not read-only.
+         * The Bukkit BlockBreakEvent is passed on, allowing observers to cancel it.
+         */
+        BlockBreakEvent("onBlockBreak", 1, false),
+        
+        /**
+         * Invoked when an entity takes damage, and the damage has not been cancelled because of the
+         * PVP settings. The Bukkit EntityDamageEvent is passed on, allowing observers to change it.
+         */
+        EntityDamageEvent("onEntityDamage", 1, false),
+        
+        /**
+         * Invoked at most once per tick for each player who moved to another block (or world) since
+         * the previous time this event was invoked for them. Use this rather than onPlayerMove when
+         * only the position of the player matters. Coalesced by the PlayerMoveCoalescer.
+         */
+        PlayerMovedEvent("onPlayerMoved", 2, false);
         
         // -----------------------------------------------------------------------------------------
         
         private String name;
-        private EventTypes(String eventName) {
+        private int arity;
+        
+        /**
+         * Whether observers may be annotated with @AsyncEventHandler. Only events whose arguments
+         * can be snapshotted (or are immutable) are eligible, and none of the high-frequency ones.
+         */
+        private boolean asyncCapable;
+        
+        private EventTypes(String eventName, int eventArity, boolean eventAsyncCapable) {
             name = eventName;
+            arity = eventArity;
+            asyncCapable = eventAsyncCapable;
         }
     }
     
     /**
-     * Information regarding an individual event observer: |method| on the |object| instance. Hold
+     * Information regarding an individual event observer: |invoker| on the |object| instance. Hold
      * weak references to the Feature instances, given that we have no interest in keeping them
      * alive. If a reference has been invalidated, the Feature should be removed from all observers.
+     * 
+     * The |invoker| is a method handle for the observing method, resolved once at registration and
+     * adapted to take the instance and the event's arguments as Objects, so that it can be called
+     * using invokeExact() without allocating an argument array for every dispatched event.
+     * 
+     * Observers annotated with @AsyncEventHandler have a |lane|, shared by all asynchronous
+     * observers of the same instance, on which they will be invoked rather than on the caller's
+     * thread. The |lane| is NULL for all other observers.
      */
     private class EventObserver {
         private WeakReference<Object> instance;
-        private Method method;
+        private MethodHandle invoker;
+        private WorkerPool.SerialLane lane;
         
-        private EventObserver(Object instance_, Method method_) {
+        private EventObserver(Object instance_, MethodHandle invoker_, WorkerPool.SerialLane lane_) {
             instance = new WeakReference<Object>(instance_);
-            method = method_;
+            invoker = invoker_;
+            lane = lane_;
         }
     }
     
     /**
-     * Map containing a list of event observers for each of the event types.
+     * Logger used for reporting observers which could not be registered or threw an exception.
+     */
+    private static final Logger sLogger = Logger.getLogger(EventDispatcher.class.getCanonicalName());
+    
+    /**
+     * An empty array of observers, shared by all event types which are not being observed.
      */
-    final private Map<EventTypes, ArrayList<EventObserver>> mObserverListMap;
+    private static final EventObserver[] NO_OBSERVERS = new EventObserver[0];
+    
+    /**
+     * Array of observers for each of the event types, indexed by the event type's ordinal. The
+     * arrays are immutable snapshots: registering or unregistering observers creates a new array
+     * which atomically replaces the previous one. This allows events to be dispatched from any
+     * thread (e.g. the asynchronous chat thread) without locking, as in-flight dispatches keep
+     * iterating over the snapshot they started with.
+     */
+    final private AtomicReferenceArray<EventObserver[]> mObservers;
     
     /**
      * Map containing recognized method names, and the event type they're supposed to correspond to.
      */
     final private Map<String, EventTypes> mEventNameToTypeMap;
     
+    /**
+     * The pool on which asynchronous observers will be invoked. Will be created when the first
+     * asynchronous observer gets registered, as most configurations won't need it.
+     */
+    private WorkerPool mAsyncObserverPool;
+    
+    /**
+     * The serial lanes for instances which have asynchronous observers. Weakly keyed, so that the
+     * lane disappears together with the instance. Guarded by synchronizing on the map itself.
+     */
+    final private Map<Object, WorkerPool.SerialLane> mAsyncLanes;
+    
     public EventDispatcher() {
-        // An EnumMap is usually represented as a plain array in Java implementations, meaning
-        // all operations should be constant time (but this is not guaranteed). Initialize both the
-        // map and lists for all possible events here, so we don't have to do null-checks elsewhere.
-        mObserverListMap = new EnumMap<EventTypes, ArrayList<EventObserver>>(EventTypes.class);
+        // Initialize the observer arrays for all possible events here, so we don't have to do
+        // null-checks elsewhere. The name map is immutable after construction.
+        mObservers = new AtomicReferenceArray<EventObserver[]>(EventTypes.values().length);
         mEventNameToTypeMap = new HashMap<String, EventTypes>();
+        mAsyncLanes = new WeakHashMap<Object, WorkerPool.SerialLane>();
 
         for (EventTypes eventType : EventTypes.values()) {
-            mObserverListMap.put(eventType, new ArrayList<EventObserver>());
+            mObservers.set(eventType.ordinal(), NO_OBSERVERS);
             mEventNameToTypeMap.put(eventType.name, eventType);
         }
     }
     
     /**
      * Registers all event listeners in |instance| with the observer lists owned by this dispatcher.
-     * Reflection is used to find the relevant method names (as dictated by the EventTypes enum
-     * defined earlier in this class) on the instance.
+     * The candidate methods are taken from the RegistrationIndex, after which their names are
+     * matched against the EventTypes enum defined earlier in this class.
+     * 
+     * Methods annotated with @AsyncEventHandler will be invoked on a worker thread instead. This is
+     * only allowed for events which are async capable, and such methods must accept a PlayerSnapshot
+     * in place of each Player argument, as the Player object may only be used on the main thread.
      * 
      * @param instance The object to scan for event listeners.
      */
     public void registerListeners(Object instance) {
-        Method[] reflectionMethods = instance.getClass().getMethods();
+        Method[] reflectionMethods = RegistrationIndex.getInstance().getMethods(instance.getClass());
         for (Method reflectionMethod : reflectionMethods) {
             EventTypes eventType = mEventNameToTypeMap.get(reflectionMethod.getName());
             if (eventType == null)
                 continue;
+            
+            final MethodHandle invoker = createInvoker(eventType, reflectionMethod);
+            if (invoker == null)
+                continue;
+            
+            WorkerPool.SerialLane lane = null;
+            if (reflectionMethod.isAnnotationPresent(AsyncEventHandler.class)) {
+                if (!isValidAsyncObserver(eventType, reflectionMethod))
+                    continue;
+                
+                lane = getAsyncLane(instance);
+            }
 
-            mObserverListMap.get(eventType).add(new EventObserver(instance, reflectionMethod));
+            final EventObserver observer = new EventObserver(instance, invoker, lane);
+            while (true) {
+                final EventObserver[] observers = mObservers.get(eventType.ordinal());
+                final EventObserver[] updatedObservers = new EventObserver[observers.length + 1];
+                
+                System.arraycopy(observers, 0, updatedObservers, 0, observers.length);
+                updatedObservers[observers.length] = observer;
+                
+                if (mObservers.compareAndSet(eventType.ordinal(), observers, updatedObservers))
+                    break;
+            }
+        }
+    }
+    
+    /**
+     * Unregisters all event listeners of |instance| from the observer lists. Events which are being
+     * dispatched on another thread at the same time may still be delivered to the instance.
+     * 
+     * @param instance The object whose event listeners should be removed.
+     */
+    public void unregisterListeners(Object instance) {
+        for (EventTypes eventType : EventTypes.values())
+            removeObservers(eventType, instance);
+    }
+    
+    /**
+     * Removes the observers of |eventType| whose instance is |instance|, as well as all observers
+     * whose instance has been garbage collected. Passing NULL only removes the latter.
+     * 
+     * @param eventType The type of event to remove observers for.
+     * @param instance  The instance whose observers should be removed, or NULL.
+     */
+    private void removeObservers(EventTypes eventType, Object instance) {
+        while (true) {
+            final EventObserver[] observers = mObservers.get(eventType.ordinal());
+            final EventObserver[] retainedObservers = new EventObserver[observers.length];
+            
+            int retainedCount = 0;
+            for (EventObserver observer : observers) {
+                final Object observerInstance = observer.instance.get();
+                if (observerInstance != null && observerInstance != instance)
+                    retainedObservers[retainedCount++] = observer;
+            }
+            
+            if (retainedCount == observers.length)
+                return; // nothing to remove.
+            
+            final EventObserver[] updatedObservers = new EventObserver[retainedCount];
+            System.arraycopy(retainedObservers, 0, updatedObservers, 0, retainedCount);
+            
+            if (mObservers.compareAndSet(eventType.ordinal(), observers, updatedObservers))
+                return;
+        }
+    }
+    
+    /**
+     * Shuts down the pool on which asynchronous observers are invoked, waiting for a short while for
+     * pending invocations to finish. Must be called when the plugin is being disabled.
+     */
+    public void shutdown() {
+        synchronized (mAsyncLanes) {
+            if (mAsyncObserverPool == null)
+                return;
+            
+            mAsyncObserverPool.shutdown();
+            mAsyncObserverPool = null;
+            mAsyncLanes.clear();
+        }
+    }
+    
+    /**
+     * Validates that |method| may asynchronously observe |eventType|. The event must be async
+     * capable, and the method may not accept Player arguments, as it will receive snapshots.
+     * 
+     * @param eventType The type of event the method will be observing.
+     * @param method    The method which has been annotated with @AsyncEventHandler.
+     * @return          Whether the method may asynchronously observe the event.
+     */
+    private static boolean isValidAsyncObserver(EventTypes eventType, Method method) {
+        if (!eventType.asyncCapable) {
+            sLogger.severe("Cannot asynchronously observe " + eventType.name + " using " + method +
+                    ": the event must be observed on the main thread.");
+            return false;
+        }
+        
+        for (Class<?> parameterType : method.getParameterTypes()) {
+            if (Player.class.isAssignableFrom(parameterType)) {
+                sLogger.severe("Cannot asynchronously observe " + eventType.name + " using " + method +
+                        ": players must be accepted as a PlayerSnapshot.");
+                return false;
+            }
+        }
+        
+        return true;
+    }
+    
+    /**
+     * Returns the serial lane for |instance|, creating it (and the pool) when necessary.
+     * 
+     * @param instance The instance which has asynchronous observers.
+     * @return         The lane on which the instance's asynchronous observers will be invoked.
+     */
+    private WorkerPool.SerialLane getAsyncLane(Object instance) {
+        synchronized (mAsyncLanes) {
+            WorkerPool.SerialLane lane = mAsyncLanes.get(instance);
+            if (lane == null) {
+                if (mAsyncObserverPool == null)
+                    mAsyncObserverPool = new WorkerPool("MinegroundAsyncEvents");
+                
+                lane = mAsyncObserverPool.createLane();
+                mAsyncLanes.put(instance, lane);
+            }
+            
+            return lane;
+        }
+    }
+    
+    /**
+     * Creates the invoker for |method| as an observer of |eventType|. The method's signature will be
+     * validated, after which it will be adapted to (Object, Object...)void with one Object for each
+     * of the event's arguments. Returns NULL when the method cannot observe the event.
+     * 
+     * @param eventType The type of event the method will be observing.
+     * @param method    The method which should be invoked for the event.
+     * @return          A method handle for invoking the observer, or NULL.
+     */
+    private static MethodHandle createInvoker(EventTypes eventType, Method method) {
+        if (method.getParameterTypes().length != eventType.arity) {
+            sLogger.severe("Cannot observe " + eventType.name + " using " + method + ": expected " +
+                    eventType.arity + " parameters.");
+            return null;
+        }
+        
+        final Class<?>[] parameterTypes = new Class<?>[eventType.arity + 1];
+        for (int index = 0; index < parameterTypes.length; ++index)
+            parameterTypes[index] = Object.class;
+        
+        try {
+            // Observers are frequently declared in classes which are not public themselves, e.g.
+            // anonymous classes, so make sure the method is accessible before resolving it.
+            method.setAccessible(true);
+            
+            return MethodHandles.lookup().unreflect(method).asType(MethodType.methodType(void.class, parameterTypes));
+            
+        } catch (Exception exception) {
+            sLogger.severe("Cannot observe " + eventType.name + " using " + method + ": " + exception.toString());
+            return null;
         }
     }
     
     /**
-     * Dispatches an event of type |event| to all attached observers, optionally passing |arguments|
-     * as the arguments to the to be invoked observer.
+     * Dispatches an event of type |event|, which has no arguments, to all attached observers. There
+     * is a dispatch method for each event arity, so that the observers can be invoked directly.
      * 
      * @param event     The type of event to dispatch.
-     * @param arguments Arguments passed on as parameters to the handlers.
      */
-    private void dispatch(EventTypes event, Object... arguments) {
-        final Iterator<EventObserver> observers = mObserverListMap.get(event).iterator();
-        while (observers.hasNext()) {
-            final EventObserver observer = observers.next();
+    private void dispatch(EventTypes event) {
+        boolean hasCollectedObservers = false;
+        for (EventObserver observer : mObservers.get(event.ordinal())) {
             final Object instance = observer.instance.get();
-
-            // If |instance| is null, the object instance itself has lost all its references
-            // elsewhere in the plugin, and we thus can't deliver events to it anymore.
             if (instance == null) {
-                observers.remove();
+                hasCollectedObservers = true;
                 continue;
             }
-
+            
+            if (observer.lane != null) {
+                dispatchAsync(event, observer, instance, null, null);
+                continue;
+            }
+            
+            try {
+                observer.invoker.invokeExact(instance);
+            } catch (Throwable exception) {
+                reportException(event, exception);
+            }
+        }
+        
+        if (hasCollectedObservers)
+            removeObservers(event, null);
+    }
+    
+    /**
+     * Dispatches an event of type |event| to all attached observers, passing |argument| as the
+     * argument to each of the observers.
+     * 
+     * @param event     The type of event to dispatch.
+     * @param argument  Argument passed on as the parameter to the handlers.
+     */
+    private void dispatch(EventTypes event, Object argument) {
+        Object asyncArgument = null;
+        
+        boolean hasCollectedObservers = false;
+        for (EventObserver observer : mObservers.get(event.ordinal())) {
+            final Object instance = observer.instance.get();
+            if (instance == null) {
+                hasCollectedObservers = true;
+                continue;
+            }
+            
+            if (observer.lane != null) {
+                if (asyncArgument == null)
+                    asyncArgument = toAsyncArgument(argument);
+                
+                dispatchAsync(event, observer, instance, asyncArgument, null);
+                continue;
+            }
+            
+            try {
+                observer.invoker.invokeExact(instance, argument);
+            } catch (Throwable exception) {
+                reportException(event, exception);
+            }
+        }
+        
+        if (hasCollectedObservers)
+            removeObservers(event, null);
+    }
+    
+    /**
+     * Dispatches an event of type |event| to all attached observers, passing |firstArgument| and
+     * |secondArgument| as the arguments to each of the observers.
+     * 
+     * @param event             The type of event to dispatch.
+     * @param firstArgument     First argument passed on as a parameter to the handlers.
+     * @param secondArgument    Second argument passed on as a parameter to the handlers.
+     */
+    private void dispatch(EventTypes event, Object firstArgument, Object secondArgument) {
+        Object firstAsyncArgument = null;
+        Object secondAsyncArgument = null;
+        
+        boolean hasCollectedObservers = false;
+        for (EventObserver observer : mObservers.get(event.ordinal())) {
+            final Object instance = observer.instance.get();
+            if (instance == null) {
+                hasCollectedObservers = true;
+                continue;
+            }
+            
+            if (observer.lane != null) {
+                if (firstAsyncArgument == null) {
+                    firstAsyncArgument = toAsyncArgument(firstArgument);
+                    secondAsyncArgument = toAsyncArgument(secondArgument);
+                }
+                
+                dispatchAsync(event, observer, instance, firstAsyncArgument, secondAsyncArgument);
+                continue;
+            }
+            
             try {
-                observer.method.invoke(instance, arguments);
-            } catch (IllegalArgumentException e) {
-                // TODO: Log an error because the method has an invalid signature.
-                e.printStackTrace();
-            } catch (InvocationTargetException e) {
-                // Ignored, we do a null check on |feature| earlier on in this method. By getting
-                // the weak pointer's value we create a strong reference too, stopping the instance
-                // from being garbage collected while we're dispatching an event on it.
-                e.printStackTrace();
-            } catch (IllegalAccessException e) {
-                // TODO: Log an error because the method is not accessible.
-                e.printStackTrace();
+                observer.invoker.invokeExact(instance, firstArgument, secondArgument);
+            } catch (Throwable exception) {
+                reportException(event, exception);
             }
         }
+        
+        if (hasCollectedObservers)
+            removeObservers(event, null);
+    }
+    
+    /**
+     * Queues the invocation of |observer| on its serial lane. The |firstArgument| and |secondArgument|
+     * must already have been converted using toAsyncArgument(), and are ignored beyond the arity of
+     * the event. The instance is held strongly until the invocation has finished.
+     * 
+     * @param event             The type of event which is being dispatched.
+     * @param observer          The asynchronous observer which should be invoked.
+     * @param instance          The instance on which the observer should be invoked.
+     * @param firstArgument     First argument to pass on to the observer, if any.
+     * @param secondArgument    Second argument to pass on to the observer, if any.
+     */
+    private static void dispatchAsync(final EventTypes event, final EventObserver observer, final Object instance,
+                                      final Object firstArgument, final Object secondArgument) {
+        observer.lane.submit(new Runnable() {
+            public void run() {
+                try {
+                    switch (event.arity) {
+                        case 0:
+                            observer.invoker.invokeExact(instance);
+                            break;
+                        case 1:
+                            observer.invoker.invokeExact(instance, firstArgument);
+                            break;
+                        default:
+                            observer.invoker.invokeExact(instance, firstArgument, secondArgument);
+                            break;
+                    }
+                } catch (Throwable exception) {
+                    reportException(event, exception);
+                }
+            }
+        });
+    }
+    
+    /**
+     * Converts |argument| into a value which may safely be used on another thread. Players will be
+     * replaced by a PlayerSnapshot, all other arguments of async capable events are immutable.
+     * 
+     * @param argument The argument which will be passed on to an asynchronous observer.
+     * @return         The argument, or its thread-safe replacement.
+     */
+    private static Object toAsyncArgument(Object argument) {
+        if (argument instanceof Player)
+            return new PlayerSnapshot((Player) argument);
+        
+        return argument;
+    }
+    
+    /**
+     * Reports that an observer of |event| threw |exception|. The exception will not be propagated
+     * further, to make sure that other observers still receive the event.
+     * 
+     * @param event     The type of event which was being dispatched.
+     * @param exception The exception thrown by the observer.
+     */
+    private static void reportException(EventTypes event, Throwable exception) {
+        sLogger.severe("An observer of " + event.name + " threw an exception: " + exception.toString());
+        exception.printStackTrace();
     }
     
     public void onMinegroundLoaded()   { dispatch(EventTypes.MinegroundLoadedEvent); }
@@ -177,4 +562,20 @@ public class EventDispatcher {
     public void onPlayerChat(Player player, String message) { dispatch(EventTypes.PlayerChatEvent, player, message); }
     public void onEntityDeath(EntityDeathEvent event) { dispatch(EventTypes.EntityDeathEvent, event); }
     public void onPlayerDisconnect(Player player, DisconnectReason reason) { dispatch(EventTypes.PlayerDisconnectEvent, player, reason); }
+    
+    public void onPlayerMove(PlayerMoveEvent event) { dispatch(EventTypes.PlayerMoveEvent, event); }
+    public void onBlockPlace(BlockPlaceEvent event) { dispatch(EventTypes.BlockPlaceEvent, event); }
+    public void onBlockBreak(BlockBreakEvent event) { dispatch(EventTypes.BlockBreakEvent, event); }
+    public void onEntityDamage(EntityDamageEvent event) { dispatch(EventTypes.EntityDamageEvent, event); }
+    public void onPlayerMoved(Player player, Location location) { dispatch(EventTypes.PlayerMovedEvent, player, location); }
+    
+    /**
+     * Returns whether any feature observes the onPlayerMoved event. Used by the PlayerMoveCoalescer
+     * to avoid recording moves when nobody is interested in them.
+     * 
+     * @return Whether the onPlayerMoved event has observers.
+     */
+    public boolean hasPlayerMovedObservers() {
+        return mObservers.get(EventTypes.PlayerMovedEvent.ordinal()).length > 0;
+    }
 }
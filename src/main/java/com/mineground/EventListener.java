@@ -31,6 +31,7 @@ import org.bukkit.event.entity.EntityDamageEvent;
 import org.bukkit.event.entity.EntityDeathEvent;
 import org.bukkit.event.inventory.InventoryClickEvent;
 import org.bukkit.event.player.AsyncPlayerChatEvent;
+import org.bukkit.event.player.AsyncPlayerPreLoginEvent;
 import org.bukkit.event.player.PlayerJoinEvent;
 import org.bukkit.event.player.PlayerKickEvent;
 import org.bukkit.event.player.PlayerMoveEvent;
@@ -50,12 +51,16 @@ import com.mineground.features.WorldSettings.PvpSetting;
 public class EventListener implements Listener {
     private final EventDispatcher mEventDispatcher;
     private final AccountManager mAccountManager;
+    private final PlayerMoveCoalescer mMoveCoalescer;
+    private final OnlinePlayerIndex mPlayerIndex;
     
     private WorldManager mWorldManager;
     
-    public EventListener(EventDispatcher eventDispatcher, AccountManager accountManager) {
+    public EventListener(EventDispatcher eventDispatcher, AccountManager accountManager, PlayerMoveCoalescer moveCoalescer, OnlinePlayerIndex playerIndex) {
         mEventDispatcher = eventDispatcher;
         mAccountManager = accountManager;
+        mMoveCoalescer = moveCoalescer;
+        mPlayerIndex = playerIndex;
     }
     
     /**
@@ -68,6 +73,21 @@ public class EventListener implements Listener {
         mWorldManager = worldManager;
     }
     
+    /**
+     * Invoked on Bukkit's login thread when a player is logging in to the server, before they join.
+     * Their account will be prefetched, so that it's usually available when PlayerJoinEvent fires,
+     * and they don't have to wait for the database before they can start playing.
+     * 
+     * @param event The Bukkit AsyncPlayerPreLoginEvent object.
+     */
+    @EventHandler(priority=EventPriority.MONITOR)
+    public void onPlayerPreLogin(AsyncPlayerPreLoginEvent event) {
+        if (event.getLoginResult() != AsyncPlayerPreLoginEvent.Result.ALLOWED)
+            return;
+        
+        mAccountManager.prefetchAccount(event.getName(), event.getAddress().getHostAddress());
+    }
+    
     /**
      * Invoked when a player joins the server, and the PlayerLoginEvent has succeeded. Mineground
      * considers this the time at which a player's connection can be considered successful. However,
@@ -81,6 +101,7 @@ public class EventListener implements Listener {
         
         player.setGameMode(GameMode.SURVIVAL);
         
+        mPlayerIndex.addPlayer(player);
         mAccountManager.loadAccount(player, mEventDispatcher);
         event.setJoinMessage(null);
     }
@@ -106,7 +127,19 @@ public class EventListener implements Listener {
             }
         }
         
-        // TODO: Distribute this event within Mineground if we need to.
+        mEventDispatcher.onPlayerMove(event);
+    }
+    
+    /**
+     * Invoked once all plugins have handled a player's movement, unless it has been cancelled. The
+     * final destination will be recorded by the move coalescer, so that features will only be told
+     * about positions the player actually reached.
+     * 
+     * @param event The Bukkit PlayerMoveEvent object.
+     */
+    @EventHandler(priority=EventPriority.MONITOR, ignoreCancelled=true)
+    public void onPlayerMoveCompleted(PlayerMoveEvent event) {
+        mMoveCoalescer.recordMove(event.getPlayer(), event.getFrom(), event.getTo());
     }
     
     /**
@@ -149,7 +182,7 @@ public class EventListener implements Listener {
         }
         
         // TODO: Increase blocks-placed statistics on |account|.
-        // TODO: Distribute this event within Mineground if we need to.
+        mEventDispatcher.onBlockPlace(event);
     }
     
     /**
@@ -173,7 +206,7 @@ public class EventListener implements Listener {
         }
         
         // TODO: Increase blocks-broken statistics on |account|.
-        // TODO: Distribute this event within Mineground if we need to.
+        mEventDispatcher.onBlockBreak(event);
     }
     
     /**
@@ -207,7 +240,8 @@ public class EventListener implements Listener {
     
     /**
      * The EntityDamage event will be fired when harm has been done to an entity. We handle the
-     * case where players do damage to players, also known as PVP (player versus player).
+     * case where players do damage to players, also known as PVP (player versus player). Damage
+     * which is allowed will be distributed to the features observing it.
      * 
      * @param event The Bukkit EntityDamageEvent object.
      */
@@ -216,8 +250,24 @@ public class EventListener implements Listener {
         if (event.isCancelled())
             return;
         
-        if (!(event instanceof EntityDamageByEntityEvent) || !(event.getEntity() instanceof Player))
+        if (isPvpDisallowed(event)) {
+            event.setCancelled(true);
             return;
+        }
+        
+        mEventDispatcher.onEntityDamage(event);
+    }
+    
+    /**
+     * Returns whether |event| represents a player damaging another player in a way which is not
+     * allowed, either because of the world's PVP setting or because of the players' preferences.
+     * 
+     * @param event The Bukkit EntityDamageEvent object.
+     * @return      Whether the damage must be cancelled.
+     */
+    private boolean isPvpDisallowed(EntityDamageEvent event) {
+        if (!(event instanceof EntityDamageByEntityEvent) || !(event.getEntity() instanceof Player))
+            return false;
         
         final Player player = (Player) event.getEntity();
         final EntityDamageByEntityEvent entityEvent = (EntityDamageByEntityEvent) event;
@@ -231,7 +281,7 @@ public class EventListener implements Listener {
             damager = (Player) entityEvent.getDamager();
         
         if (damager == null || mWorldManager == null)
-            return; // nothing to do when either |damager| or |mWorldManager| is null.
+            return false; // nothing to do when either |damager| or |mWorldManager| is null.
         
         final World world = player.getWorld();
         
@@ -239,30 +289,21 @@ public class EventListener implements Listener {
         // race condition with portals, but that should be rare enough to not care.
         PvpSetting setting = mWorldManager.getWorldSettings(world).getPvp();
         if (setting == PvpSetting.PVP_ALLOWED)
-            return; // PVP is allowed under all circumstances.
+            return false; // PVP is allowed under all circumstances.
         
-        if (setting == PvpSetting.PVP_DISALLOWED) {
-            event.setCancelled(true);
-            return; // PVP is never allowed in this world.
-        }
+        if (setting == PvpSetting.PVP_DISALLOWED)
+            return true; // PVP is never allowed in this world.
         
         final Account playerAccount = mAccountManager.getAccountForPlayer(player);
         final Account damagerAccount = mAccountManager.ensureAuthenticatedAccount(damager);
         
-        if (playerAccount == null || damagerAccount == null) {
-            event.setCancelled(true);
-            return; // either of the accounts has not been loaded.
-        }
+        if (playerAccount == null || damagerAccount == null)
+            return true; // either of the accounts has not been loaded.
         
         // PVP is allowed when both |player| and |damager| enabled PVP on their account. This avoids
         // a situation in which |player| is being attacked by |damager|, but can't fight back
         // because |damager| disabled PVP on their account.
-        if (!playerAccount.getPvp() || !damagerAccount.getPvp()) {
-            event.setCancelled(true);
-            return; // the |player| has disabled PVP on their account.
-        }
-        
-        // TODO: Distribute this event within Mineground if we have to.
+        return !playerAccount.getPvp() || !damagerAccount.getPvp();
     }
     
     /**
@@ -304,6 +345,8 @@ public class EventListener implements Listener {
     public void onPlayerKick(PlayerKickEvent event) {
         mEventDispatcher.onPlayerDisconnect(event.getPlayer(), DisconnectReason.KICKED);
         mAccountManager.unloadAccount(event.getPlayer());
+        mMoveCoalescer.removePlayer(event.getPlayer());
+        mPlayerIndex.removePlayer(event.getPlayer());
         event.setLeaveMessage(null);
     }
     
@@ -317,6 +360,8 @@ public class EventListener implements Listener {
     public void onPlayerQuit(PlayerQuitEvent event) {
         mEventDispatcher.onPlayerDisconnect(event.getPlayer(), DisconnectReason.QUIT);
         mAccountManager.unloadAccount(event.getPlayer());
+        mMoveCoalescer.removePlayer(event.getPlayer());
+        mPlayerIndex.removePlayer(event.getPlayer());
         event.setQuitMessage(null);
     }
     
@@ -28,6 +28,9 @@ import com.mineground.account.AccountManager;
 import com.mineground.account.PlayerLog;
 import com.mineground.base.DisconnectReason;
 import com.mineground.base.FeatureInitParams;
+import com.mineground.base.MainThreadExecutor;
+import com.mineground.base.Promise;
+import com.mineground.base.TimerWheel;
 import com.mineground.base.Message;
 import com.mineground.base.Settings;
 import com.mineground.database.Database;
@@ -51,6 +54,17 @@ public class Mineground extends JavaPlugin {
      */
     private EventListener mEventListener;
     
+    /**
+     * Coalesces the many PlayerMoveEvents Bukkit fires in to a single onPlayerMoved event per
+     * player per tick, published only when the player moved to another block.
+     */
+    private PlayerMoveCoalescer mMoveCoalescer;
+    
+    /**
+     * Index of the online players by name, used to resolve player names in command arguments.
+     */
+    private OnlinePlayerIndex mPlayerIndex;
+    
     /**
      * Class used for routing commands executed by the player to the feature which implements them.
      */
@@ -94,6 +108,19 @@ public class Mineground extends JavaPlugin {
      */
     private Database mDatabase;
     
+    /**
+     * Executor on which work finished on other threads gets delivered back to the main thread, for
+     * example the handlers of a ConcurrentPromise settled by a worker thread.
+     */
+    private MainThreadExecutor mMainThreadExecutor;
+    
+    /**
+     * The timer wheel driving the timeouts of promises, advanced once per server tick by the task
+     * identified by |mTimerWheelTaskId|.
+     */
+    private TimerWheel mTimerWheel;
+    private int mTimerWheelTaskId;
+    
     @Override
     public void onEnable() {
         // Initializes the Mineground-specific configuration (which should reside in the plugin's
@@ -108,6 +135,18 @@ public class Mineground extends JavaPlugin {
         Message.SetConfiguration(mConfiguration);
         
         mSettings = new Settings(new File(dataFolder, "settings.yml"));
+        
+        mMainThreadExecutor = new MainThreadExecutor(this);
+        mMainThreadExecutor.start();
+        
+        mTimerWheel = new TimerWheel();
+        mTimerWheelTaskId = getServer().getScheduler().scheduleSyncRepeatingTask(this, new Runnable() {
+            public void run() {
+                mTimerWheel.advance();
+            }
+        }, 1, 1);
+        
+        Promise.setTimerWheel(mTimerWheel);
 
         // Initialize the Database API and ensure that it can connect to actual database powering
         // it. Without database access, Mineground will be significantly limited in functionality.
@@ -116,12 +155,19 @@ public class Mineground extends JavaPlugin {
 
         PlayerLog.setDatabase(mDatabase);
         
-        mAccountManager = new AccountManager(mDatabase, this);
+        mAccountManager = new AccountManager(mDatabase, this, mMainThreadExecutor);
 
         mEventDispatcher = new EventDispatcher();
-        mEventListener = new EventListener(mEventDispatcher, mAccountManager);
+        mMoveCoalescer = new PlayerMoveCoalescer(mEventDispatcher, this);
+        mMoveCoalescer.start();
+        
+        mPlayerIndex = new OnlinePlayerIndex();
+        for (Player player : getServer().getOnlinePlayers())
+            mPlayerIndex.addPlayer(player);
+        
+        mEventListener = new EventListener(mEventDispatcher, mAccountManager, mMoveCoalescer, mPlayerIndex);
         
-        mCommandManager = new CommandManager(this);
+        mCommandManager = new CommandManager(mConfiguration, this, mPlayerIndex, mAccountManager, mMainThreadExecutor);
         mIrcManager = new IrcManager(mConfiguration, mCommandManager, this);
         
         mCommandManager.registerCommands(mAccountManager);
@@ -141,6 +187,7 @@ public class Mineground extends JavaPlugin {
         featureInitParams.server = getServer();
         featureInitParams.settings = mSettings;
         featureInitParams.ircManager = mIrcManager;
+        featureInitParams.mainThreadExecutor = mMainThreadExecutor;
         
         // Instantiate the Feature Manager itself, with the parameters as we previously compiled.
         mFeatureManager = new FeatureManager(featureInitParams);
@@ -179,6 +226,12 @@ public class Mineground extends JavaPlugin {
         // Fire the onMinegroundUnloaded event, telling all features that they must clean up.
         mEventDispatcher.onMinegroundUnloaded();
         
+        // Give asynchronous observers and commands a brief moment to finish, e.g. the disconnection
+        // echoes. Their messages will be delivered when the main thread executor is being stopped.
+        mEventDispatcher.shutdown();
+        mCommandManager.shutdown();
+        mAccountManager.shutdown();
+        
         // Close the database connection first, since that may depend on other instances which (at
         // this point) are still alive, and GC wise Java seems to have some trouble with that.
         mDatabase.disconnect();
@@ -186,6 +239,16 @@ public class Mineground extends JavaPlugin {
         
         PlayerLog.setDatabase(null);
         
+        // Deliver the work which finished while shutting down before stopping the executor.
+        mMainThreadExecutor.stop();
+        mMainThreadExecutor = null;
+        
+        // Pending timeouts won't fire anymore, the promises they guard have been dealt with above.
+        getServer().getScheduler().cancelTask(mTimerWheelTaskId);
+        Promise.setTimerWheel(null);
+        
+        mTimerWheel = null;
+        
         // And NULL all the main instances in Mineground, which should clean up all remaining state,
         // close open connections, so that we can leave with a clear conscience.
         mFeatureManager = null;
@@ -194,9 +257,14 @@ public class Mineground extends JavaPlugin {
 
         mCommandManager = null;
 
+        mMoveCoalescer.stop();
+        mMoveCoalescer = null;
+
         mEventListener = null;
         mEventDispatcher = null;
         
+        mPlayerIndex = null;
+        
         mAccountManager = null;
         
         mSettings = null;
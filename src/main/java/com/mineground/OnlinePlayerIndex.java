@@ -0,0 +1,84 @@
+/**
+ * Copyright (c) 2011 - 2014 Mineground, Las Venturas Playground
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.mineground;
+
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.bukkit.entity.Player;
+
+/**
+ * Index of the players who are currently online, sorted by their lowercase name. Allows commands to
+ * resolve (partial) player names without iterating over all online players, which is what Bukkit's
+ * Server.getPlayer() does for every lookup. Must only be used on the main server thread.
+ */
+public class OnlinePlayerIndex {
+    /**
+     * Map between the lowercase name of a player and the Player object representing them.
+     */
+    private final TreeMap<String, Player> mPlayers;
+    
+    public OnlinePlayerIndex() {
+        mPlayers = new TreeMap<String, Player>();
+    }
+    
+    /**
+     * Adds |player| to the index. Must be called when they join the server.
+     * 
+     * @param player The player who joined the server.
+     */
+    public void addPlayer(Player player) {
+        mPlayers.put(player.getName().toLowerCase(), player);
+    }
+    
+    /**
+     * Removes |player| from the index. Must be called when they leave the server.
+     * 
+     * @param player The player who is leaving the server.
+     */
+    public void removePlayer(Player player) {
+        final String name = player.getName().toLowerCase();
+        if (mPlayers.get(name) == player)
+            mPlayers.remove(name);
+    }
+    
+    /**
+     * Finds the online player identified by |name|. Follows the semantics of Bukkit's getPlayer():
+     * an exact match is preferred, otherwise the player with the shortest name starting with |name|
+     * will be returned. Matching is case insensitive.
+     * 
+     * @param name  The (partial) name of the player to find.
+     * @return      The player, or NULL when no online player matches the name.
+     */
+    public Player findPlayer(String name) {
+        final String prefix = name.toLowerCase();
+        
+        Player bestMatch = null;
+        int bestLength = Integer.MAX_VALUE;
+        
+        for (Map.Entry<String, Player> entry : mPlayers.tailMap(prefix, true).entrySet()) {
+            if (!entry.getKey().startsWith(prefix))
+                break;
+            
+            if (entry.getKey().length() < bestLength) {
+                bestMatch = entry.getValue();
+                bestLength = entry.getKey().length();
+            }
+        }
+        
+        return bestMatch;
+    }
+}
@@ -0,0 +1,285 @@
+/**
+ * Copyright (c) 2011 - 2014 Mineground, Las Venturas Playground
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.mineground;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.bukkit.Location;
+import org.bukkit.World;
+import org.bukkit.entity.Player;
+import org.bukkit.plugin.java.JavaPlugin;
+import org.bukkit.scheduler.BukkitScheduler;
+
+/**
+ * Bukkit fires a PlayerMoveEvent for every movement packet received from a player, which can be
+ * many per tick. Features which only care about where a player is, e.g. for regions or detecting
+ * whether they're away, don't need that granularity. The PlayerMoveCoalescer records the latest
+ * position of each player as it comes in, and once per tick publishes a single onPlayerMoved event
+ * for each player whose block position (or world) changed since the previous publication.
+ *
+ * Positions are stored in primitive arrays indexed by a slot assigned to each player, so recording
+ * a move doesn't allocate. When no feature observes onPlayerMoved, moves are not recorded at all.
+ */
+public class PlayerMoveCoalescer {
+    /**
+     * Id of an invalid task in the Bukkit scheduler.
+     */
+    private static final int INVALID_TASK_ID = -1;
+    
+    /**
+     * The initial number of player slots. The arrays will grow when more players are moving around.
+     */
+    private static final int INITIAL_CAPACITY = 64;
+    
+    private final EventDispatcher mEventDispatcher;
+    private final JavaPlugin mPlugin;
+    
+    /**
+     * Map between players and the slot holding their position in the arrays below.
+     */
+    private final Map<Player, Integer> mSlotMap;
+    
+    /**
+     * The player occupying each slot, or NULL for slots which are not in use.
+     */
+    private Player[] mPlayers;
+    
+    /**
+     * The world and block position (x, y and z for each slot) of the last published position.
+     */
+    private World[] mPublishedWorlds;
+    private int[] mPublishedBlocks;
+    
+    /**
+     * The latest location received for each slot during the current tick, or NULL when the player
+     * hasn't moved. These are the Location instances Bukkit created for the move events.
+     */
+    private Location[] mLatestLocations;
+    
+    /**
+     * The slots which received at least one move during the current tick.
+     */
+    private int[] mMovedSlots;
+    private int mMovedSlotCount;
+    
+    /**
+     * Slots which have been released by players who left, to be reused by new players.
+     */
+    private int[] mFreeSlots;
+    private int mFreeSlotCount;
+    
+    /**
+     * The number of slots which have ever been assigned, i.e. the high-water mark of the arrays.
+     */
+    private int mSlotCount;
+    
+    private int mSchedulerTaskId;
+    
+    public PlayerMoveCoalescer(EventDispatcher eventDispatcher, JavaPlugin plugin) {
+        mEventDispatcher = eventDispatcher;
+        mPlugin = plugin;
+        
+        mSlotMap = new HashMap<Player, Integer>();
+        mPlayers = new Player[INITIAL_CAPACITY];
+        mPublishedWorlds = new World[INITIAL_CAPACITY];
+        mPublishedBlocks = new int[INITIAL_CAPACITY * 3];
+        mLatestLocations = new Location[INITIAL_CAPACITY];
+        mMovedSlots = new int[INITIAL_CAPACITY];
+        mFreeSlots = new int[INITIAL_CAPACITY];
+        
+        mSchedulerTaskId = INVALID_TASK_ID;
+    }
+    
+    /**
+     * Starts publishing the coalesced moves once per server tick.
+     */
+    public void start() {
+        mSchedulerTaskId = getScheduler().scheduleSyncRepeatingTask(mPlugin, new Runnable() {
+            public void run() {
+                publishMoves();
+            }
+        }, 1, 1);
+    }
+    
+    /**
+     * Stops publishing moves. Moves recorded during the current tick will be discarded.
+     */
+    public void stop() {
+        getScheduler().cancelTask(mSchedulerTaskId);
+        mSchedulerTaskId = INVALID_TASK_ID;
+    }
+    
+    /**
+     * Records that |player| moved from |from| to |to|. The first move of a player establishes their
+     * initial position based on |from|, later moves only update the latest position.
+     * 
+     * @param player    The player who moved.
+     * @param from      The location the player moved from.
+     * @param to        The location the player moved to.
+     */
+    public void recordMove(Player player, Location from, Location to) {
+        if (!mEventDispatcher.hasPlayerMovedObservers())
+            return;
+        
+        final Integer slotValue = mSlotMap.get(player);
+        final int slot;
+        
+        if (slotValue == null) {
+            slot = assignSlot(player);
+            updatePublishedPosition(slot, from);
+        } else
+            slot = slotValue;
+        
+        if (mLatestLocations[slot] == null) {
+            if (mMovedSlotCount == mMovedSlots.length)
+                mMovedSlots = copyOf(mMovedSlots, mMovedSlotCount * 2);
+            
+            mMovedSlots[mMovedSlotCount++] = slot;
+        }
+        
+        mLatestLocations[slot] = to;
+    }
+    
+    /**
+     * Releases the slot of |player|, who is leaving the server. Must be called for every player who
+     * disconnects, to avoid holding on to their Player instance.
+     * 
+     * @param player The player who is leaving the server.
+     */
+    public void removePlayer(Player player) {
+        final Integer slot = mSlotMap.remove(player);
+        if (slot == null)
+            return;
+        
+        // The slot may still be listed in |mMovedSlots|, even more than once when it gets reused
+        // during the same tick. That's fine, as publishMoves() skips slots without a location.
+        mPlayers[slot] = null;
+        mPublishedWorlds[slot] = null;
+        mLatestLocations[slot] = null;
+        
+        mFreeSlots[mFreeSlotCount++] = slot;
+    }
+    
+    /**
+     * Publishes an onPlayerMoved event for each player who moved to another block since the last
+     * time their position was published. Invoked once per server tick.
+     */
+    private void publishMoves() {
+        final int movedSlotCount = mMovedSlotCount;
+        mMovedSlotCount = 0;
+        
+        for (int index = 0; index < movedSlotCount; ++index) {
+            final int slot = mMovedSlots[index];
+            final Location location = mLatestLocations[slot];
+            final Player player = mPlayers[slot];
+            
+            if (location == null || player == null)
+                continue;
+            
+            mLatestLocations[slot] = null;
+            
+            final int offset = slot * 3;
+            if (location.getWorld() == mPublishedWorlds[slot] &&
+                    location.getBlockX() == mPublishedBlocks[offset] &&
+                    location.getBlockY() == mPublishedBlocks[offset + 1] &&
+                    location.getBlockZ() == mPublishedBlocks[offset + 2]) {
+                continue; // the player is still standing on the same block.
+            }
+            
+            updatePublishedPosition(slot, location);
+            mEventDispatcher.onPlayerMoved(player, location);
+        }
+    }
+    
+    /**
+     * Stores |location| as the last published position of |slot|.
+     * 
+     * @param slot      The slot to store the position for.
+     * @param location  The location to store.
+     */
+    private void updatePublishedPosition(int slot, Location location) {
+        final int offset = slot * 3;
+        
+        mPublishedWorlds[slot] = location.getWorld();
+        mPublishedBlocks[offset] = location.getBlockX();
+        mPublishedBlocks[offset + 1] = location.getBlockY();
+        mPublishedBlocks[offset + 2] = location.getBlockZ();
+    }
+    
+    /**
+     * Assigns a slot to |player|, reusing a released slot when available and growing the arrays
+     * when all slots are in use.
+     * 
+     * @param player    The player to assign a slot to.
+     * @return          The slot assigned to the player.
+     */
+    private int assignSlot(Player player) {
+        final int slot;
+        if (mFreeSlotCount > 0)
+            slot = mFreeSlots[--mFreeSlotCount];
+        else {
+            if (mSlotCount == mPlayers.length)
+                growCapacity(mPlayers.length * 2);
+            
+            slot = mSlotCount++;
+        }
+        
+        mPlayers[slot] = player;
+        mSlotMap.put(player, slot);
+        
+        return slot;
+    }
+    
+    /**
+     * Grows all slot-indexed arrays to |capacity| slots.
+     * 
+     * @param capacity The new number of slots.
+     */
+    private void growCapacity(int capacity) {
+        mPlayers = copyOf(mPlayers, new Player[capacity]);
+        mPublishedWorlds = copyOf(mPublishedWorlds, new World[capacity]);
+        mLatestLocations = copyOf(mLatestLocations, new Location[capacity]);
+        
+        mPublishedBlocks = copyOf(mPublishedBlocks, capacity * 3);
+        mMovedSlots = copyOf(mMovedSlots, Math.max(capacity, mMovedSlots.length));
+        mFreeSlots = copyOf(mFreeSlots, capacity);
+    }
+    
+    /**
+     * Copies the contents of |source| to the start of |destination|, and returns |destination|.
+     */
+    private static <Type> Type[] copyOf(Type[] source, Type[] destination) {
+        System.arraycopy(source, 0, destination, 0, source.length);
+        return destination;
+    }
+    
+    /**
+     * Returns a copy of |source| with a length of |length|, which must not be smaller.
+     */
+    private static int[] copyOf(int[] source, int length) {
+        final int[] destination = new int[length];
+        System.arraycopy(source, 0, destination, 0, source.length);
+        return destination;
+    }
+    
+    /**
+     * Returns the Bukkit scheduler from |mPlugin|.
+     *
+     * @return Instance of Bukkit's task scheduler.
+     */
+    private BukkitScheduler getScheduler() { return mPlugin.getServer().getScheduler(); }
+}
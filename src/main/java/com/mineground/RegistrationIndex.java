@@ -0,0 +1,172 @@
+/**
+ * Copyright (c) 2011 - 2014 Mineground, Las Venturas Playground
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.mineground;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+
+/**
+ * The registration index knows which methods of a class may have to be registered with the
+ * EventDispatcher or the CommandManager, so that they don't have to scan all public methods of each
+ * instance when features are being created, e.g. when the plugin is being enabled or reloaded.
+ *
+ * The index is generated at build time by the RegistrationIndexProcessor, as the package-private
+ * GeneratedRegistrationIndex class. Classes which are not included in it (for example anonymous
+ * classes, or all classes when the index wasn't generated) will be scanned using reflection.
+ */
+class RegistrationIndex {
+    /**
+     * Interface implemented by the generated index, which adds all indexed classes and methods.
+     */
+    interface Source {
+        public void populate(RegistrationIndex index);
+    }
+    
+    /**
+     * Fully qualified name of the class generated by the RegistrationIndexProcessor.
+     */
+    private static final String GENERATED_INDEX_CLASS = "com.mineground.GeneratedRegistrationIndex";
+    
+    private static final Logger sLogger = Logger.getLogger(RegistrationIndex.class.getCanonicalName());
+    
+    /**
+     * The index shared by the EventDispatcher and the CommandManager. Loaded when first used.
+     */
+    private static RegistrationIndex sInstance;
+    
+    /**
+     * A method which has been included in the index, but has not been resolved yet.
+     */
+    private static class IndexedMethod {
+        private final String name;
+        private final Class<?>[] parameterTypes;
+        
+        private IndexedMethod(String name_, Class<?>[] parameterTypes_) {
+            name = name_;
+            parameterTypes = parameterTypes_;
+        }
+    }
+    
+    /**
+     * Map between the binary name of an indexed class and its candidate methods.
+     */
+    private final Map<String, List<IndexedMethod>> mIndexedMethods;
+    
+    /**
+     * Map between classes and the methods which have been resolved for them, either using the
+     * index or using reflection. Both registrars will need the methods of the same classes.
+     */
+    private final Map<Class<?>, Method[]> mResolvedMethods;
+    
+    private RegistrationIndex() {
+        mIndexedMethods = new HashMap<String, List<IndexedMethod>>();
+        mResolvedMethods = new HashMap<Class<?>, Method[]>();
+    }
+    
+    /**
+     * Returns the registration index, loading the generated index when this is the first call.
+     * 
+     * @return The registration index.
+     */
+    public static synchronized RegistrationIndex getInstance() {
+        if (sInstance != null)
+            return sInstance;
+        
+        sInstance = new RegistrationIndex();
+        try {
+            final Source source = (Source) Class.forName(GENERATED_INDEX_CLASS).newInstance();
+            source.populate(sInstance);
+            
+        } catch (ClassNotFoundException exception) {
+            sLogger.info("The registration index is not available, classes will be scanned instead.");
+        } catch (Exception exception) {
+            sLogger.warning("Unable to load the registration index: " + exception.toString());
+            sInstance.mIndexedMethods.clear();
+        }
+        
+        return sInstance;
+    }
+    
+    /**
+     * Adds |className| to the index, meaning that all its candidate methods will be added as well.
+     * Must only be called by the generated index.
+     * 
+     * @param className The binary name of the class to add.
+     */
+    public void addClass(String className) {
+        mIndexedMethods.put(className, new ArrayList<IndexedMethod>());
+    }
+    
+    /**
+     * Adds |methodName| of |className| as a candidate method. Must only be called by the generated
+     * index, after the class itself has been added.
+     * 
+     * @param className         The binary name of the class which has the method.
+     * @param methodName        Name of the candidate method.
+     * @param parameterTypes    The types of the method's parameters.
+     */
+    public void addMethod(String className, String methodName, Class<?>... parameterTypes) {
+        mIndexedMethods.get(className).add(new IndexedMethod(methodName, parameterTypes));
+    }
+    
+    /**
+     * Returns the public methods of |type| which may have to be registered as event observers or
+     * command handlers. When |type| has been indexed, only the candidate methods will be returned,
+     * otherwise this will return all public methods of the type.
+     * 
+     * @param type  The class whose methods should be returned.
+     * @return      The candidate methods of the class.
+     */
+    public synchronized Method[] getMethods(Class<?> type) {
+        Method[] methods = mResolvedMethods.get(type);
+        if (methods == null) {
+            methods = resolveMethods(type);
+            mResolvedMethods.put(type, methods);
+        }
+        
+        return methods;
+    }
+    
+    /**
+     * Resolves the candidate methods of |type| based on the index. Falls back to reflection when
+     * the type has not been indexed, or when the index is out of date.
+     * 
+     * @param type  The class whose methods should be resolved.
+     * @return      The candidate methods of the class.
+     */
+    private Method[] resolveMethods(Class<?> type) {
+        final List<IndexedMethod> indexedMethods = mIndexedMethods.get(type.getName());
+        if (indexedMethods == null)
+            return type.getMethods();
+        
+        final Method[] methods = new Method[indexedMethods.size()];
+        try {
+            for (int index = 0; index < methods.length; ++index) {
+                final IndexedMethod indexedMethod = indexedMethods.get(index);
+                methods[index] = type.getMethod(indexedMethod.name, indexedMethod.parameterTypes);
+            }
+        } catch (NoSuchMethodException exception) {
+            sLogger.warning("The registration index is out of date for " + type.getName() + ": " + exception.getMessage());
+            return type.getMethods();
+        }
+        
+        return methods;
+    }
+}
@@ -0,0 +1,167 @@
+/**
+ * Copyright (c) 2011 - 2014 Mineground, Las Venturas Playground
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.mineground;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+/**
+ * Bounded pool of worker threads on which the EventDispatcher invokes observers annotated with
+ * @AsyncEventHandler, and the CommandManager executes asynchronous commands. Work is submitted to
+ * a SerialLane, e.g. one for each observing instance, which guarantees that its invocations run
+ * one at a time and in the order in which they were submitted, while different lanes run in
+ * parallel.
+ *
+ * The number of pending invocations is bounded. When a lane falls too far behind, for example
+ * because an observer is blocked on I/O, new invocations will be dropped and a warning logged,
+ * rather than letting the queue grow without bounds.
+ */
+class WorkerPool {
+    /**
+     * Number of worker threads in the pool.
+     */
+    private static final int WORKER_THREAD_COUNT = 2;
+    
+    /**
+     * Maximum number of invocations which may be pending over all lanes combined.
+     */
+    private static final int MAXIMUM_PENDING_INVOCATIONS = 1024;
+    
+    /**
+     * Maximum number of invocations a lane runs before yielding its worker to other lanes.
+     */
+    private static final int MAXIMUM_INVOCATIONS_PER_RUN = 64;
+    
+    /**
+     * Maximum number of milliseconds to wait for pending invocations when shutting down.
+     */
+    private static final int MAXIMUM_SHUTDOWN_TIME_MS = 2000;
+    
+    private static final Logger sLogger = Logger.getLogger(WorkerPool.class.getCanonicalName());
+    
+    /**
+     * A serial lane of invocations, e.g. for a single observing instance.
+     */
+    class SerialLane implements Runnable {
+        private final ConcurrentLinkedQueue<Runnable> mInvocations;
+        private final AtomicBoolean mScheduled;
+        
+        private SerialLane() {
+            mInvocations = new ConcurrentLinkedQueue<Runnable>();
+            mScheduled = new AtomicBoolean(false);
+        }
+        
+        /**
+         * Queues |invocation| on this lane. May be called from any thread.
+         * 
+         * @param invocation The invocation which should be ran on the lane.
+         */
+        public void submit(Runnable invocation) {
+            if (mPendingInvocations.incrementAndGet() > MAXIMUM_PENDING_INVOCATIONS) {
+                mPendingInvocations.decrementAndGet();
+                sLogger.warning("Dropped an asynchronous invocation: too many invocations are pending.");
+                return;
+            }
+            
+            mInvocations.add(invocation);
+            schedule();
+        }
+        
+        /**
+         * Runs the invocations queued on this lane. Invoked by one of the worker threads.
+         */
+        public void run() {
+            for (int count = 0; count < MAXIMUM_INVOCATIONS_PER_RUN; ++count) {
+                final Runnable invocation = mInvocations.poll();
+                if (invocation == null)
+                    break;
+                
+                mPendingInvocations.decrementAndGet();
+                invocation.run();
+            }
+            
+            mScheduled.set(false);
+            if (!mInvocations.isEmpty())
+                schedule();
+        }
+        
+        /**
+         * Schedules this lane to be ran on the pool, unless it has already been scheduled.
+         */
+        private void schedule() {
+            if (!mScheduled.compareAndSet(false, true))
+                return;
+            
+            try {
+                mExecutor.execute(this);
+            } catch (RejectedExecutionException exception) {
+                // The pool has been shut down, the remaining invocations will be discarded.
+                mPendingInvocations.addAndGet(-mInvocations.size());
+                mInvocations.clear();
+            }
+        }
+    }
+    
+    /**
+     * The number of invocations which have been submitted, but not yet ran.
+     */
+    private final AtomicInteger mPendingInvocations;
+    
+    private final ExecutorService mExecutor;
+    
+    public WorkerPool(final String name) {
+        mPendingInvocations = new AtomicInteger(0);
+        mExecutor = Executors.newFixedThreadPool(WORKER_THREAD_COUNT, new ThreadFactory() {
+            private final AtomicInteger mThreadCount = new AtomicInteger(0);
+            public Thread newThread(Runnable runnable) {
+                final Thread thread = new Thread(runnable, name + "-" + mThreadCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+    
+    /**
+     * Creates a new lane, e.g. to be used for the observers of a single instance.
+     * 
+     * @return A new SerialLane.
+     */
+    public SerialLane createLane() {
+        return new SerialLane();
+    }
+    
+    /**
+     * Stops accepting new lanes to run, and waits for a short while for the pending invocations
+     * to finish. Invocations which are still pending after that will be discarded.
+     */
+    public void shutdown() {
+        mExecutor.shutdown();
+        try {
+            if (!mExecutor.awaitTermination(MAXIMUM_SHUTDOWN_TIME_MS, TimeUnit.MILLISECONDS))
+                sLogger.warning("Not all asynchronous events finished before shutting down.");
+            
+        } catch (InterruptedException exception) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
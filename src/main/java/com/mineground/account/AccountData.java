@@ -108,11 +108,24 @@ public class AccountData {
      */
     public Date last_seen;
     
+    // ***** Dirty-field tracking ******************************************************************
+    
+    /**
+     * Copy of the fields as they were last read from or written to the database, which allows the
+     * AccountDatabase to only write the fields which have changed since. NULL when the state of
+     * the database is unknown, in which case all fields will be written.
+     */
+    private AccountData mPersistedState;
+    
     // ***** Constructor for default values ********************************************************
     
     public AccountData(Player player) {
+        this(player.getName());
+    }
+    
+    public AccountData(String username_) {
         user_id = 0;
-        username = player.getName();
+        username = username_;
         password = "";
         level = AccountLevel.Guest;
         registered = new Date();
@@ -126,4 +139,52 @@ public class AccountData {
         stats_blocks_destroyed = 0;
         last_seen = new Date();
     }
+    
+    /**
+     * Creates a copy of the fields in |other|. The copy does not have a persisted state itself.
+     * 
+     * @param other The account data to copy.
+     */
+    private AccountData(AccountData other) {
+        user_id = other.user_id;
+        username = other.username;
+        password = other.password;
+        level = other.level;
+        registered = other.registered;
+        
+        home_location = other.home_location;
+        online_time = other.online_time;
+        kill_count = other.kill_count;
+        death_count = other.death_count;
+        stats_reaction = other.stats_reaction;
+        stats_blocks_created = other.stats_blocks_created;
+        stats_blocks_destroyed = other.stats_blocks_destroyed;
+        last_ip = other.last_ip;
+        last_seen = other.last_seen;
+    }
+    
+    /**
+     * Records that the current values of the fields are the ones stored in the database.
+     */
+    public void markPersisted() {
+        mPersistedState = new AccountData(this);
+    }
+    
+    /**
+     * Forgets about the values stored in the database, for example because writing to it failed.
+     * All fields will be considered as changed by the next write.
+     */
+    public void discardPersistedState() {
+        mPersistedState = null;
+    }
+    
+    /**
+     * Returns the values of the fields as they were last read from or written to the database, or
+     * NULL when they are unknown. The returned instance must not be modified.
+     * 
+     * @return The persisted state of this account, or NULL.
+     */
+    public AccountData getPersistedState() {
+        return mPersistedState;
+    }
 }
@@ -19,14 +19,21 @@ import java.text.DateFormat;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Logger;
 
 import org.bukkit.entity.Player;
 
 import com.mineground.base.Promise;
+import com.mineground.base.PromiseCancellationHandler;
 import com.mineground.base.PromiseError;
+import com.mineground.base.PromiseFunction;
 import com.mineground.base.PromiseResultHandler;
 import com.mineground.database.Database;
+import com.mineground.database.DatabaseBatchLoader;
 import com.mineground.database.DatabaseResult;
 import com.mineground.database.DatabaseResultRow;
 import com.mineground.database.DatabaseStatement;
@@ -53,11 +60,63 @@ public class AccountDatabase {
     private final DatabaseStatement mCreateUserStatement;
     private final DatabaseStatement mCreateUserSettingsStatement;
     private final DatabaseStatement mUpdateUserStatement;
+    private final DatabaseStatement mUpdateUserSessionStatement;
     private final DatabaseStatement mUpdateUserSettingsStatement;
-    private final DatabaseStatement mFindUserIdStatement;
+    
+    /**
+     * Batch loader used for finding user Ids given a nickname. These lookups tend to come in bursts,
+     * so all lookups issued during a single tick will be executed as a single query.
+     */
+    private final DatabaseBatchLoader<String> mFindUserIdLoader;
+    
+    /**
+     * Maximum number of recently unloaded accounts which will be kept in memory.
+     */
+    private static final int WARM_ACCOUNT_CACHE_CAPACITY = 128;
+    
+    /**
+     * Number of minutes for which an unloaded account remains available for a rejoining player.
+     * Kept short, since the account may be changed in the database by the website or IRC.
+     */
+    private static final int WARM_ACCOUNT_CACHE_TTL_MINUTES = 5;
+    
+    /**
+     * Accounts of players who recently disconnected, allowing them to rejoin without a query.
+     */
+    private final WarmAccountCache mWarmAccountCache;
+    
+    /**
+     * Number of nanoseconds after which a prefetched account which hasn't been picked up by the
+     * joining player will be discarded, e.g. because the server refused their login.
+     */
+    private static final long PREFETCH_EXPIRATION_NANOS = TimeUnit.SECONDS.toNanos(30);
+    
+    /**
+     * An account which is being loaded ahead of its player joining the server, together with the
+     * address they logged in from, and the time at which it will be discarded.
+     */
+    private static class PrefetchedAccount {
+        public final Promise<AccountData> promise;
+        public final String address;
+        public final long expirationTime;
+        
+        public PrefetchedAccount(Promise<AccountData> promise_, String address_, long expirationTime_) {
+            promise = promise_;
+            address = address_;
+            expirationTime = expirationTime_;
+        }
+    }
+    
+    /**
+     * Map between the lowercase usernames of players who are logging in, and their prefetched
+     * accounts. Only accessed on the main thread.
+     */
+    private final Map<String, PrefetchedAccount> mPrefetchedAccounts;
     
     public AccountDatabase(Database database) {
         mDateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+        mPrefetchedAccounts = new HashMap<String, PrefetchedAccount>();
+        mWarmAccountCache = new WarmAccountCache(WARM_ACCOUNT_CACHE_CAPACITY, WARM_ACCOUNT_CACHE_TTL_MINUTES, TimeUnit.MINUTES);
         
         // Statement used for loading accounts from the database. The player's name will be used
         // as the key to identify them from.
@@ -115,6 +174,18 @@ public class AccountDatabase {
                     "user_id = ?"
         );
         
+        // Statement to update the address and time at which the user was last seen, for sessions in
+        // which none of their other settings have changed.
+        mUpdateUserSessionStatement = database.prepare(
+                "UPDATE " +
+                    "users_settings " +
+                "SET " +
+                    "last_ip = INET_ATON(?), " +
+                    "last_seen = ? " +
+                "WHERE " +
+                    "user_id = ?"
+        );
+        
         // Statement to update the user's settings with the latest information.
         mUpdateUserSettingsStatement = database.prepare(
                 "UPDATE " +
@@ -133,39 +204,159 @@ public class AccountDatabase {
                     "user_id = ?"
         );
         
-        // Statement for finding a user Id belonging to a user, given a nickname.
-        mFindUserIdStatement = database.prepare(
+        // Batch loader for finding user Ids belonging to users, given their nicknames.
+        mFindUserIdLoader = database.prepareBatchLoader(
                 "SELECT " +
-                    "user_id " +
+                    "user_id, " +
+                    "username " +
                 "FROM " +
                     "users " +
                 "WHERE " +
-                    "username = ?"
+                    "username IN (%s)",
+                "username", String.class
         );
     }
     
     /**
      * Loads the account of |player| from the database. If it does not exist yet, a new account will
-     * be created, which allows them to play as a guest.
+     * be created, which allows them to play as a guest. Cancelling the returned promise will cancel
+     * the query loading the account as well. Players who recently disconnected will receive their
+     * account from the warm account cache, and the load may already have been started by
+     * prefetchAccount() while the player was logging in.
      * 
      * @param player    The player to load the associated account for.
      * @return          A promise which will be resolved when the account is available.
      */
     public Promise<AccountData> loadOrCreateAccount(final Player player) {
+        final AccountData warmAccountData = mWarmAccountCache.take(player.getName());
+        if (warmAccountData != null)
+            return Promise.cast(warmAccountData);
+        
+        Promise<AccountData> loadPromise = takePrefetchedAccount(player);
+        if (loadPromise == null)
+            loadPromise = loadAccount(player.getName());
+        
+        final Promise<AccountData> promise = new Promise<AccountData>();
+        final Promise<AccountData> accountPromise = loadPromise;
+        promise.onCancelled(new PromiseCancellationHandler() {
+            public void onCancelled() {
+                accountPromise.cancel();
+            }
+        });
+        
+        accountPromise.then(new PromiseResultHandler<AccountData>() {
+            public void onFulfilled(AccountData accountData) {
+                if (accountData != null) {
+                    promise.resolve(accountData);
+                    return;
+                }
+                
+                // Accounts are only created once the player has actually joined the server, since
+                // the login may still be refused after the account has been prefetched.
+                if (player.isOnline())
+                    createAccount(player, promise);
+            }
+            public void onRejected(PromiseError error) {
+                if (promise.isCancelled())
+                    return;
+                
+                promise.reject(error);
+            }
+        });
+        
+        return promise;
+    }
+    
+    /**
+     * Starts loading the account of |username| ahead of them joining the server, for example while
+     * they are logging in. The load will be picked up by loadOrCreateAccount() when the player
+     * joins from |address|. Prefetched accounts which aren't picked up will be discarded after a
+     * short while. Must be called on the main thread.
+     * 
+     * @param username  Username of the player who is logging in.
+     * @param address   The IP address from which they are logging in.
+     * @return          A promise which will be settled once the account has been loaded.
+     */
+    public Promise<AccountData> prefetchAccount(String username, String address) {
+        final long now = System.nanoTime();
+        
+        // Discard the prefetched accounts of players who never ended up joining the server.
+        final Iterator<PrefetchedAccount> iterator = mPrefetchedAccounts.values().iterator();
+        while (iterator.hasNext()) {
+            final PrefetchedAccount prefetchedAccount = iterator.next();
+            if (prefetchedAccount.expirationTime - now > 0)
+                continue;
+            
+            prefetchedAccount.promise.cancel();
+            iterator.remove();
+        }
+        
+        // Accounts in the warm account cache don't have to be prefetched. They are only peeked at,
+        // as the login may still be refused, and will be taken when the player actually joins.
+        final AccountData warmAccountData = mWarmAccountCache.peek(username);
+        final Promise<AccountData> promise =
+                warmAccountData != null ? Promise.cast(warmAccountData) : loadAccount(username);
+        
+        final PrefetchedAccount previous = warmAccountData != null ?
+                mPrefetchedAccounts.remove(username.toLowerCase()) :
+                mPrefetchedAccounts.put(username.toLowerCase(), new PrefetchedAccount(promise, address, now + PREFETCH_EXPIRATION_NANOS));
+        
+        if (previous != null)
+            previous.promise.cancel();
+        
+        return promise;
+    }
+    
+    /**
+     * Takes the prefetched account of |player|, when one is available. Prefetched accounts will
+     * only be used when the player joined from the same address as they logged in from.
+     * 
+     * @param player    The player who has joined the server.
+     * @return          The promise of the prefetched account, or NULL.
+     */
+    private Promise<AccountData> takePrefetchedAccount(Player player) {
+        final PrefetchedAccount prefetchedAccount = mPrefetchedAccounts.remove(player.getName().toLowerCase());
+        if (prefetchedAccount == null)
+            return null;
+        
+        final String address = player.getAddress().getAddress().getHostAddress();
+        if (!prefetchedAccount.address.equals(address) || prefetchedAccount.promise.isCancelled()) {
+            prefetchedAccount.promise.cancel();
+            return null;
+        }
+        
+        return prefetchedAccount.promise;
+    }
+    
+    /**
+     * Loads the account of |username| from the database. The promise will be resolved with NULL
+     * when no account exists for the username. Cancelling the returned promise will cancel the
+     * query loading the account as well.
+     * 
+     * @param username  Username of the player whose account should be loaded.
+     * @return          A promise which will be resolved with the account, or NULL.
+     */
+    private Promise<AccountData> loadAccount(final String username) {
         final Promise<AccountData> promise = new Promise<AccountData>();
         
-        mLoadAccountStatement.setString(1, player.getName());
-        mLoadAccountStatement.execute().then(new PromiseResultHandler<DatabaseResult>() {
+        mLoadAccountStatement.setString(1, username);
+        
+        final Promise<DatabaseResult> queryPromise = mLoadAccountStatement.execute();
+        promise.onCancelled(new PromiseCancellationHandler() {
+            public void onCancelled() {
+                queryPromise.cancel();
+            }
+        });
+        
+        queryPromise.then(new PromiseResultHandler<DatabaseResult>() {
             public void onFulfilled(DatabaseResult result) {
                 if (result.rows.size() == 0) {
-                    if (player.isOnline())
-                        createAccount(player, promise);
-
+                    promise.resolve(null);
                     return;
                 }
                 
                 final DatabaseResultRow resultRow = result.rows.get(0);
-                final AccountData accountData = new AccountData(player);
+                final AccountData accountData = new AccountData(username);
                 
                 // Table: users
                 accountData.user_id = resultRow.getInteger("user_id").intValue();
@@ -191,11 +382,15 @@ public class AccountDatabase {
                 
                 // Now that the AccountData object is complete, resolve the promise to let the
                 // account manager know that this user's information is available.
+                accountData.markPersisted();
                 promise.resolve(accountData);
             }
 
             public void onRejected(PromiseError error) {
-                mLogger.severe("Unable to load the account of " + player.getName() + ".");
+                if (promise.isCancelled())
+                    return;
+                
+                mLogger.severe("Unable to load the account of " + username + ".");
                 mLogger.severe(error.reason());
 
                 promise.reject("An error occurred when loading the account from database.");
@@ -245,39 +440,91 @@ public class AccountDatabase {
     }
     
     /**
-     * Updates the database with the mutable fields in the AccountData instance |accountData|.
+     * Updates the database with the mutable fields in the AccountData instance |accountData| which
+     * have changed since the account was loaded or last written. The account will be kept in the
+     * warm account cache afterwards, with its last_ip and last_seen fields updated to the values
+     * which are being written, so that it's consistent with the database when the player rejoins.
      *
      * @param accountData   The account data containing the latest information.
      * @param player        The player who the account belongs to.
      */
     public void updateAccount(final AccountData accountData, final Player player) {
-        mUpdateUserStatement.setString(1, accountData.password);
-        mUpdateUserStatement.setInteger(2, accountData.user_id);
-        mUpdateUserStatement.execute().then(new PromiseResultHandler<DatabaseResult>() {
-            public void onFulfilled(DatabaseResult result) { /** Yippie! **/ }
-            public void onRejected(PromiseError error) {
-                mLogger.severe("Unable to update user information for " + accountData.username + ".");
-                mLogger.severe(error.reason());
-            }
-        });
+        accountData.last_ip = player.getAddress().getAddress().getHostAddress();
+        accountData.last_seen = new Date();
+        
+        final AccountData persisted = accountData.getPersistedState();
+        if (persisted == null || !accountData.password.equals(persisted.password)) {
+            mUpdateUserStatement.setString(1, accountData.password);
+            mUpdateUserStatement.setInteger(2, accountData.user_id);
+            mUpdateUserStatement.execute().then(new PromiseResultHandler<DatabaseResult>() {
+                public void onFulfilled(DatabaseResult result) { /** Yippie! **/ }
+                public void onRejected(PromiseError error) {
+                    mLogger.severe("Unable to update user information for " + accountData.username + ".");
+                    mLogger.severe(error.reason());
+                    
+                    accountData.discardPersistedState();
+                }
+            });
+        }
         
-        mUpdateUserSettingsStatement.setInteger(1, accountData.home_location);
-        mUpdateUserSettingsStatement.setInteger(2, accountData.online_time);
-        mUpdateUserSettingsStatement.setInteger(3, accountData.kill_count);
-        mUpdateUserSettingsStatement.setInteger(4, accountData.death_count);
-        mUpdateUserSettingsStatement.setInteger(5, accountData.stats_reaction);
-        mUpdateUserSettingsStatement.setInteger(6, accountData.stats_blocks_created);
-        mUpdateUserSettingsStatement.setInteger(7, accountData.stats_blocks_destroyed);
-        mUpdateUserSettingsStatement.setString(8, player.getAddress().getAddress().getHostAddress());
-        mUpdateUserSettingsStatement.setString(9, mDateFormat.format(new Date()));
-        mUpdateUserSettingsStatement.setInteger(10, accountData.user_id);
-        mUpdateUserSettingsStatement.execute().then(new PromiseResultHandler<DatabaseResult>() {
+        // The address and time at which the player was last seen change with every session, and
+        // are required for automatically logging them in next time, so always write them. The
+        // other columns are only written when one of them changed. There are two fixed shapes of
+        // this update, so that they can be batched together when many players leave at once.
+        final DatabaseStatement statement;
+        if (persisted == null || hasChangedSettings(accountData, persisted)) {
+            statement = mUpdateUserSettingsStatement;
+            statement.setInteger(1, accountData.home_location);
+            statement.setInteger(2, accountData.online_time);
+            statement.setInteger(3, accountData.kill_count);
+            statement.setInteger(4, accountData.death_count);
+            statement.setInteger(5, accountData.stats_reaction);
+            statement.setInteger(6, accountData.stats_blocks_created);
+            statement.setInteger(7, accountData.stats_blocks_destroyed);
+            statement.setString(8, accountData.last_ip);
+            statement.setString(9, mDateFormat.format(accountData.last_seen));
+            statement.setInteger(10, accountData.user_id);
+        } else {
+            statement = mUpdateUserSessionStatement;
+            statement.setString(1, accountData.last_ip);
+            statement.setString(2, mDateFormat.format(accountData.last_seen));
+            statement.setInteger(3, accountData.user_id);
+        }
+        
+        statement.execute().then(new PromiseResultHandler<DatabaseResult>() {
             public void onFulfilled(DatabaseResult result) { /** Yippie! **/ }
             public void onRejected(PromiseError error) {
                 mLogger.severe("Unable to update user settings for " + accountData.username + ".");
                 mLogger.severe(error.reason());
+                
+                // Write all fields next time, as we don't know what the database contains now.
+                accountData.discardPersistedState();
             }
         });
+        
+        accountData.markPersisted();
+        
+        // Guests who haven't been stored in the database don't have an account worth caching.
+        if (accountData.user_id != 0)
+            mWarmAccountCache.put(accountData);
+    }
+    
+    /**
+     * Returns whether any of the settings of |accountData| other than last_ip and last_seen differ
+     * from those in its |persisted| state.
+     * 
+     * @param accountData   The account data containing the latest information.
+     * @param persisted     The state of the account as it was last read from or written to.
+     * @return              Whether any of the other settings have changed.
+     */
+    private static boolean hasChangedSettings(AccountData accountData, AccountData persisted) {
+        return accountData.home_location != persisted.home_location ||
+               accountData.online_time != persisted.online_time ||
+               accountData.kill_count != persisted.kill_count ||
+               accountData.death_count != persisted.death_count ||
+               accountData.stats_reaction != persisted.stats_reaction ||
+               accountData.stats_blocks_created != persisted.stats_blocks_created ||
+               accountData.stats_blocks_destroyed != persisted.stats_blocks_destroyed;
     }
     
     /**
@@ -287,23 +534,17 @@ public class AccountDatabase {
      * @return          A promise, which will be resolved with the user Id.
      */
     public Promise<Integer> findUserId(final String username) {
-        final Promise<Integer> promise = new Promise<Integer>();
-        
-        mFindUserIdStatement.setString(1, username);
-        mFindUserIdStatement.execute().then(new PromiseResultHandler<DatabaseResult>() {
-            public void onFulfilled(DatabaseResult result) {
-                if (result.rows.size() != 1) {
-                    promise.reject("No user named **" + username + "** is registered on Mineground.");
-                    return;
-                }
-                
-                promise.resolve(result.rows.get(0).getInteger("user_id").intValue());
+        return mFindUserIdLoader.load(username).recover(new PromiseFunction<PromiseError, Promise<DatabaseResultRow>>() {
+            public Promise<DatabaseResultRow> apply(PromiseError error) {
+                return Promise.rejected("Could not read user information from the database (" + error.reason() + ")");
             }
-            public void onRejected(PromiseError error) {
-                promise.reject("Could not read user information from the database (" + error.reason() + ")");
+        }).flatMap(new PromiseFunction<DatabaseResultRow, Promise<Integer>>() {
+            public Promise<Integer> apply(DatabaseResultRow resultRow) {
+                if (resultRow == null)
+                    return Promise.rejected("No user named **" + username + "** is registered on Mineground.");
+                
+                return Promise.cast(resultRow.getInteger("user_id").intValue());
             }
         });
-        
-        return promise;
     }
 }
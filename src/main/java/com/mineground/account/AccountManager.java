@@ -15,13 +15,14 @@
 
 package com.mineground.account;
 
-import java.security.NoSuchAlgorithmException;
-import java.security.spec.InvalidKeySpecException;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
 
 import org.bukkit.command.CommandSender;
 import org.bukkit.entity.Player;
@@ -30,13 +31,14 @@ import org.bukkit.plugin.java.JavaPlugin;
 import com.mineground.EventDispatcher;
 import com.mineground.account.PlayerLog.NoteType;
 import com.mineground.account.PlayerLog.RecordType;
+import com.mineground.base.CancellationScope;
 import com.mineground.base.Color;
 import com.mineground.base.CommandHandler;
 import com.mineground.base.Message;
 import com.mineground.base.Promise;
+import com.mineground.base.PromiseCancelledError;
 import com.mineground.base.PromiseError;
 import com.mineground.base.PromiseResultHandler;
-import com.mineground.base.SecurePasswordHash;
 import com.mineground.database.Database;
 
 /**
@@ -61,6 +63,18 @@ public class AccountManager {
      */
     private static final int LOGIN_ENFORCED_REMINDER_TIME_MS = 1000;
     
+    /**
+     * The number of server ticks after which loading a player's account will be given up on, for
+     * example because the database thread is stuck reconnecting. 20 seconds at 20 ticks/second.
+     */
+    private static final int ACCOUNT_LOAD_TIMEOUT_TICKS = 20 * 20;
+    
+    /**
+     * The maximum number of milliseconds the login thread of a player will wait for their account
+     * to be prefetched, before allowing them to join regardless.
+     */
+    private static final int MAXIMUM_PREFETCH_WAIT_MS = 1500;
+    
     /**
      * Interface between the account manager and the database.
      */
@@ -106,11 +120,13 @@ public class AccountManager {
         public AccountData accountData;
         public EventDispatcher dispatcher;
         public int attempts;
+        public boolean verifying;
         
         PendingAuthentication(AccountData accountData_, EventDispatcher dispatcher_) {
             accountData = accountData_;
             dispatcher = dispatcher_;
             attempts = 0;
+            verifying = false;
         }
     }
     
@@ -120,16 +136,37 @@ public class AccountManager {
      */
     private final Map<Player, PendingAuthentication> mAuthenticationRequestMap;
     
+    /**
+     * Map between Bukkit players and the cancellation scope of their session. Work which is only
+     * relevant while the player is online, such as loading their account, is tracked by the scope,
+     * and will be cancelled when the player disconnects.
+     */
+    private final Map<Player, CancellationScope> mSessionScopeMap;
+    
+    /**
+     * Verifies the passwords entered using /login on a bounded pool of hashing threads, since the
+     * PBKDF2 computation is too expensive to run on the main thread.
+     */
+    private final PasswordVerifier mPasswordVerifier;
+    
+    /**
+     * Executor through which work can be posted to the main thread from other threads.
+     */
+    private final Executor mMainThreadExecutor;
+    
     /**
      * The Java plugin (read: Mineground instance) this Account Manager belongs to. The plugin is
      * required in order to attach permissions to a player.
      */
     private final JavaPlugin mPlugin;
     
-    public AccountManager(Database database, JavaPlugin plugin) {
+    public AccountManager(Database database, JavaPlugin plugin, Executor mainThreadExecutor) {
         mAccountDatabase = new AccountDatabase(database);
+        mPasswordVerifier = new PasswordVerifier(mainThreadExecutor);
+        mMainThreadExecutor = mainThreadExecutor;
         mPlayerAccountMap = new HashMap<Player, Account>();
         mAuthenticationRequestMap = new HashMap<Player, PendingAuthentication>();
+        mSessionScopeMap = new HashMap<Player, CancellationScope>();
         mPlayerLastLoginMessageMap = new HashMap<Player, Long>();
         mOnlineStaff = new ArrayList<Player>();
         mPlugin = plugin;
@@ -139,6 +176,40 @@ public class AccountManager {
         mInvalidPasswordMessage = Message.Load("login_invalid");
     }
     
+    /**
+     * Starts loading the account of |username| while they are logging in from |address|, so that
+     * it's likely to be available by the time they join the server. Called on Bukkit's login
+     * thread, which will wait a short while for the account to load. That's fine, as the login
+     * thread isn't the main thread; it only delays the moment the player joins.
+     * 
+     * Accounts won't be created here, as the login may still be refused by the server. That will
+     * happen when the player joins, as it did before.
+     * 
+     * @param username  Username of the player who is logging in.
+     * @param address   The IP address from which they are logging in.
+     */
+    public void prefetchAccount(final String username, final String address) {
+        final CountDownLatch latch = new CountDownLatch(1);
+        mMainThreadExecutor.execute(new Runnable() {
+            public void run() {
+                mAccountDatabase.prefetchAccount(username, address).then(new PromiseResultHandler<AccountData>() {
+                    public void onFulfilled(AccountData accountData) {
+                        latch.countDown();
+                    }
+                    public void onRejected(PromiseError error) {
+                        latch.countDown();
+                    }
+                });
+            }
+        });
+        
+        try {
+            latch.await(MAXIMUM_PREFETCH_WAIT_MS, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException exception) {
+            Thread.currentThread().interrupt();
+        }
+    }
+    
     /**
      * Loads the account, and don't fire the onPlayerJoined event on the dispatcher until their
      * information has been loaded and verified. This will be called for all online players when the
@@ -152,7 +223,14 @@ public class AccountManager {
         mConnectionMessage.send(player, Color.GOLD);
         
         mPlayerAccountMap.put(player,  new Account());
-        mAccountDatabase.loadOrCreateAccount(player).then(new PromiseResultHandler<AccountData>() {
+        
+        final CancellationScope sessionScope = new CancellationScope();
+        mSessionScopeMap.put(player, sessionScope);
+        
+        final Promise<AccountData> accountPromise =
+                mAccountDatabase.loadOrCreateAccount(player).withTimeout(ACCOUNT_LOAD_TIMEOUT_TICKS);
+        
+        sessionScope.track(accountPromise).then(new PromiseResultHandler<AccountData>() {
             public void onFulfilled(AccountData accountData) {
                 if (!player.isOnline())
                     return;
@@ -171,6 +249,10 @@ public class AccountManager {
 
             // Something went wrong when trying to create an account for this player.
             public void onRejected(PromiseError error) {
+                // The load will be cancelled when the player disconnected before it finished.
+                if (error instanceof PromiseCancelledError)
+                    return;
+                
                 if (!player.isOnline())
                     return;
                 
@@ -240,6 +322,13 @@ public class AccountManager {
             return;
         }
         
+        // Only a single password may be verified for a player at a time, so that they can't queue
+        // up guesses faster than they're being verified.
+        if (authenticationRequest.verifying) {
+            player.sendMessage("Your password is still being verified, please wait a moment.");
+            return;
+        }
+        
         if (++authenticationRequest.attempts >= MAXIMUM_AUTHENTICATION_ATTEMPTS) {
             PlayerLog.note(authenticationRequest.accountData.user_id, NoteType.KICK, 0, "Mineground", "Too many invalid login attempts.");
             player.kickPlayer("You have been disconnected from Mineground (too many invalid passwords).");
@@ -250,25 +339,50 @@ public class AccountManager {
         if (account == null)
             throw new RuntimeException("|account| must not be NULL here.");
         
-        String password = arguments[0];
-        try {
-            if (!SecurePasswordHash.validatePassword(password, authenticationRequest.accountData.password)) {
-                mInvalidPasswordMessage.send(player, Color.ACTION_REQUIRED);
-            } else {
+        // Verify the password on the hashing pool. The promise will be settled on the main thread,
+        // and will be cancelled by the session scope when the player disconnects in the meantime.
+        authenticationRequest.verifying = true;
+        
+        final Promise<Boolean> verification =
+                mPasswordVerifier.verify(arguments[0], authenticationRequest.accountData.password);
+        
+        mSessionScopeMap.get(player).track(verification).then(new PromiseResultHandler<Boolean>() {
+            public void onFulfilled(Boolean valid) {
+                authenticationRequest.verifying = false;
+                if (mAuthenticationRequestMap.get(player) != authenticationRequest)
+                    return;
+                
+                if (!valid) {
+                    mInvalidPasswordMessage.send(player, Color.ACTION_REQUIRED);
+                    return;
+                }
+                
                 didAuthenticatePlayer(player, authenticationRequest.accountData, authenticationRequest.dispatcher);
                 mAuthenticationRequestMap.remove(player);
-            }   
-        } catch (NoSuchAlgorithmException | InvalidKeySpecException e) {
-            // This is very bad -- it means the server does not support the PBKDF2 password
-            // algorithm. We can't recover from this, given that's how we hash all the passwords..
-            player.sendMessage(Color.SCRIPT_ERROR + "PBKDF2 is not available on the server, please notify an admin!");
-            e.printStackTrace();
-        } catch (NumberFormatException e) {
-            // This is very bad -- it means the PasswordHash implementation threw an exception for
-            // other reasons, e.g. because the stored hash is invalid.
-            player.sendMessage(Color.SCRIPT_ERROR + "The password algorithm crashed, please notify an admin!");
-            e.printStackTrace();
-        }
+            }
+            public void onRejected(PromiseError error) {
+                authenticationRequest.verifying = false;
+                if (error instanceof PromiseCancelledError)
+                    return;
+                
+                // Attempts which couldn't be verified because the server is busy don't count.
+                if (error instanceof PasswordVerifier.BusyError) {
+                    --authenticationRequest.attempts;
+                    player.sendMessage(error.reason());
+                    return;
+                }
+                
+                player.sendMessage(Color.SCRIPT_ERROR + error.reason());
+            }
+        });
+    }
+    
+    /**
+     * Stops the pool on which passwords are being verified. Must be called when the plugin is
+     * being disabled, after the accounts of all online players have been unloaded.
+     */
+    public void shutdown() {
+        mPasswordVerifier.shutdown();
     }
     
     /**
@@ -331,6 +445,12 @@ public class AccountManager {
         mPlayerLastLoginMessageMap.remove(player);
         mAuthenticationRequestMap.remove(player);
         mOnlineStaff.remove(player);
+        
+        // Cancel the work which is still in progress for the player's session, for example loading
+        // their account. There is no point in waiting for the database for a player who has left.
+        final CancellationScope sessionScope = mSessionScopeMap.remove(player);
+        if (sessionScope != null)
+            sessionScope.cancel();
 
         final Account account = mPlayerAccountMap.get(player);
         if (account == null)
@@ -346,6 +466,17 @@ public class AccountManager {
         account.terminate(player);
     }
     
+    /**
+     * Returns the cancellation scope of |player|'s session, which will be cancelled when they
+     * disconnect from the server. Returns NULL when no session exists for the player.
+     * 
+     * @param player    The player to get the session scope for.
+     * @return          The player's CancellationScope, or NULL.
+     */
+    public CancellationScope getSessionScope(Player player) {
+        return mSessionScopeMap.get(player);
+    }
+    
     /**
      * Finds the user Id for a given <code>username</code>. If the user is currently online on
      * Mineground, the promise will be resolved immediately without consulting the database.
@@ -0,0 +1,156 @@
+/**
+ * Copyright (c) 2011 - 2014 Mineground, Las Venturas Playground
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.mineground.account;
+
+import java.security.NoSuchAlgorithmException;
+import java.security.spec.InvalidKeySpecException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+import com.mineground.base.ConcurrentPromise;
+import com.mineground.base.Promise;
+import com.mineground.base.PromiseCancellationHandler;
+import com.mineground.base.PromiseError;
+import com.mineground.base.SecurePasswordHash;
+
+/**
+ * Verifies passwords against their PBKDF2 hashes on a small pool of worker threads, so that players
+ * logging in don't stall the server's tick. Results are delivered on the main thread.
+ *
+ * The pool is bounded both in threads and in queued verifications. When it's saturated, e.g. while
+ * somebody is trying to brute-force a password, further verifications will be rejected with a
+ * BusyError rather than queueing up, so that hashing can't take the CPU away from the server.
+ */
+class PasswordVerifier {
+    /**
+     * Maximum number of verifications which may be waiting for a worker thread.
+     */
+    private static final int MAXIMUM_QUEUED_VERIFICATIONS = 8;
+    
+    /**
+     * Maximum number of milliseconds to wait for running verifications when shutting down.
+     */
+    private static final int MAXIMUM_SHUTDOWN_TIME_MS = 1000;
+    
+    private static final Logger sLogger = Logger.getLogger(PasswordVerifier.class.getCanonicalName());
+    
+    /**
+     * Error with which verifications will be rejected when the pool cannot accept more work.
+     */
+    static class BusyError extends PromiseError {
+        BusyError() {
+            super("The server is busy verifying other logins, please try again in a moment.");
+        }
+    }
+    
+    /**
+     * The bounded pool of hashing threads, and its queue of pending verifications.
+     */
+    private final ThreadPoolExecutor mExecutor;
+    
+    /**
+     * Executor on which the promises returned by verify() will be settled.
+     */
+    private final Executor mMainThreadExecutor;
+    
+    PasswordVerifier(Executor mainThreadExecutor) {
+        mMainThreadExecutor = mainThreadExecutor;
+        
+        // Use half of the available processors, at most two, as the server needs the others for
+        // its ticks. A single-core host still gets one (low priority) thread, as hashing on the
+        // main thread instead would stall the server for every login.
+        final int threadCount = Math.max(1, Math.min(2, Runtime.getRuntime().availableProcessors() / 2));
+        mExecutor = new ThreadPoolExecutor(threadCount, threadCount, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(MAXIMUM_QUEUED_VERIFICATIONS), new ThreadFactory() {
+                    private final AtomicInteger mThreadNumber = new AtomicInteger();
+                    public Thread newThread(Runnable runnable) {
+                        final Thread thread = new Thread(runnable, "MinegroundPasswordHashing-" + mThreadNumber.incrementAndGet());
+                        thread.setDaemon(true);
+                        thread.setPriority(Thread.MIN_PRIORITY);
+                        return thread;
+                    }
+                }, new ThreadPoolExecutor.AbortPolicy());
+    }
+    
+    /**
+     * Verifies |password| against |correctHash| on one of the hashing threads. The returned promise
+     * will be settled on the main thread, and resolved with whether the password is correct. It
+     * will be rejected with a BusyError when the pool is saturated, or with another error when the
+     * hash could not be computed. Cancelling the promise removes a verification which is still
+     * waiting for a thread from the queue.
+     * 
+     * @param password      The password which has been entered by the player.
+     * @param correctHash   The stored PBKDF2 hash of their password.
+     * @return              A promise, which will be resolved with whether the password is correct.
+     */
+    Promise<Boolean> verify(final String password, final String correctHash) {
+        final ConcurrentPromise<Boolean> promise = new ConcurrentPromise<Boolean>(mMainThreadExecutor);
+        final Runnable verification = new Runnable() {
+            public void run() {
+                if (promise.isCancelled())
+                    return;
+                
+                try {
+                    promise.resolve(SecurePasswordHash.validatePassword(password, correctHash));
+                    
+                } catch (NoSuchAlgorithmException | InvalidKeySpecException e) {
+                    // This is very bad -- it means the server does not support the PBKDF2 password
+                    // algorithm. We can't recover from this, given that's how we hash all passwords.
+                    sLogger.severe("PBKDF2 is not available on the server: " + e.getMessage());
+                    promise.reject("PBKDF2 is not available on the server, please notify an admin!");
+                    
+                } catch (RuntimeException e) {
+                    // The stored hash is invalid, or the implementation failed for other reasons.
+                    sLogger.severe("Unable to verify a password: " + e);
+                    promise.reject("The password algorithm crashed, please notify an admin!");
+                }
+            }
+        };
+        
+        promise.onCancelled(new PromiseCancellationHandler() {
+            public void onCancelled() {
+                mExecutor.remove(verification);
+            }
+        });
+        
+        try {
+            mExecutor.execute(verification);
+        } catch (RejectedExecutionException e) {
+            promise.reject(new BusyError());
+        }
+        
+        return promise;
+    }
+    
+    /**
+     * Stops the hashing threads. Verifications which are still queued will be discarded, whereas
+     * running ones will be given a brief moment to finish.
+     */
+    void shutdown() {
+        mExecutor.shutdownNow();
+        try {
+            mExecutor.awaitTermination(MAXIMUM_SHUTDOWN_TIME_MS, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -20,6 +20,7 @@ import java.util.List;
 
 import com.mineground.base.Promise;
 import com.mineground.base.PromiseError;
+import com.mineground.base.PromiseFunction;
 import com.mineground.base.PromiseResultHandler;
 import com.mineground.database.Database;
 import com.mineground.database.DatabaseResult;
@@ -222,15 +223,16 @@ public class PlayerLog {
      * @return         A promise, which will be resolved when the notes are available.
      */
     public static Promise<List<Note>> findNotes(String username) {
-        final Promise<List<Note>> promise = new Promise<List<Note>>();
-        if (sLatestNotesStatement == null) {
-            promise.reject("The database has not been initialized yet.");
-            return promise;
-        }
+        if (sLatestNotesStatement == null)
+            return Promise.rejected("The database has not been initialized yet.");
 
         sLatestNotesStatement.setString(1, username);
-        sLatestNotesStatement.execute().then(new PromiseResultHandler<DatabaseResult>() {
-            public void onFulfilled(DatabaseResult result) {
+        return sLatestNotesStatement.execute().recover(new PromiseFunction<PromiseError, Promise<DatabaseResult>>() {
+            public Promise<DatabaseResult> apply(PromiseError error) {
+                return Promise.rejected("Unable to read notes from the database (" + error.reason() + ")");
+            }
+        }).map(new PromiseFunction<DatabaseResult, List<Note>>() {
+            public List<Note> apply(DatabaseResult result) {
                 final List<Note> notes = new ArrayList<Note>(result.rows.size());
                 for (DatabaseResultRow noteRow : result.rows) {
                     Note note = new Note();
@@ -244,14 +246,9 @@ public class PlayerLog {
                     notes.add(note);
                 }
                 
-                promise.resolve(notes);
-            }
-            public void onRejected(PromiseError error) {
-                promise.reject("Unable to read notes from the database (" + error.reason() + ")");
+                return notes;
             }
         });
-        
-        return promise;
     }
 
     /**
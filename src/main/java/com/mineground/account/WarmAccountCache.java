@@ -0,0 +1,130 @@
+/**
+ * Copyright (c) 2011 - 2014 Mineground, Las Venturas Playground
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.mineground.account;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Bounded cache of the accounts of players who recently disconnected, so that a player who rejoins
+ * shortly afterwards, e.g. after their client crashed, can be authenticated without loading their
+ * account from the database again. Entries expire after a fixed time-to-live, and the least
+ * recently used entry will be evicted when the cache is full.
+ *
+ * The cached AccountData reflects the values written to the database when the account was
+ * unloaded, including the last_ip and last_seen fields. Accounts are keyed by their lowercase
+ * username, as usernames in the database are compared case insensitively. This class must only be
+ * used on the main thread.
+ */
+class WarmAccountCache {
+    /**
+     * A cached account, together with the time at which it expires, as per System.nanoTime().
+     */
+    private static class CachedAccount {
+        public final AccountData accountData;
+        public final long expirationTime;
+        
+        public CachedAccount(AccountData accountData_, long expirationTime_) {
+            accountData = accountData_;
+            expirationTime = expirationTime_;
+        }
+    }
+    
+    /**
+     * The cached accounts, in access order, so that the eldest entry is the least recently used.
+     */
+    private final LinkedHashMap<String, CachedAccount> mEntries;
+    
+    /**
+     * Number of nanoseconds for which an account remains in the cache.
+     */
+    private final long mTimeToLiveNanos;
+    
+    WarmAccountCache(final int capacity, long timeToLive, TimeUnit unit) {
+        mEntries = new LinkedHashMap<String, CachedAccount>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+            
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CachedAccount> eldest) {
+                return size() > capacity;
+            }
+        };
+        
+        mTimeToLiveNanos = unit.toNanos(timeToLive);
+    }
+    
+    /**
+     * Stores |accountData| in the cache, replacing a previously cached version of the account.
+     * Expired accounts will be removed from the cache as well.
+     * 
+     * @param accountData   The account data which has just been written to the database.
+     */
+    void put(AccountData accountData) {
+        final long now = System.nanoTime();
+        removeExpired(now);
+        
+        mEntries.put(accountData.username.toLowerCase(), new CachedAccount(accountData, now + mTimeToLiveNanos));
+    }
+    
+    /**
+     * Returns the account of |username| without removing it from the cache, unless it has expired.
+     * Used while the player is still logging in, as the login may yet be refused.
+     * 
+     * @param username  Username of the player whose account should be returned.
+     * @return          The cached account data, or NULL when it's not available.
+     */
+    AccountData peek(String username) {
+        final CachedAccount entry = mEntries.get(username.toLowerCase());
+        if (entry == null || entry.expirationTime - System.nanoTime() <= 0)
+            return null;
+        
+        return entry.accountData;
+    }
+    
+    /**
+     * Removes the account of |username| from the cache and returns it, unless it has expired. An
+     * account can only be taken once, after which its owner will be using it again.
+     * 
+     * @param username  Username of the player whose account should be taken.
+     * @return          The cached account data, or NULL when it's not available.
+     */
+    AccountData take(String username) {
+        final CachedAccount entry = mEntries.remove(username.toLowerCase());
+        if (entry == null || entry.expirationTime - System.nanoTime() <= 0)
+            return null;
+        
+        return entry.accountData;
+    }
+    
+    /**
+     * Removes the expired entries from the cache. Since all entries have the same time-to-live,
+     * entries will expire in the order in which they were stored, which is the access order for
+     * all entries which haven't been taken again.
+     * 
+     * @param now   The current time, as per System.nanoTime().
+     */
+    private void removeExpired(long now) {
+        final Iterator<CachedAccount> iterator = mEntries.values().iterator();
+        while (iterator.hasNext()) {
+            if (iterator.next().expirationTime - now > 0)
+                break;
+            
+            iterator.remove();
+        }
+    }
+}
@@ -0,0 +1,228 @@
+/**
+ * Copyright (c) 2011 - 2014 Mineground, Las Venturas Playground
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.mineground.base;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executor;
+
+import org.bukkit.Server;
+import org.bukkit.command.CommandSender;
+import org.bukkit.permissions.Permission;
+import org.bukkit.permissions.PermissionAttachment;
+import org.bukkit.permissions.PermissionAttachmentInfo;
+import org.bukkit.plugin.Plugin;
+
+/**
+ * Command sender passed to commands which are being executed asynchronously. Messages sent to it
+ * will be delivered to the actual sender on the main thread, in the order they were sent, and its
+ * permissions will be answered from a snapshot taken when the command was executed.
+ *
+ * The snapshot is a plain map of the sender's effective permissions, so that taking it is cheap,
+ * even for operators with hundreds of permissions. Permissions which have not been set for the
+ * sender will only be granted to operators, which is the default for all permissions defined in
+ * Mineground's plugin.yml. Changing the permissions or operator status of this sender is supported,
+ * but will only apply to the snapshot, never to the actual sender. Child permissions of permissions
+ * added through an attachment will not be expanded.
+ */
+public class AsyncCommandSender implements CommandSender {
+    private final CommandSender mSender;
+    private final Executor mMainThreadExecutor;
+    
+    private final String mName;
+    private final Server mServer;
+    private final boolean mIsRemote;
+    
+    /**
+     * The effective permissions of the actual sender when the command was executed, keyed by the
+     * lowercase permission name. Not modified after construction.
+     */
+    private final Map<String, PermissionAttachmentInfo> mSnapshot;
+    
+    /**
+     * Attachments which have been added to this sender, and the effective permissions which result
+     * from applying them on top of the snapshot. The latter will be replaced as a whole whenever
+     * the permissions get recalculated, so that it can be read without synchronization.
+     */
+    private final List<PermissionAttachment> mAttachments;
+    private volatile Map<String, PermissionAttachmentInfo> mPermissions;
+    private volatile boolean mIsOp;
+    
+    /**
+     * Creates a new asynchronous sender for |sender|. Must be called on the main thread.
+     * 
+     * @param sender                The sender who executed the command.
+     * @param mainThreadExecutor    Executor through which messages will be delivered to |sender|.
+     */
+    public AsyncCommandSender(CommandSender sender, Executor mainThreadExecutor) {
+        mSender = sender;
+        mMainThreadExecutor = mainThreadExecutor;
+        
+        mName = sender.getName();
+        mServer = sender.getServer();
+        mIsOp = sender.isOp();
+        mIsRemote = EntityUtils.isRemoteCommandSender(sender);
+        
+        mSnapshot = new HashMap<String, PermissionAttachmentInfo>();
+        for (PermissionAttachmentInfo permission : sender.getEffectivePermissions())
+            mSnapshot.put(permission.getPermission().toLowerCase(), permission);
+        
+        mAttachments = new ArrayList<PermissionAttachment>();
+        mPermissions = mSnapshot;
+    }
+    
+    /**
+     * Returns whether the actual sender of the command is a remote command sender.
+     * 
+     * @return Whether the actual sender is remote.
+     */
+    public boolean isRemote() { return mIsRemote; }
+    
+    @Override
+    public void sendMessage(final String message) {
+        mMainThreadExecutor.execute(new Runnable() {
+            public void run() {
+                mSender.sendMessage(message);
+            }
+        });
+    }
+    
+    @Override
+    public void sendMessage(final String[] messages) {
+        mMainThreadExecutor.execute(new Runnable() {
+            public void run() {
+                mSender.sendMessage(messages);
+            }
+        });
+    }
+    
+    @Override
+    public Server getServer() { return mServer; }
+    
+    @Override
+    public String getName() { return mName; }
+    
+    @Override
+    public boolean isOp() { return mIsOp; }
+    
+    @Override
+    public void setOp(boolean value) { mIsOp = value; }
+    
+    @Override
+    public boolean isPermissionSet(String name) {
+        return mPermissions.containsKey(name.toLowerCase());
+    }
+    
+    @Override
+    public boolean isPermissionSet(Permission permission) {
+        return isPermissionSet(permission.getName());
+    }
+    
+    @Override
+    public boolean hasPermission(String name) {
+        final PermissionAttachmentInfo permission = mPermissions.get(name.toLowerCase());
+        if (permission == null)
+            return mIsOp;
+        
+        return permission.getValue();
+    }
+    
+    @Override
+    public boolean hasPermission(Permission permission) {
+        return hasPermission(permission.getName());
+    }
+    
+    @Override
+    public Set<PermissionAttachmentInfo> getEffectivePermissions() {
+        return Collections.unmodifiableSet(new HashSet<PermissionAttachmentInfo>(mPermissions.values()));
+    }
+    
+    @Override
+    public PermissionAttachment addAttachment(Plugin plugin, String name, boolean value) {
+        final PermissionAttachment attachment = addAttachment(plugin);
+        attachment.setPermission(name, value);
+        return attachment;
+    }
+    
+    @Override
+    public PermissionAttachment addAttachment(Plugin plugin) {
+        final PermissionAttachment attachment = new PermissionAttachment(plugin, this);
+        synchronized (mAttachments) {
+            mAttachments.add(attachment);
+        }
+        
+        recalculatePermissions();
+        return attachment;
+    }
+    
+    @Override
+    public PermissionAttachment addAttachment(Plugin plugin, String name, boolean value, int ticks) {
+        final PermissionAttachment attachment = addAttachment(plugin, ticks);
+        attachment.setPermission(name, value);
+        return attachment;
+    }
+    
+    @Override
+    public PermissionAttachment addAttachment(Plugin plugin, int ticks) {
+        final PermissionAttachment attachment = addAttachment(plugin);
+        mServer.getScheduler().scheduleSyncDelayedTask(plugin, new Runnable() {
+            public void run() {
+                attachment.remove();
+            }
+        }, ticks);
+        
+        return attachment;
+    }
+    
+    @Override
+    public void removeAttachment(PermissionAttachment attachment) {
+        synchronized (mAttachments) {
+            if (!mAttachments.remove(attachment))
+                throw new IllegalArgumentException("The given attachment is not part of this sender.");
+        }
+        
+        recalculatePermissions();
+    }
+    
+    /**
+     * Rebuilds the effective permissions by applying the permissions of each of the attachments, in
+     * the order in which they were added, on top of the snapshot.
+     */
+    @Override
+    public void recalculatePermissions() {
+        synchronized (mAttachments) {
+            if (mAttachments.isEmpty()) {
+                mPermissions = mSnapshot;
+                return;
+            }
+            
+            final Map<String, PermissionAttachmentInfo> permissions = new HashMap<String, PermissionAttachmentInfo>(mSnapshot);
+            for (PermissionAttachment attachment : mAttachments) {
+                for (Map.Entry<String, Boolean> entry : attachment.getPermissions().entrySet()) {
+                    final String name = entry.getKey().toLowerCase();
+                    permissions.put(name, new PermissionAttachmentInfo(this, name, attachment, entry.getValue()));
+                }
+            }
+            
+            mPermissions = permissions;
+        }
+    }
+}
@@ -0,0 +1,35 @@
+/**
+ * Copyright (c) 2011 - 2014 Mineground, Las Venturas Playground
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.mineground.base;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Event observers annotated with @AsyncEventHandler will be invoked on a worker thread rather than
+ * on the thread firing the event, which usually is the main server thread. Use this for observers
+ * which don't need the Bukkit API, for example to echo an event to IRC or to write statistics.
+ *
+ * Asynchronous observers receive an immutable snapshot of the event: Player arguments will be
+ * replaced by a PlayerSnapshot, so the observer's parameter must be declared as such. Only events
+ * whose arguments can be snapshotted may be observed asynchronously. The observers of a single
+ * instance will be invoked in the order the events were fired, one at a time.
+ */
+@Target(value = ElementType.METHOD)
+@Retention(value = RetentionPolicy.RUNTIME)
+public @interface AsyncEventHandler {}
@@ -0,0 +1,104 @@
+/**
+ * Copyright (c) 2011 - 2014 Mineground, Las Venturas Playground
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.mineground.base;
+
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/**
+ * A cancellation scope tracks promises whose results are only relevant for as long as the scope is
+ * alive, for example the session of a player. Cancelling the scope cancels all tracked promises
+ * which are still pending, which in turn cancels the work producing them, such as queued queries.
+ *
+ * Only track promises for work which may safely be abandoned. Writes, for example saving a player's
+ * account or creating a warp, must complete regardless of whether the player is still around.
+ */
+public class CancellationScope {
+    /**
+     * The promises which have been tracked by this scope, and have not been settled yet. The map
+     * is used as an identity set, promises don't implement equals() and hashCode().
+     */
+    private final Map<Promise<?>, Boolean> mPendingPromises;
+    
+    private boolean mCancelled;
+    
+    public CancellationScope() {
+        mPendingPromises = new IdentityHashMap<Promise<?>, Boolean>();
+    }
+    
+    /**
+     * Tracks |promise| until it has been settled. If this scope gets cancelled in the mean time,
+     * the promise will be cancelled as well. Promises tracked by a scope which has already been
+     * cancelled will be cancelled immediately.
+     * 
+     * @param promise   The promise which should be tracked.
+     * @return          The |promise|, to allow for chaining.
+     */
+    public <SuccessValueType> Promise<SuccessValueType> track(final Promise<SuccessValueType> promise) {
+        if (mCancelled) {
+            promise.cancel();
+            return promise;
+        }
+        
+        mPendingPromises.put(promise, Boolean.TRUE);
+        promise.then(new PromiseResultHandler<SuccessValueType>() {
+            public void onFulfilled(SuccessValueType result) {
+                mPendingPromises.remove(promise);
+            }
+            public void onRejected(PromiseError error) {
+                mPendingPromises.remove(promise);
+            }
+        });
+        
+        return promise;
+    }
+    
+    /**
+     * Cancels this scope and all the pending promises it tracks. Handlers of those promises will be
+     * invoked with a PromiseCancelledError, which they should silently ignore.
+     */
+    public void cancel() {
+        if (mCancelled)
+            return;
+        
+        mCancelled = true;
+        
+        // Cancelling a promise removes it from |mPendingPromises|, so iterate over a copy.
+        final Promise<?>[] promises = mPendingPromises.keySet().toArray(new Promise<?>[mPendingPromises.size()]);
+        mPendingPromises.clear();
+        
+        for (Promise<?> promise : promises)
+            promise.cancel();
+    }
+    
+    /**
+     * Returns whether this scope has been cancelled.
+     * 
+     * @return Whether the scope has been cancelled.
+     */
+    public boolean isCancelled() {
+        return mCancelled;
+    }
+    
+    /**
+     * Returns the number of promises tracked by this scope which are still pending.
+     * 
+     * @return Number of pending promises.
+     */
+    public int size() {
+        return mPendingPromises.size();
+    }
+}
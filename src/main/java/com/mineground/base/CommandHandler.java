@@ -70,4 +70,29 @@ public @interface CommandHandler {
      * "!foo", whereas the IrcManager will be responsible for curating appropriate permissions.
      */
     boolean remote() default false;
+    
+    /**
+     * The permission which the sender must have in order to execute this command. The permission
+     * will be checked before the command's arguments are bound to the handler's parameters, so that
+     * senders without it won't learn about the arguments, e.g. whether a given player is online.
+     * 
+     * @return The permission required for this command, or an empty string for none.
+     */
+    String permission() default "";
+    
+    /**
+     * The error message displayed to senders who don't have the command's permission. Highlights
+     * may be used, as with all command errors.
+     * 
+     * @return The error message to display when the sender lacks the permission.
+     */
+    String permissionMessage() default "You don't have permission to use this command.";
+    
+    /**
+     * Whether this command may be executed on a worker thread, rather than on the main thread. This
+     * is meant for commands which only have to read the state of the server, e.g. to list online
+     * players. Asynchronous commands must not use the Bukkit API: the sender they receive will be
+     * an AsyncCommandSender, and a ServerSnapshot may be declared as their second parameter.
+     */
+    boolean async() default false;
 }
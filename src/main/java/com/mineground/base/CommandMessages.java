@@ -0,0 +1,92 @@
+/**
+ * Copyright (c) 2011 - 2014 Mineground, Las Venturas Playground
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.mineground.base;
+
+import org.bukkit.command.CommandSender;
+
+/**
+ * Formats the messages displayed in response to a command, in a consistent way for in-game players,
+ * the console and remote users. Features should use the convenience methods in FeatureBase, this
+ * class exists for code which doesn't have access to those, such as the CommandManager.
+ */
+public class CommandMessages {
+    /**
+     * Displays |message| as a description for the command which was just executed, and probably
+     * misunderstood by the player. The description will be formatted in a consistent way.
+     * 
+     * @param destination   The player or console to inform.
+     * @param message       The description of the executed command.
+     */
+    public static void displayDescription(CommandSender destination, String message) {
+        if (EntityUtils.isRemoteCommandSender(destination)) {
+            destination.sendMessage("10» " + message);
+        } else {
+            destination.sendMessage("§f" + message);
+        }
+    }
+    
+    /**
+     * Displays |usage| as the proper way to use the command which was just executed by the player.
+     * The message will be formatted in a consistent way.
+     * 
+     * @param destination   The player or console to inform.
+     * @param usage         The proper way to use the executed command.
+     */
+    public static void displayUsage(CommandSender destination, String usage) {
+        if (EntityUtils.isRemoteCommandSender(destination)) {
+            destination.sendMessage("10» Usage: " + usage.replaceFirst("^/", "!"));
+        } else {
+            destination.sendMessage("§2Usage§r: " + usage);
+        }
+    }
+    
+    /**
+     * Displays |message| to |destination| to inform them that a recently executed command has been
+     * executed successfully, and the action has been put through as well.
+     * 
+     * Highlights may be used in the <code>message</code> by surrounding a set of words by two
+     * asterisks: foo **bar** baz ("baz" would be highlighted).
+     * 
+     * @param destination   The player to inform about the executed command.
+     * @param message       The message to share with them.
+     */
+    public static void displaySuccess(CommandSender destination, String message) {
+        if (EntityUtils.isRemoteCommandSender(destination)) {
+            destination.sendMessage("03» " + message.replaceAll("\\*\\*(.+?)\\*\\*", "10$103"));
+        } else {
+            destination.sendMessage("§2" + message.replaceAll("\\*\\*(.+?)\\*\\*", "§a$1§2"));
+        }
+    }
+    
+    /**
+     * Displays <code>message</code> to <code>destination</code> to inform them of something which
+     * went wrong when they just executed a command. This should not be used when the command was
+     * used wrongly, but rather when the requested option is not available.
+     * 
+     * Highlights may be used in the <code>message</code> by surrounding a set of words by two
+     * asterisks: foo **bar** baz ("baz" would be highlighted).
+     * 
+     * @param destination   The player to inform about the error.
+     * @param message       The error which occurred while running this command.
+     */
+    public static void displayError(CommandSender destination, String message) {
+        if (EntityUtils.isRemoteCommandSender(destination)) {
+            destination.sendMessage("04» " + message.replaceAll("\\*\\*(.+?)\\*\\*", "05$104"));
+        } else {
+            destination.sendMessage("§c" + message.replaceAll("\\*\\*(.+?)\\*\\*", "§4$1§c"));
+        }
+    }
+}
@@ -0,0 +1,271 @@
+/**
+ * Copyright (c) 2011 - 2014 Mineground, Las Venturas Playground
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.mineground.base;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+
+/**
+ * A Promise which may be settled from any thread, and which delivers its result handlers on the
+ * Executor it has been created with. This makes it safe to hand a promise to another thread, for
+ * example a worker pool, and have the thread settle it directly: handlers attached on the main
+ * thread will be invoked on the main thread when the promise has been created with the
+ * MainThreadExecutor, regardless of the thread which settled it.
+ *
+ * State transitions are lock-free. While pending, |mState| holds the stack of attached handlers;
+ * settling the promise atomically swaps the stack for the outcome, after which the handlers will
+ * be dispatched in the order in which they were attached. Handlers attached after the promise was
+ * settled will be dispatched to the executor immediately.
+ *
+ * Cancellation handlers are invoked on the thread which cancels the promise, since they generally
+ * have to stop work owned by the producer. They must be safe to call from any thread.
+ *
+ * @param <SuccessValueType> Type of the value the promise will be resolved with.
+ */
+public class ConcurrentPromise<SuccessValueType> extends Promise<SuccessValueType> {
+    /**
+     * Executor which runs tasks immediately on the calling thread. Handlers of promises created
+     * with this executor will be invoked on whichever thread settles the promise.
+     */
+    public static final Executor INLINE_EXECUTOR = new Executor() {
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+    
+    /**
+     * The outcome of a settled promise. Stored in |mState| once the promise has been settled.
+     */
+    private static class Outcome {
+        public final Object value;
+        public final PromiseError error;
+        public final boolean cancelled;
+        
+        public Outcome(Object value_, PromiseError error_, boolean cancelled_) {
+            value = value_;
+            error = error_;
+            cancelled = cancelled_;
+        }
+    }
+    
+    /**
+     * Node in one of the stacks of attached handlers. The stacks are immutable once created, so
+     * they can safely be shared between threads.
+     */
+    private static class HandlerNode {
+        public final Object handler;
+        public final HandlerNode next;
+        
+        public HandlerNode(Object handler_, HandlerNode next_) {
+            handler = handler_;
+            next = next_;
+        }
+    }
+    
+    /**
+     * Marker stored in |mCancellationState| once the promise has been settled, after which the
+     * cancellation handlers have either been invoked, or will never be invoked anymore.
+     */
+    private static final HandlerNode CANCELLATION_DONE = new HandlerNode(null, null);
+    
+    @SuppressWarnings("rawtypes")
+    private static final AtomicReferenceFieldUpdater<ConcurrentPromise, Object> sStateUpdater =
+            AtomicReferenceFieldUpdater.newUpdater(ConcurrentPromise.class, Object.class, "mState");
+    
+    @SuppressWarnings("rawtypes")
+    private static final AtomicReferenceFieldUpdater<ConcurrentPromise, HandlerNode> sCancellationStateUpdater =
+            AtomicReferenceFieldUpdater.newUpdater(ConcurrentPromise.class, HandlerNode.class, "mCancellationState");
+    
+    /**
+     * Executor on which the result handlers of this promise will be invoked.
+     */
+    private final Executor mExecutor;
+    
+    /**
+     * Either a HandlerNode (or NULL) while the promise is pending, or an Outcome once settled.
+     */
+    private volatile Object mState;
+    
+    /**
+     * Stack of cancellation handlers, or CANCELLATION_DONE once the promise has been settled.
+     */
+    private volatile HandlerNode mCancellationState;
+    
+    public ConcurrentPromise(Executor executor) {
+        mExecutor = executor;
+    }
+    
+    /**
+     * Attaches a new result handler to this promise. The handler will be invoked on the executor
+     * once the promise has been settled, or as soon as possible if that already happened.
+     *
+     * @param handler The result handler which will be notified when the promise resolves.
+     */
+    @Override
+    public void then(PromiseResultHandler<SuccessValueType> handler) {
+        while (true) {
+            final Object state = mState;
+            if (state instanceof Outcome) {
+                dispatch((Outcome) state, new HandlerNode(handler, null));
+                return;
+            }
+            
+            if (sStateUpdater.compareAndSet(this, state, new HandlerNode(handler, (HandlerNode) state)))
+                return;
+        }
+    }
+    
+    /**
+     * Resolves this promise with |value|. May be called from any thread. The promise must not have
+     * been previously settled, unless it has been cancelled, in which case the call is ignored.
+     *
+     * @param value The value the Promise was resolved with.
+     * @throws PromiseSettledException When the Promise has already been settled.
+     */
+    @Override
+    public void resolve(SuccessValueType value) throws PromiseSettledException {
+        if (!settle(new Outcome(value, null, false)) && !isCancelled())
+            throw new PromiseSettledException();
+    }
+    
+    /**
+     * Rejects this promise because of |error|. May be called from any thread. The promise must not
+     * have been previously settled, unless it has been cancelled, in which case the call is ignored.
+     *
+     * @param error The reason the Promise has been rejected.
+     * @throws PromiseSettledException When the Promise has already been settled.
+     */
+    @Override
+    public void reject(PromiseError error) throws PromiseSettledException {
+        if (!settle(new Outcome(null, error, false)) && !isCancelled())
+            throw new PromiseSettledException();
+    }
+    
+    /**
+     * Cancels this promise. May be called from any thread, and only the first attempt to settle the
+     * promise will succeed. Cancellation handlers will be invoked on the calling thread.
+     * 
+     * @return Whether the promise has been cancelled.
+     */
+    @Override
+    public boolean cancel() {
+        if (!settle(new Outcome(null, new PromiseCancelledError(), true)))
+            return false;
+        
+        HandlerNode handlers = reverse(sCancellationStateUpdater.getAndSet(this, CANCELLATION_DONE));
+        for (; handlers != null; handlers = handlers.next)
+            ((PromiseCancellationHandler) handlers.handler).onCancelled();
+        
+        return true;
+    }
+    
+    /**
+     * Attaches a cancellation handler to this promise. If the promise has already been cancelled,
+     * |handler| will be invoked immediately on the calling thread.
+     * 
+     * @param handler The handler which will be invoked when the promise gets cancelled.
+     */
+    @Override
+    public void onCancelled(PromiseCancellationHandler handler) {
+        while (true) {
+            final HandlerNode state = mCancellationState;
+            if (state == CANCELLATION_DONE) {
+                if (isCancelled())
+                    handler.onCancelled();
+                
+                return;
+            }
+            
+            if (sCancellationStateUpdater.compareAndSet(this, state, new HandlerNode(handler, state)))
+                return;
+        }
+    }
+    
+    /**
+     * Returns whether this promise has been cancelled. May be called from any thread.
+     * 
+     * @return Whether the promise has been cancelled.
+     */
+    @Override
+    public boolean isCancelled() {
+        final Object state = mState;
+        return state instanceof Outcome && ((Outcome) state).cancelled;
+    }
+    
+    /**
+     * Atomically settles this promise with |outcome|, and dispatches the attached result handlers
+     * to the executor. Only the first call will succeed, all others will return false.
+     * 
+     * @param outcome   The outcome to settle this promise with.
+     * @return          Whether this call settled the promise.
+     */
+    private boolean settle(Outcome outcome) {
+        while (true) {
+            final Object state = mState;
+            if (state instanceof Outcome)
+                return false;
+            
+            if (!sStateUpdater.compareAndSet(this, state, outcome))
+                continue;
+            
+            // Cancellation handlers are only invoked when the promise was cancelled, which will be
+            // taken care of by cancel(). Release them in all other cases.
+            if (!outcome.cancelled)
+                mCancellationState = CANCELLATION_DONE;
+            
+            if (state != null)
+                dispatch(outcome, reverse((HandlerNode) state));
+            
+            return true;
+        }
+    }
+    
+    /**
+     * Dispatches a single task to the executor which invokes each of the |handlers| with |outcome|.
+     * 
+     * @param outcome   The outcome with which the promise has been settled.
+     * @param handlers  The handlers to invoke, in the order in which they should be invoked.
+     */
+    private void dispatch(final Outcome outcome, final HandlerNode handlers) {
+        mExecutor.execute(new Runnable() {
+            @SuppressWarnings("unchecked")
+            public void run() {
+                for (HandlerNode node = handlers; node != null; node = node.next) {
+                    final PromiseResultHandler<SuccessValueType> handler = (PromiseResultHandler<SuccessValueType>) node.handler;
+                    if (outcome.error == null)
+                        handler.onFulfilled((SuccessValueType) outcome.value);
+                    else
+                        handler.onRejected(outcome.error);
+                }
+            }
+        });
+    }
+    
+    /**
+     * Reverses the stack of handlers starting at |node|, so that they'll be invoked in the order in
+     * which they were attached.
+     * 
+     * @param node  The top of the stack which should be reversed.
+     * @return      The top of the reversed stack.
+     */
+    private static HandlerNode reverse(HandlerNode node) {
+        HandlerNode reversed = null;
+        for (; node != null && node != CANCELLATION_DONE; node = node.next)
+            reversed = new HandlerNode(node.handler, reversed);
+        
+        return reversed;
+    }
+}
@@ -28,6 +28,9 @@ public class EntityUtils {
      * @return          Whether <code>sender</code> is a remote command sender.
      */
     public static boolean isRemoteCommandSender(CommandSender sender) {
+        if (sender instanceof AsyncCommandSender)
+            return ((AsyncCommandSender) sender).isRemote();
+        
         return sender instanceof RemoteCommandSender;
     }
 }
@@ -67,11 +67,7 @@ public class FeatureBase implements Feature {
      * @param message       The description of the executed command.
      */
     protected void displayCommandDescription(CommandSender destination, String message) {
-        if (EntityUtils.isRemoteCommandSender(destination)) {
-            destination.sendMessage("10» " + message);
-        } else {
-            destination.sendMessage("§f" + message);
-        }
+        CommandMessages.displayDescription(destination, message);
     }
     
     /**
@@ -82,11 +78,7 @@ public class FeatureBase implements Feature {
      * @param usage         The proper way to use the executed command.
      */
     protected void displayCommandUsage(CommandSender destination, String usage) {
-        if (EntityUtils.isRemoteCommandSender(destination)) {
-            destination.sendMessage("10» Usage: " + usage.replaceFirst("^/", "!"));
-        } else {
-            destination.sendMessage("§2Usage§r: " + usage);
-        }
+        CommandMessages.displayUsage(destination, usage);
     }
     
     /**
@@ -100,11 +92,7 @@ public class FeatureBase implements Feature {
      * @param message       The message to share with them.
      */
     protected void displayCommandSuccess(CommandSender destination, String message) {
-        if (EntityUtils.isRemoteCommandSender(destination)) {
-            destination.sendMessage("03» " + message.replaceAll("\\*\\*(.+?)\\*\\*", "10$103"));
-        } else {
-            destination.sendMessage("§2" + message.replaceAll("\\*\\*(.+?)\\*\\*", "§a$1§2"));
-        }
+        CommandMessages.displaySuccess(destination, message);
     }
     
     /**
@@ -119,11 +107,7 @@ public class FeatureBase implements Feature {
      * @param message       The error which occurred while running this command.
      */
     protected void displayCommandError(CommandSender destination, String message) {
-        if (EntityUtils.isRemoteCommandSender(destination)) {
-            destination.sendMessage("04» " + message.replaceAll("\\*\\*(.+?)\\*\\*", "05$104"));
-        } else {
-            destination.sendMessage("§c" + message.replaceAll("\\*\\*(.+?)\\*\\*", "§4$1§c"));
-        }
+        CommandMessages.displayError(destination, message);
     }
     
     /* ****************************************************************************************** *
@@ -232,6 +216,26 @@ public class FeatureBase implements Feature {
         return mInitParams.accountManager.getAccountForPlayer(player);
     }
     
+    /**
+     * Tracks |promise| in the session scope of |sender|, when it's a player, so that it will be
+     * cancelled when they disconnect before it settles. Only use this for work which can safely be
+     * abandoned, such as reads. Handlers will receive a PromiseCancelledError upon cancellation.
+     * 
+     * @param sender    The player or console the promise's result is relevant for.
+     * @param promise   The promise which should be tracked.
+     * @return          The |promise|, to allow for chaining.
+     */
+    protected <SuccessValueType> Promise<SuccessValueType> trackForSession(CommandSender sender, Promise<SuccessValueType> promise) {
+        if (!(sender instanceof Player))
+            return promise;
+        
+        final CancellationScope sessionScope = mInitParams.accountManager.getSessionScope((Player) sender);
+        if (sessionScope == null)
+            return promise;
+        
+        return sessionScope.track(promise);
+    }
+    
     /**
      * Returns the user Id associated with |player|'s account.
      * 
@@ -246,6 +250,16 @@ public class FeatureBase implements Feature {
         return account.getUserId();
     }
     
+    /**
+     * Returns the executor which runs tasks on the main server thread. Use it when creating a
+     * ConcurrentPromise which will be settled on another thread, but whose handlers use Bukkit.
+     * 
+     * @return Shared MainThreadExecutor instance.
+     */
+    protected MainThreadExecutor getMainThreadExecutor() {
+        return mInitParams.mainThreadExecutor;
+    }
+    
     /**
      * Returns the Bukkit Server instance, which allows an individual feature to integrate much more
      * deeply with Bukkit. Please do keep in mind that any dependency on Bukkit will increase the
@@ -39,4 +39,5 @@ public class FeatureInitParams {
     public Server server;
     public Settings settings;
     public IrcManager ircManager;
+    public MainThreadExecutor mainThreadExecutor;
 }
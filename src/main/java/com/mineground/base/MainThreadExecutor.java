@@ -0,0 +1,118 @@
+/**
+ * Copyright (c) 2011 - 2014 Mineground, Las Venturas Playground
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.mineground.base;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.logging.Logger;
+
+import org.bukkit.plugin.java.JavaPlugin;
+import org.bukkit.scheduler.BukkitScheduler;
+
+/**
+ * Executor which runs tasks on Bukkit's main server thread. Tasks may be submitted from any thread,
+ * and will be executed in submission order during the next server tick. This is the executor which
+ * should be used for ConcurrentPromise instances whose handlers use the Bukkit API.
+ *
+ * Tasks are always queued, even when submitted from the main thread itself, so that handlers never
+ * run in the middle of the code which settled the promise.
+ */
+public class MainThreadExecutor implements Executor {
+    /**
+     * Id of an invalid task in the Bukkit scheduler.
+     */
+    private static final int INVALID_TASK_ID = -1;
+    
+    /**
+     * Logger used for reporting tasks which threw an exception.
+     */
+    private static final Logger sLogger = Logger.getLogger(MainThreadExecutor.class.getCanonicalName());
+    
+    /**
+     * Queue of tasks waiting to be executed on the main thread.
+     */
+    private final ConcurrentLinkedQueue<Runnable> mTaskQueue;
+    
+    private final JavaPlugin mPlugin;
+    
+    /**
+     * Task Id of the repeating task within Bukkit's scheduler which drains the queue.
+     */
+    private int mSchedulerTaskId;
+    
+    public MainThreadExecutor(JavaPlugin plugin) {
+        mTaskQueue = new ConcurrentLinkedQueue<Runnable>();
+        mPlugin = plugin;
+        mSchedulerTaskId = INVALID_TASK_ID;
+    }
+    
+    /**
+     * Starts draining the task queue once per server tick.
+     */
+    public void start() {
+        mSchedulerTaskId = getScheduler().scheduleSyncRepeatingTask(mPlugin, new Runnable() {
+            public void run() {
+                drain();
+            }
+        }, 1, 1);
+    }
+    
+    /**
+     * Stops draining the task queue. Tasks which are still queued will be executed immediately, as
+     * they may be responsible for finalizing state. Must be called on the main thread.
+     */
+    public void stop() {
+        getScheduler().cancelTask(mSchedulerTaskId);
+        mSchedulerTaskId = INVALID_TASK_ID;
+        
+        drain();
+    }
+    
+    /**
+     * Queues |command| to be executed on the main thread during the next server tick.
+     * 
+     * @param command The task which should be executed.
+     */
+    public void execute(Runnable command) {
+        mTaskQueue.add(command);
+    }
+    
+    /**
+     * Executes the tasks which are currently in the queue. Tasks queued while draining will be left
+     * for the next tick, to avoid a chain of tasks from stalling the server.
+     */
+    private void drain() {
+        for (int remaining = mTaskQueue.size(); remaining > 0; --remaining) {
+            final Runnable task = mTaskQueue.poll();
+            if (task == null)
+                break;
+            
+            try {
+                task.run();
+            } catch (Exception exception) {
+                sLogger.severe("A task on the main thread threw an exception: " + exception.toString());
+                exception.printStackTrace();
+            }
+        }
+    }
+    
+    /**
+     * Returns the Bukkit scheduler from |mPlugin|.
+     *
+     * @return Instance of Bukkit's task scheduler.
+     */
+    private BukkitScheduler getScheduler() { return mPlugin.getServer().getScheduler(); }
+}
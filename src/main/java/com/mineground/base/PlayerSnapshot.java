@@ -0,0 +1,70 @@
+/**
+ * Copyright (c) 2011 - 2014 Mineground, Las Venturas Playground
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.mineground.base;
+
+import java.net.InetSocketAddress;
+import java.util.UUID;
+
+import org.bukkit.entity.Player;
+
+/**
+ * Immutable snapshot of the state of a player, captured on the thread firing an event. Observers
+ * annotated with @AsyncEventHandler receive a PlayerSnapshot instead of the Player itself, as the
+ * Bukkit API must not be used from other threads.
+ */
+public class PlayerSnapshot {
+    private final String mName;
+    private final UUID mUniqueId;
+    private final String mAddress;
+    private final String mWorldName;
+    
+    public PlayerSnapshot(Player player) {
+        final InetSocketAddress address = player.getAddress();
+        
+        mName = player.getName();
+        mUniqueId = player.getUniqueId();
+        mAddress = address == null ? "" : address.getAddress().getHostAddress();
+        mWorldName = player.getWorld() == null ? "" : player.getWorld().getName();
+    }
+    
+    /**
+     * Returns the name of the player.
+     * 
+     * @return The player's name.
+     */
+    public String getName() { return mName; }
+    
+    /**
+     * Returns the unique Id of the player.
+     * 
+     * @return The player's unique Id.
+     */
+    public UUID getUniqueId() { return mUniqueId; }
+    
+    /**
+     * Returns the IP address the player is connected from, or an empty string when unknown.
+     * 
+     * @return The player's IP address.
+     */
+    public String getAddress() { return mAddress; }
+    
+    /**
+     * Returns the name of the world the player was in, or an empty string when unknown.
+     * 
+     * @return Name of the player's world.
+     */
+    public String getWorldName() { return mWorldName; }
+}
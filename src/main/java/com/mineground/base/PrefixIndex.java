@@ -0,0 +1,119 @@
+/**
+ * Copyright (c) 2011 - 2014 Mineground, Las Venturas Playground
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.mineground.base;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Immutable, sorted index of strings which can efficiently be searched by prefix. Intended for tab
+ * completion, where the candidates (sub-commands, world names, game rules) rarely change, but are
+ * being searched for every keystroke of the player.
+ *
+ * Searching is done using two binary searches over a sorted array, after which a view of the range
+ * of matching candidates will be returned. No lists are being built or sorted for each search.
+ */
+public class PrefixIndex {
+    /**
+     * An empty index, which doesn't match any prefix.
+     */
+    public static final PrefixIndex EMPTY = new PrefixIndex(new String[0]);
+    
+    /**
+     * The sorted, de-duplicated candidates included in this index.
+     */
+    private final String[] mCandidates;
+    
+    /**
+     * List view over |mCandidates|, from which the results of searches will be taken.
+     */
+    private final List<String> mCandidateList;
+    
+    public PrefixIndex(String... candidates) {
+        this(Arrays.asList(candidates));
+    }
+    
+    public PrefixIndex(Collection<String> candidates) {
+        final String[] sortedCandidates = candidates.toArray(new String[candidates.size()]);
+        Arrays.sort(sortedCandidates);
+        
+        int count = 0;
+        for (int index = 0; index < sortedCandidates.length; ++index) {
+            if (count > 0 && sortedCandidates[count - 1].equals(sortedCandidates[index]))
+                continue;
+            
+            sortedCandidates[count++] = sortedCandidates[index];
+        }
+        
+        mCandidates = Arrays.copyOf(sortedCandidates, count);
+        mCandidateList = Arrays.asList(mCandidates);
+    }
+    
+    /**
+     * Returns the candidates starting with |prefix|, in sorted order. The returned list is a view
+     * of the index, and must not be modified. Matching is case sensitive.
+     * 
+     * @param prefix    The prefix which the candidates must start with.
+     * @return          The sorted list of candidates starting with the prefix.
+     */
+    public List<String> complete(String prefix) {
+        final int fromIndex = lowerBound(prefix);
+        final int toIndex = lowerBound(prefix + Character.MAX_VALUE);
+        
+        return mCandidateList.subList(fromIndex, toIndex);
+    }
+    
+    /**
+     * Returns whether |candidate| has been included in this index.
+     * 
+     * @param candidate The candidate to check for.
+     * @return          Whether the index contains the candidate.
+     */
+    public boolean contains(String candidate) {
+        return Arrays.binarySearch(mCandidates, candidate) >= 0;
+    }
+    
+    /**
+     * Returns the number of candidates in this index.
+     * 
+     * @return The number of candidates.
+     */
+    public int size() {
+        return mCandidates.length;
+    }
+    
+    /**
+     * Returns the index of the first candidate which is not smaller than |value|.
+     * 
+     * @param value The value to search for.
+     * @return      Index of the first candidate which is equal to or larger than the value.
+     */
+    private int lowerBound(String value) {
+        int low = 0;
+        int high = mCandidates.length;
+        
+        while (low < high) {
+            final int middle = (low + high) >>> 1;
+            if (mCandidates[middle].compareTo(value) < 0)
+                low = middle + 1;
+            else
+                high = middle;
+        }
+        
+        return low;
+    }
+}
@@ -123,7 +123,43 @@ import java.util.List;
  *
  * -------------------------------------------------------------------------------------------------
  *
- * TODO: Can we somehow allow Promise.then() to return another promise, allowing chaining?
+ * Consumers of a promise which are no longer interested in its outcome may cancel it. This rejects
+ * the promise with a PromiseCancelledError, after which the cancellation handlers attached by the
+ * producer will be invoked, so that it can stop the work it's doing. Attempts by the producer to
+ * settle a cancelled promise will silently be ignored, avoiding the need for additional checks.
+ *
+ * -------------------------------------------------------------------------------------------------
+ * Example: Stop executing a query when the promise for its result gets cancelled.
+ * -------------------------------------------------------------------------------------------------
+ *
+ * promise.onCancelled(new PromiseCancellationHandler() {
+ *     public void onCancelled() {
+ *         ... remove the query from the queue, or cancel it if it's executing ...
+ *     }
+ * });
+ * promise.cancel();
+ *
+ * -------------------------------------------------------------------------------------------------
+ *
+ * Promises can be chained using the |map()|, |flatMap()| and |recover()| combinators, each of which
+ * returns a new promise derived from the original one. Rejections will be passed through by map()
+ * and flatMap(), whereas recover() gets the opportunity to turn them in to a value or another error.
+ * Cancelling a derived promise will cancel the promise it has been derived from as well.
+ *
+ * -------------------------------------------------------------------------------------------------
+ * Example: Using Promise.map() to read the user Id from a loaded database row.
+ * -------------------------------------------------------------------------------------------------
+ *
+ * Promise<Integer> userId = loadRow(username).map(new PromiseFunction<DatabaseResultRow, Integer>() {
+ *     public Integer apply(DatabaseResultRow row) {
+ *         return row.getInteger("user_id").intValue();
+ *     }
+ * });
+ *
+ * -------------------------------------------------------------------------------------------------
+ *
+ * The combinators have been designed to be cheap: the derived promise itself acts as the handler of
+ * the original promise, so each step in a chain costs a single object in addition to the function.
  *
  * @param <SuccessValueType> Type of the argument the Promise must be resolved with.
  * @see <a href="http://www.html5rocks.com/en/tutorials/es6/promises/">JavaScript Promises</a>
@@ -147,13 +183,27 @@ public class Promise<SuccessValueType> {
         Rejected
     };
 
-    private ArrayList<PromiseResultHandler<SuccessValueType>> mHandlers;
+    // Almost all promises only ever have a single handler, which will be stored in |mHandler|. The
+    // list of additional handlers will only be allocated when a second handler gets attached.
+    private PromiseResultHandler<SuccessValueType> mHandler;
+    private ArrayList<PromiseResultHandler<SuccessValueType>> mAdditionalHandlers;
+    
     private PromiseState mState;
     private SuccessValueType mSuccessValue;
     private PromiseError mRejectionError;
+    
+    // Cancellation handlers are stored the same way, as few promises will have more than one.
+    private PromiseCancellationHandler mCancellationHandler;
+    private ArrayList<PromiseCancellationHandler> mAdditionalCancellationHandlers;
+    private boolean mCancelled;
+    
+    /**
+     * The timer wheel which drives the timeouts created by |withTimeout()|. Will be NULL when the
+     * plugin is not running, in which case promises will not time out.
+     */
+    private static TimerWheel sTimerWheel;
 
     public Promise() {
-        mHandlers = new ArrayList<PromiseResultHandler<SuccessValueType>>();
         mState = PromiseState.Pending;
     }
 
@@ -181,7 +231,15 @@ public class Promise<SuccessValueType> {
             return;
         }
 
-        mHandlers.add(handler);
+        if (mHandler == null) {
+            mHandler = handler;
+            return;
+        }
+        
+        if (mAdditionalHandlers == null)
+            mAdditionalHandlers = new ArrayList<PromiseResultHandler<SuccessValueType>>(2);
+        
+        mAdditionalHandlers.add(handler);
     }
 
     /**
@@ -192,14 +250,16 @@ public class Promise<SuccessValueType> {
      * @throws PromiseSettledException When the Promise has already been settled.
      */
     public void resolve(SuccessValueType value) throws PromiseSettledException {
+        if (mCancelled)
+            return;
+        
         if (mState != PromiseState.Pending)
             throw new PromiseSettledException();
 
         mSuccessValue = value;
         mState = PromiseState.Fulfilled;
 
-        for (PromiseResultHandler<SuccessValueType> handler : mHandlers)
-            handler.onFulfilled(value);
+        notifyHandlers();
     }
 
     /**
@@ -210,14 +270,16 @@ public class Promise<SuccessValueType> {
      * @throws PromiseSettledException When the Promise has already been settled.
      */
     public void reject(PromiseError error) throws PromiseSettledException {
+        if (mCancelled)
+            return;
+        
         if (mState != PromiseState.Pending)
             throw new PromiseSettledException();
 
         mRejectionError = error;
         mState = PromiseState.Rejected;
 
-        for (PromiseResultHandler<SuccessValueType> handler : mHandlers)
-            handler.onRejected(error);
+        notifyHandlers();
     }
     
     /**
@@ -230,7 +292,236 @@ public class Promise<SuccessValueType> {
     public void reject(String errorMessage) throws PromiseSettledException {
         reject(new PromiseError(errorMessage));
     }
+    
+    /**
+     * Cancels this promise, indicating that the consumer is no longer interested in the result. The
+     * promise will be rejected with a PromiseCancelledError, after which the cancellation handlers
+     * will be invoked. Promises which have already been settled cannot be cancelled anymore.
+     * 
+     * @return Whether the promise has been cancelled.
+     */
+    public boolean cancel() {
+        if (mState != PromiseState.Pending)
+            return false;
+        
+        mRejectionError = new PromiseCancelledError();
+        mState = PromiseState.Rejected;
+        mCancelled = true;
+        
+        notifyHandlers();
+        
+        final PromiseCancellationHandler handler = mCancellationHandler;
+        final ArrayList<PromiseCancellationHandler> additionalHandlers = mAdditionalCancellationHandlers;
+        
+        mCancellationHandler = null;
+        mAdditionalCancellationHandlers = null;
+        
+        if (handler != null)
+            handler.onCancelled();
+        
+        if (additionalHandlers != null) {
+            for (PromiseCancellationHandler additionalHandler : additionalHandlers)
+                additionalHandler.onCancelled();
+        }
+        
+        return true;
+    }
+    
+    /**
+     * Attaches a cancellation handler to this promise, which will be invoked when a consumer of
+     * the promise cancels it. If the promise has already been cancelled, |handler| will be invoked
+     * immediately. Handlers attached to a promise which has otherwise been settled will be ignored.
+     * 
+     * @param handler The handler which will be invoked when the promise gets cancelled.
+     */
+    public void onCancelled(PromiseCancellationHandler handler) {
+        if (mCancelled) {
+            handler.onCancelled();
+            return;
+        }
+        
+        if (mState != PromiseState.Pending)
+            return;
+        
+        if (mCancellationHandler == null) {
+            mCancellationHandler = handler;
+            return;
+        }
+        
+        if (mAdditionalCancellationHandlers == null)
+            mAdditionalCancellationHandlers = new ArrayList<PromiseCancellationHandler>(2);
+        
+        mAdditionalCancellationHandlers.add(handler);
+    }
+    
+    /**
+     * Returns whether this promise has been cancelled by one of its consumers.
+     * 
+     * @return Whether the promise has been cancelled.
+     */
+    public boolean isCancelled() {
+        return mCancelled;
+    }
+    
+    /**
+     * Returns a promise which will be resolved with the result of applying |function| to the value
+     * this promise gets resolved with. Rejections will be passed on to the returned promise.
+     * 
+     * @param function  The function to apply to the value of this promise.
+     * @return          A Promise, which will be resolved with the result of the function.
+     */
+    public <ResultType> Promise<ResultType> map(PromiseFunction<SuccessValueType, ResultType> function) {
+        final MappedPromise<SuccessValueType, ResultType> promise = new MappedPromise<SuccessValueType, ResultType>(this, function);
+        then(promise);
+        
+        return promise;
+    }
+    
+    /**
+     * Returns a promise which will be settled in the same way as the promise returned by applying
+     * |function| to the value this promise gets resolved with. This allows asynchronous operations
+     * to be chained. Rejections will be passed on to the returned promise.
+     * 
+     * @param function  The function to apply to the value of this promise.
+     * @return          A Promise, which will be settled like the promise returned by the function.
+     */
+    public <ResultType> Promise<ResultType> flatMap(PromiseFunction<SuccessValueType, Promise<ResultType>> function) {
+        final FlatMappedPromise<SuccessValueType, ResultType> promise = new FlatMappedPromise<SuccessValueType, ResultType>(this, function);
+        then(promise);
+        
+        return promise;
+    }
+    
+    /**
+     * Returns a promise which will be resolved with the value of this promise. When this promise is
+     * rejected, the returned promise will be settled in the same way as the promise returned by
+     * applying |function| to the error. Use Promise.cast() to recover with a value, or use the
+     * Promise.rejected() method to replace the error with another one.
+     * 
+     * @param function  The function to apply to the error this promise was rejected with.
+     * @return          A Promise, which will be settled with the value or the recovered outcome.
+     */
+    public Promise<SuccessValueType> recover(PromiseFunction<PromiseError, Promise<SuccessValueType>> function) {
+        final RecoveredPromise<SuccessValueType> promise = new RecoveredPromise<SuccessValueType>(this, function);
+        then(promise);
+        
+        return promise;
+    }
+    
+    /**
+     * Returns a promise which will be settled in the same way as this promise, unless that does not
+     * happen within |ticks| server ticks, in which case it will be rejected with a
+     * PromiseTimeoutError and this promise will be cancelled. Timeouts are backed by a shared timer
+     * wheel, so they're cheap to create and to clear. Must only be used on the main thread.
+     * 
+     * @param ticks The number of server ticks after which the promise should time out.
+     * @return      A Promise, which will be settled like this one or rejected when timing out.
+     */
+    public Promise<SuccessValueType> withTimeout(long ticks) {
+        final TimedPromise<SuccessValueType> promise = new TimedPromise<SuccessValueType>(this);
+        if (sTimerWheel != null)
+            promise.mTimeout = sTimerWheel.schedule(ticks, promise);
+        
+        then(promise);
+        return promise;
+    }
+    
+    /**
+     * Returns a promise which will be settled in the same way as this promise, unless that does not
+     * happen before the server tick |deadline|, as returned by |Promise.getCurrentTick()|. Deadlines
+     * allow a sequence of operations to share a single time budget.
+     * 
+     * @param deadline  The server tick at which the promise should time out.
+     * @return          A Promise, which will be settled like this one or rejected when timing out.
+     */
+    public Promise<SuccessValueType> withDeadline(long deadline) {
+        return withTimeout(deadline - getCurrentTick());
+    }
+    
+    /**
+     * Settles this promise in the same way as |promise| has been, or will be settled. Settled
+     * promises will be read directly, to avoid creating a handler for them.
+     * 
+     * @param promise The promise whose outcome should be adopted.
+     */
+    protected void adopt(Promise<SuccessValueType> promise) {
+        if (promise.mState == PromiseState.Fulfilled) {
+            resolve(promise.mSuccessValue);
+            return;
+        }
+        
+        if (promise.mState == PromiseState.Rejected) {
+            reject(promise.mRejectionError);
+            return;
+        }
+        
+        promise.then(new PromiseResultHandler<SuccessValueType>() {
+            public void onFulfilled(SuccessValueType result) {
+                resolve(result);
+            }
+            public void onRejected(PromiseError error) {
+                reject(error);
+            }
+        });
+    }
+    
+    /**
+     * Invokes the appropriate method on all attached handlers, now that the promise has been
+     * settled. The handlers will be released afterwards, as they won't be needed again.
+     */
+    private void notifyHandlers() {
+        final PromiseResultHandler<SuccessValueType> handler = mHandler;
+        final ArrayList<PromiseResultHandler<SuccessValueType>> additionalHandlers = mAdditionalHandlers;
+        
+        mHandler = null;
+        mAdditionalHandlers = null;
+        
+        if (handler == null)
+            return;
+        
+        notifyHandler(handler);
+        if (additionalHandlers == null)
+            return;
+        
+        for (PromiseResultHandler<SuccessValueType> additionalHandler : additionalHandlers)
+            notifyHandler(additionalHandler);
+    }
+    
+    /**
+     * Invokes either |onFulfilled| or |onRejected| on |handler|, depending on the promise's state.
+     * 
+     * @param handler The handler which should be notified.
+     */
+    private void notifyHandler(PromiseResultHandler<SuccessValueType> handler) {
+        if (mState == PromiseState.Fulfilled)
+            handler.onFulfilled(mSuccessValue);
+        else
+            handler.onRejected(mRejectionError);
+    }
 
+    /**
+     * Sets the timer wheel which drives the timeouts of promises. Should be called by the plugin
+     * when it's being enabled, and with NULL when it's being disabled.
+     * 
+     * @param timerWheel The timer wheel to use for timeouts, or NULL.
+     */
+    public static void setTimerWheel(TimerWheel timerWheel) {
+        sTimerWheel = timerWheel;
+    }
+    
+    /**
+     * Returns the current server tick according to the timer wheel, which can be used to compute a
+     * deadline for |withDeadline()|. Returns zero when no timer wheel has been set.
+     * 
+     * @return The current server tick.
+     */
+    public static long getCurrentTick() {
+        if (sTimerWheel == null)
+            return 0;
+        
+        return sTimerWheel.getCurrentTick();
+    }
+    
     /**
      * Casts |value| to a Promise which will immediately be resolved with PromiseCastType as the
      * SuccessValueType. This is a utility function for quick returns in Promise-returning methods.
@@ -245,6 +536,20 @@ public class Promise<SuccessValueType> {
         return promise;
     }
     
+    /**
+     * Returns a Promise which has immediately been rejected with |errorMessage|. This is a utility
+     * function for quick returns in Promise-returning methods, for example in flatMap() functions.
+     * 
+     * @param errorMessage  The reason the Promise has been rejected.
+     * @return              A rejected Promise instance.
+     */
+    public static <PromiseCastType> Promise<PromiseCastType> rejected(String errorMessage) {
+        Promise<PromiseCastType> promise = new Promise<PromiseCastType>();
+        promise.reject(errorMessage);
+        
+        return promise;
+    }
+    
     /**
      * Returns a Promise which will be resolved once the first once of |promises| has been resolved.
      * We cannot reject the returned promise if either of the |promises| reject, because that would
@@ -273,8 +578,9 @@ public class Promise<SuccessValueType> {
     }
     
     /**
-     * Returns a Promise which will be resolved once all of the |promises| have been resolved. If
-     * either of the |promises| rejects, the returned promise will also be rejected.
+     * Returns a Promise which will be resolved once all of the |promises| have been resolved, with
+     * their values in the same order as the |promises|. If either of the |promises| rejects, the
+     * returned promise will be rejected as well, and the outcome of the others will be ignored.
      * 
      * @param promises  List of promises which need to resolve.
      * @return          A Promise, which will be resolved once all passed promises resolve.
@@ -283,22 +589,195 @@ public class Promise<SuccessValueType> {
         final Promise<List<SuccessValueType>> promise = new Promise<List<SuccessValueType>>();
         final int promisesSize = promises.size();
         
-        PromiseResultHandler<SuccessValueType> handler = new PromiseResultHandler<SuccessValueType>() {
-            private List<SuccessValueType> mValues = new ArrayList<SuccessValueType>();
-            public void onFulfilled(SuccessValueType result) {
-                mValues.add(result);
-                if (mValues.size() == promisesSize)
-                    promise.resolve(mValues);
-            }
-
-            public void onRejected(PromiseError error) {
-                promise.reject(error);
-            }
-        };
+        if (promisesSize == 0) {
+            promise.resolve(new ArrayList<SuccessValueType>());
+            return promise;
+        }
+        
+        final Object[] values = new Object[promisesSize];
+        final int[] remaining = new int[] { promisesSize };
         
-        for (Promise<SuccessValueType> includedPromise : promises)
-            includedPromise.then(handler);
+        for (int index = 0; index < promisesSize; ++index) {
+            final int valueIndex = index;
+            promises.get(index).then(new PromiseResultHandler<SuccessValueType>() {
+                @SuppressWarnings("unchecked")
+                public void onFulfilled(SuccessValueType result) {
+                    if (remaining[0] <= 0)
+                        return; // another promise has been rejected.
+                    
+                    values[valueIndex] = result;
+                    if (--remaining[0] > 0)
+                        return;
+                    
+                    final List<SuccessValueType> valueList = new ArrayList<SuccessValueType>(promisesSize);
+                    for (Object value : values)
+                        valueList.add((SuccessValueType) value);
+                    
+                    promise.resolve(valueList);
+                }
+                
+                public void onRejected(PromiseError error) {
+                    if (remaining[0] <= 0)
+                        return; // the promise has already been settled.
+                    
+                    remaining[0] = 0;
+                    promise.reject(error);
+                }
+            });
+        }
         
         return promise;
     }
+    
+    /**
+     * Promise derived from another promise using map(). The promise itself acts as the handler of
+     * the promise it has been derived from, and as its own cancellation handler, so that each step
+     * in a chain only requires a single object.
+     */
+    private static class MappedPromise<ArgumentType, ResultType> extends Promise<ResultType>
+            implements PromiseResultHandler<ArgumentType>, PromiseCancellationHandler {
+        private final Promise<ArgumentType> mSource;
+        private final PromiseFunction<ArgumentType, ResultType> mFunction;
+        
+        public MappedPromise(Promise<ArgumentType> source, PromiseFunction<ArgumentType, ResultType> function) {
+            mSource = source;
+            mFunction = function;
+            
+            onCancelled(this);
+        }
+        
+        public void onFulfilled(ArgumentType result) {
+            if (!isCancelled())
+                resolve(mFunction.apply(result));
+        }
+        
+        public void onRejected(PromiseError error) {
+            reject(error);
+        }
+        
+        public void onCancelled() {
+            mSource.cancel();
+        }
+    }
+    
+    /**
+     * Promise derived from another promise using flatMap(). Cancelling it will cancel both the
+     * source promise and the promise returned by the function, if it has been applied already.
+     */
+    private static class FlatMappedPromise<ArgumentType, ResultType> extends Promise<ResultType>
+            implements PromiseResultHandler<ArgumentType>, PromiseCancellationHandler {
+        private final Promise<ArgumentType> mSource;
+        private final PromiseFunction<ArgumentType, Promise<ResultType>> mFunction;
+        private Promise<ResultType> mResultPromise;
+        
+        public FlatMappedPromise(Promise<ArgumentType> source, PromiseFunction<ArgumentType, Promise<ResultType>> function) {
+            mSource = source;
+            mFunction = function;
+            
+            onCancelled(this);
+        }
+        
+        public void onFulfilled(ArgumentType result) {
+            if (isCancelled())
+                return;
+            
+            mResultPromise = mFunction.apply(result);
+            adopt(mResultPromise);
+        }
+        
+        public void onRejected(PromiseError error) {
+            reject(error);
+        }
+        
+        public void onCancelled() {
+            mSource.cancel();
+            if (mResultPromise != null)
+                mResultPromise.cancel();
+        }
+    }
+    
+    /**
+     * Promise derived from another promise using recover(). Values will be passed on as they are,
+     * whereas the recovery function will be applied to rejections.
+     */
+    private static class RecoveredPromise<SuccessValueType> extends Promise<SuccessValueType>
+            implements PromiseResultHandler<SuccessValueType>, PromiseCancellationHandler {
+        private final Promise<SuccessValueType> mSource;
+        private final PromiseFunction<PromiseError, Promise<SuccessValueType>> mFunction;
+        private Promise<SuccessValueType> mResultPromise;
+        
+        public RecoveredPromise(Promise<SuccessValueType> source, PromiseFunction<PromiseError, Promise<SuccessValueType>> function) {
+            mSource = source;
+            mFunction = function;
+            
+            onCancelled(this);
+        }
+        
+        public void onFulfilled(SuccessValueType result) {
+            resolve(result);
+        }
+        
+        public void onRejected(PromiseError error) {
+            if (isCancelled())
+                return;
+            
+            mResultPromise = mFunction.apply(error);
+            adopt(mResultPromise);
+        }
+        
+        public void onCancelled() {
+            mSource.cancel();
+            if (mResultPromise != null)
+                mResultPromise.cancel();
+        }
+    }
+    
+    /**
+     * Promise derived from another promise using withTimeout(). It doubles as the task which will
+     * be ran by the timer wheel when the timeout expires, in which case the source is cancelled.
+     */
+    private static class TimedPromise<SuccessValueType> extends Promise<SuccessValueType>
+            implements PromiseResultHandler<SuccessValueType>, PromiseCancellationHandler, Runnable {
+        private final Promise<SuccessValueType> mSource;
+        private TimerWheel.Timeout mTimeout;
+        private boolean mTimedOut;
+        
+        public TimedPromise(Promise<SuccessValueType> source) {
+            mSource = source;
+            
+            onCancelled(this);
+        }
+        
+        public void onFulfilled(SuccessValueType result) {
+            clearTimeout();
+            resolve(result);
+        }
+        
+        public void onRejected(PromiseError error) {
+            clearTimeout();
+            reject(mTimedOut ? new PromiseTimeoutError() : error);
+        }
+        
+        public void onCancelled() {
+            clearTimeout();
+            mSource.cancel();
+        }
+        
+        public void run() {
+            mTimeout = null;
+            mTimedOut = true;
+            
+            // Cancelling the source will reject it, which is what will settle this promise. Sources
+            // which could not be cancelled, e.g. those settled on another thread, are left alone.
+            mSource.cancel();
+        }
+        
+        private void clearTimeout() {
+            if (mTimeout == null)
+                return;
+            
+            mTimeout.cancel();
+            mTimeout = null;
+        }
+    }
 }
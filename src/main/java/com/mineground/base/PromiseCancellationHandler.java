@@ -0,0 +1,29 @@
+/**
+ * Copyright (c) 2011 - 2014 Mineground, Las Venturas Playground
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.mineground.base;
+
+/**
+ * Handler which producers of a promise may attach using |Promise.onCancelled()| in order to be
+ * told when the consumer of the promise no longer is interested in its result. This gives them the
+ * opportunity to stop the work they're doing, for example by removing a query from the queue.
+ */
+public interface PromiseCancellationHandler {
+    /**
+     * Called when the promise this handler has been attached to has been cancelled. The promise
+     * will already have been rejected at this point, further attempts to settle it are ignored.
+     */
+    void onCancelled();
+}
@@ -0,0 +1,26 @@
+/**
+ * Copyright (c) 2011 - 2014 Mineground, Las Venturas Playground
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.mineground.base;
+
+/**
+ * Error with which a promise will be rejected when it has been cancelled using |Promise.cancel()|.
+ * Handlers may want to check for this type, as cancellation usually is not worth reporting.
+ */
+public class PromiseCancelledError extends PromiseError {
+    public PromiseCancelledError() {
+        super("The operation has been cancelled.");
+    }
+}
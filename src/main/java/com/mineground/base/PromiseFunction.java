@@ -0,0 +1,33 @@
+/**
+ * Copyright (c) 2011 - 2014 Mineground, Las Venturas Playground
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.mineground.base;
+
+/**
+ * Function which transforms the outcome of a promise, used by the |map()|, |flatMap()| and
+ * |recover()| combinators of the Promise class to derive a new promise from an existing one.
+ *
+ * @param <ArgumentType>    Type of the value the function will be applied to.
+ * @param <ResultType>      Type of the value the function returns.
+ */
+public interface PromiseFunction<ArgumentType, ResultType> {
+    /**
+     * Applies this function to |value|, and returns the result.
+     *
+     * @param value The value to apply the function to.
+     * @return      The result of applying the function.
+     */
+    ResultType apply(ArgumentType value);
+}
@@ -53,6 +53,10 @@ public class SecurePasswordHash
     public static final int SALT_INDEX = 1;
     public static final int PBKDF2_INDEX = 2;
 
+    // SecretKeyFactory instances are not thread-safe, but are expensive to look
+    // up, so each thread which hashes passwords keeps its own instance.
+    private static final ThreadLocal<SecretKeyFactory> KEY_FACTORY = new ThreadLocal<SecretKeyFactory>();
+
     /**
      * Returns a salted PBKDF2 hash of the password.
      *
@@ -159,8 +163,20 @@ public class SecurePasswordHash
         throws NoSuchAlgorithmException, InvalidKeySpecException
     {
         PBEKeySpec spec = new PBEKeySpec(password, salt, iterations, bytes * 8);
-        SecretKeyFactory skf = SecretKeyFactory.getInstance(PBKDF2_ALGORITHM);
-        return skf.generateSecret(spec).getEncoded();
+        SecretKeyFactory skf = KEY_FACTORY.get();
+        if (skf == null)
+        {
+            skf = SecretKeyFactory.getInstance(PBKDF2_ALGORITHM);
+            KEY_FACTORY.set(skf);
+        }
+        try
+        {
+            return skf.generateSecret(spec).getEncoded();
+        }
+        finally
+        {
+            spec.clearPassword();
+        }
     }
 
     /**
@@ -0,0 +1,88 @@
+/**
+ * Copyright (c) 2011 - 2014 Mineground, Las Venturas Playground
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.mineground.base;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.bukkit.Server;
+import org.bukkit.World;
+import org.bukkit.entity.Player;
+
+import com.mineground.account.Account;
+import com.mineground.account.AccountLevel;
+import com.mineground.account.AccountManager;
+
+/**
+ * Immutable snapshot of the state of the server, captured on the main thread just before an
+ * asynchronous command is being executed. Asynchronous commands must use this snapshot rather than
+ * the Bukkit API, since the latter may only be used from the main server thread.
+ */
+public class ServerSnapshot {
+    private final List<PlayerSnapshot> mOnlinePlayers;
+    private final Map<PlayerSnapshot, AccountLevel> mPlayerLevels;
+    private final List<String> mWorldNames;
+    
+    public ServerSnapshot(Server server, AccountManager accountManager) {
+        final Player[] onlinePlayers = server.getOnlinePlayers();
+        final List<PlayerSnapshot> players = new ArrayList<PlayerSnapshot>(onlinePlayers.length);
+        
+        mPlayerLevels = new HashMap<PlayerSnapshot, AccountLevel>();
+        for (Player player : onlinePlayers) {
+            final PlayerSnapshot snapshot = new PlayerSnapshot(player);
+            final Account account = accountManager.getAccountForPlayer(player);
+            
+            players.add(snapshot);
+            mPlayerLevels.put(snapshot, account == null ? AccountLevel.Guest : account.getLevel());
+        }
+        
+        final List<String> worldNames = new ArrayList<String>();
+        for (World world : server.getWorlds())
+            worldNames.add(world.getName());
+        
+        mOnlinePlayers = Collections.unmodifiableList(players);
+        mWorldNames = Collections.unmodifiableList(worldNames);
+    }
+    
+    /**
+     * Returns the players who were online when the snapshot was taken.
+     * 
+     * @return List of snapshots of the online players.
+     */
+    public List<PlayerSnapshot> getOnlinePlayers() { return mOnlinePlayers; }
+    
+    /**
+     * Returns the level of |player|'s account. Players whose account had not been loaded yet will
+     * be considered to be guests.
+     * 
+     * @param player    Snapshot of the player, as included in this server snapshot.
+     * @return          Level of the player's account.
+     */
+    public AccountLevel getLevel(PlayerSnapshot player) {
+        final AccountLevel level = mPlayerLevels.get(player);
+        return level == null ? AccountLevel.Guest : level;
+    }
+    
+    /**
+     * Returns the names of the worlds which were loaded when the snapshot was taken.
+     * 
+     * @return List of the names of the loaded worlds.
+     */
+    public List<String> getWorldNames() { return mWorldNames; }
+}
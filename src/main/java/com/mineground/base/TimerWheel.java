@@ -0,0 +1,220 @@
+/**
+ * Copyright (c) 2011 - 2014 Mineground, Las Venturas Playground
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.mineground.base;
+
+/**
+ * Hierarchical timer wheel driven by the server tick. Scheduling and cancelling a timeout are both
+ * constant-time operations, and advancing the wheel only touches the timeouts which expire during
+ * that tick (plus, once every 64 ticks, those cascading down from a coarser wheel). This makes it
+ * cheap to attach a timeout to thousands of pending operations, most of which will be cancelled
+ * long before they expire.
+ *
+ * The wheel consists of four levels of 64 slots each. Level 0 has a resolution of a single tick,
+ * every next level has a resolution 64 times coarser than the previous one, covering a total of
+ * 2^24 ticks (roughly nine days). Timeouts further in the future will be clamped to that range.
+ *
+ * The TimerWheel is not thread-safe, and must only be used on the main server thread.
+ */
+public class TimerWheel {
+    private static final int WHEEL_BITS = 6;
+    private static final int WHEEL_SIZE = 1 << WHEEL_BITS;
+    private static final int WHEEL_MASK = WHEEL_SIZE - 1;
+    private static final int WHEEL_LEVELS = 4;
+    
+    /**
+     * The maximum delay, in ticks, which can be represented by the wheel.
+     */
+    private static final long MAXIMUM_DELAY = (1L << (WHEEL_BITS * WHEEL_LEVELS)) - 1;
+    
+    /**
+     * A scheduled timeout. Timeouts are stored in doubly linked lists per slot, so that they can be
+     * removed from the wheel without searching for them.
+     */
+    public static class Timeout {
+        private final Runnable mTask;
+        private long mExpiration;
+        
+        private Timeout mPrevious;
+        private Timeout mNext;
+        private int mLevel;
+        private int mSlot;
+        
+        private TimerWheel mWheel;
+        
+        private Timeout(Runnable task, long expiration) {
+            mTask = task;
+            mExpiration = expiration;
+        }
+        
+        /**
+         * Cancels this timeout, if it hasn't expired yet.
+         * 
+         * @return Whether the timeout has been cancelled.
+         */
+        public boolean cancel() {
+            if (mWheel == null)
+                return false;
+            
+            mWheel.unlink(this);
+            return true;
+        }
+    }
+    
+    /**
+     * The slots of each level of the wheel, each holding the head of a list of timeouts.
+     */
+    private final Timeout[][] mSlots;
+    
+    /**
+     * The current tick of the wheel, incremented by each call to advance().
+     */
+    private long mCurrentTick;
+    
+    /**
+     * The number of timeouts which have been scheduled, but not yet expired or cancelled.
+     */
+    private int mSize;
+    
+    public TimerWheel() {
+        mSlots = new Timeout[WHEEL_LEVELS][WHEEL_SIZE];
+    }
+    
+    /**
+     * Schedules |task| to be ran after |delayTicks| server ticks. Delays shorter than a single tick
+     * will be rounded up to one tick.
+     * 
+     * @param delayTicks    Number of ticks after which the task should be ran.
+     * @param task          The task which should be ran when the timeout expires.
+     * @return              The Timeout, which can be used to cancel it.
+     */
+    public Timeout schedule(long delayTicks, Runnable task) {
+        final long delay = Math.min(Math.max(delayTicks, 1), MAXIMUM_DELAY);
+        final Timeout timeout = new Timeout(task, mCurrentTick + delay);
+        
+        link(timeout);
+        return timeout;
+    }
+    
+    /**
+     * Returns the current tick of the wheel, which can be used to compute deadlines.
+     * 
+     * @return The current tick of the wheel.
+     */
+    public long getCurrentTick() {
+        return mCurrentTick;
+    }
+    
+    /**
+     * Returns the number of timeouts which are pending on the wheel.
+     * 
+     * @return Number of pending timeouts.
+     */
+    public int size() {
+        return mSize;
+    }
+    
+    /**
+     * Advances the wheel by a single tick, and runs the tasks of all timeouts which expire. Must be
+     * called once per server tick.
+     */
+    public void advance() {
+        ++mCurrentTick;
+        
+        // Every time a level wraps around, the timeouts in the current slot of the next level have
+        // to be redistributed over the finer levels.
+        for (int level = 1; level < WHEEL_LEVELS; ++level) {
+            if (((mCurrentTick >> ((level - 1) * WHEEL_BITS)) & WHEEL_MASK) != 0)
+                break;
+            
+            cascade(level, (int) ((mCurrentTick >> (level * WHEEL_BITS)) & WHEEL_MASK));
+        }
+        
+        final int slot = (int) (mCurrentTick & WHEEL_MASK);
+        while (mSlots[0][slot] != null) {
+            final Timeout timeout = mSlots[0][slot];
+            unlink(timeout);
+            
+            timeout.mTask.run();
+        }
+    }
+    
+    /**
+     * Moves all timeouts in |slot| of |level| to the level appropriate for their remaining delay.
+     * 
+     * @param level The level of the slot which should be cascaded.
+     * @param slot  The slot which should be cascaded.
+     */
+    private void cascade(int level, int slot) {
+        Timeout timeout = mSlots[level][slot];
+        mSlots[level][slot] = null;
+        
+        while (timeout != null) {
+            final Timeout next = timeout.mNext;
+            
+            --mSize;
+            link(timeout);
+            
+            timeout = next;
+        }
+    }
+    
+    /**
+     * Adds |timeout| to the slot matching its expiration time.
+     * 
+     * @param timeout The timeout which should be added to the wheel.
+     */
+    private void link(Timeout timeout) {
+        final long delay = Math.max(timeout.mExpiration - mCurrentTick, 0);
+        
+        int level = 0;
+        while (level < WHEEL_LEVELS - 1 && delay >= (1L << ((level + 1) * WHEEL_BITS)))
+            ++level;
+        
+        final int slot = (int) ((timeout.mExpiration >> (level * WHEEL_BITS)) & WHEEL_MASK);
+        
+        timeout.mLevel = level;
+        timeout.mSlot = slot;
+        timeout.mWheel = this;
+        timeout.mPrevious = null;
+        timeout.mNext = mSlots[level][slot];
+        
+        if (timeout.mNext != null)
+            timeout.mNext.mPrevious = timeout;
+        
+        mSlots[level][slot] = timeout;
+        ++mSize;
+    }
+    
+    /**
+     * Removes |timeout| from the slot it's currently stored in.
+     * 
+     * @param timeout The timeout which should be removed from the wheel.
+     */
+    private void unlink(Timeout timeout) {
+        if (timeout.mPrevious != null)
+            timeout.mPrevious.mNext = timeout.mNext;
+        else
+            mSlots[timeout.mLevel][timeout.mSlot] = timeout.mNext;
+        
+        if (timeout.mNext != null)
+            timeout.mNext.mPrevious = timeout.mPrevious;
+        
+        timeout.mPrevious = null;
+        timeout.mNext = null;
+        timeout.mWheel = null;
+        --mSize;
+    }
+}
@@ -15,6 +15,9 @@
 
 package com.mineground.database;
 
+import java.util.ArrayList;
+import java.util.List;
+
 import org.bukkit.configuration.file.FileConfiguration;
 import org.bukkit.plugin.java.JavaPlugin;
 import org.bukkit.scheduler.BukkitScheduler;
@@ -52,11 +55,25 @@ public class Database {
      */
     private int mSchedulerTaskId;
     
+    /**
+     * The batch loaders which have received lookups during the current server tick, and will have
+     * to be flushed during the next one.
+     */
+    private final List<DatabaseBatchLoader<?>> mPendingBatchLoaders;
+    
+    /**
+     * Task Id of the delayed task which will flush the pending batch loaders. Only a single task
+     * will be scheduled per tick, regardless of the number of loaders waiting to be flushed.
+     */
+    private int mBatchFlushTaskId;
+    
     public Database(FileConfiguration configuration, JavaPlugin plugin) {
         mConfiguration = configuration;
         mPlugin = plugin;
         
+        mPendingBatchLoaders = new ArrayList<DatabaseBatchLoader<?>>();
         mSchedulerTaskId = INVALID_TASK_ID;
+        mBatchFlushTaskId = INVALID_TASK_ID;
     }
     
     /**
@@ -70,6 +87,7 @@ public class Database {
         params.username = mConfiguration.getString("database.username", "changeme");
         params.password = mConfiguration.getString("database.password", "");
         params.database = mConfiguration.getString("database.database", "mineground");
+        params.captureFile = mConfiguration.getString("database.capture_file", "");
         
         mConnection = new DatabaseConnectionImpl(params);
         mConnection.connect();
@@ -98,6 +116,12 @@ public class Database {
 
         getScheduler().cancelTask(mSchedulerTaskId);
         mSchedulerTaskId = INVALID_TASK_ID;
+        
+        // Lookups which have not been flushed yet would be discarded by the database thread anyway,
+        // as it doesn't execute SELECT queries while shutting down.
+        getScheduler().cancelTask(mBatchFlushTaskId);
+        mBatchFlushTaskId = INVALID_TASK_ID;
+        mPendingBatchLoaders.clear();
     }
     
     /**
@@ -111,6 +135,44 @@ public class Database {
         return new DatabaseStatement(this, query);
     }
     
+    /**
+     * Prepares a batch loader for |query|, which will collect single-row lookups issued during a
+     * server tick, and execute them as a single query during the next one. The |query| must contain
+     * a "%s" marker for the list of keys, e.g. "SELECT * FROM users WHERE user_id IN (%s)".
+     * 
+     * @param query     The query to execute for a batch of keys.
+     * @param keyColumn Name of the column which contains the key, which must be selected.
+     * @param keyType   Type of the keys, which must be either String or Long.
+     * @return          DatabaseBatchLoader instance to handle the lookups.
+     */
+    public <KeyType> DatabaseBatchLoader<KeyType> prepareBatchLoader(String query, String keyColumn, Class<KeyType> keyType) {
+        return new DatabaseBatchLoader<KeyType>(this, query, keyColumn, keyType);
+    }
+    
+    /**
+     * Schedules |loader| to be flushed during the next server tick. Must only be called by the
+     * loader itself, when the first lookup of a new batch is being requested.
+     * 
+     * @param loader The batch loader which has lookups pending.
+     */
+    void scheduleBatchFlush(DatabaseBatchLoader<?> loader) {
+        mPendingBatchLoaders.add(loader);
+        if (mBatchFlushTaskId != INVALID_TASK_ID)
+            return;
+        
+        mBatchFlushTaskId = getScheduler().scheduleSyncDelayedTask(mPlugin, new Runnable() {
+            public void run() {
+                final List<DatabaseBatchLoader<?>> loaders = new ArrayList<DatabaseBatchLoader<?>>(mPendingBatchLoaders);
+                
+                mPendingBatchLoaders.clear();
+                mBatchFlushTaskId = INVALID_TASK_ID;
+                
+                for (DatabaseBatchLoader<?> pendingLoader : loaders)
+                    pendingLoader.flush();
+            }
+        });
+    }
+    
     /**
      * Executes |query| on the database and returns a promise which will be settled depending on the
      * result. The |parameters| object will be used to replace parameters in the query with values
@@ -141,6 +203,19 @@ public class Database {
      */
     public Promise<DatabaseResult> query(String query) { return this.query(query, null); }
     
+    /**
+     * Returns the statistics about the queries which have been executed on the database, or NULL
+     * when no connection has been established with the database.
+     * 
+     * @return Statistics of the database connection, or NULL.
+     */
+    public DatabaseStatistics getStatistics() {
+        if (mConnection == null)
+            return null;
+        
+        return mConnection.getStatistics();
+    }
+    
     /**
      * Returns the Bukkit scheduler from |mPlugin|. Convenience method to make the code needing this
      * more readable, since it's a long call-chain.
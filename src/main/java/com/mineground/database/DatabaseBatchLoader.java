@@ -0,0 +1,230 @@
+/**
+ * Copyright (c) 2011 - 2014 Mineground, Las Venturas Playground
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.mineground.database;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.mineground.base.Promise;
+import com.mineground.base.PromiseCancellationHandler;
+import com.mineground.base.PromiseError;
+import com.mineground.base.PromiseResultHandler;
+
+/**
+ * The DatabaseBatchLoader collects single-row lookups by key which are requested during a server
+ * tick, and executes them as a single "WHERE key IN (...)" query during the next tick. Each caller
+ * receives their own promise, which will be resolved with the matching row once it's available.
+ *
+ * The query this loader has been created with must contain a single "%s" marker, which will be
+ * replaced by the parameter placeholders for each of the keys in the batch. The key column must be
+ * selected by the query, since it's used to distribute the rows over the waiting promises.
+ *
+ * Promises will be resolved with NULL when no row exists for the requested key, and will only be
+ * rejected when the query itself failed, in which case all lookups in the batch will be rejected.
+ *
+ * @param <KeyType> Type of the key, either String or Long.
+ */
+public class DatabaseBatchLoader<KeyType> {
+    /**
+     * The maximum number of keys which will be included in a single query. Larger batches will be
+     * split up in multiple queries, to keep the size of the IN-list reasonable.
+     */
+    private static final int MAXIMUM_BATCH_SIZE = 100;
+
+    /**
+     * The Database which this loader has been created for, and which will execute the queries.
+     */
+    private final Database mDatabase;
+
+    /**
+     * The query which will be executed for a batch. The "%s" marker will be replaced by the list
+     * of parameter placeholders for the keys included in the batch.
+     */
+    private final String mQuery;
+
+    /**
+     * Name of the column in the result set which contains the key each row has been found for.
+     */
+    private final String mKeyColumn;
+
+    /**
+     * Type of the keys which will be looked up using this loader. Used to read the right type of
+     * value from the key column of the returned rows.
+     */
+    private final Class<KeyType> mKeyType;
+
+    /**
+     * The lookups which have been requested since the last time this loader was flushed, keyed by
+     * their normalized key. Insertion order is maintained to keep the generated queries stable.
+     */
+    private Map<Object, PendingLookup> mPendingLookups;
+
+    /**
+     * A pending lookup for a single key. Multiple callers may be waiting for the same key in a
+     * given tick, in which case they will share the same row.
+     */
+    private class PendingLookup {
+        public final KeyType key;
+        public final List<Promise<DatabaseResultRow>> promises;
+
+        public PendingLookup(KeyType key_) {
+            promises = new ArrayList<Promise<DatabaseResultRow>>(1);
+            key = key_;
+        }
+    }
+
+    public DatabaseBatchLoader(Database database, String query, String keyColumn, Class<KeyType> keyType) {
+        mPendingLookups = new LinkedHashMap<Object, PendingLookup>();
+        mDatabase = database;
+        mQuery = query;
+        mKeyColumn = keyColumn;
+        mKeyType = keyType;
+    }
+
+    /**
+     * Requests the row identified by |key| to be loaded. The lookup will be included in the batch
+     * which will be executed during the next server tick.
+     *
+     * @param key   The key of the row which should be loaded.
+     * @return      A promise, which will be resolved with the row, or NULL if it doesn't exist.
+     */
+    public Promise<DatabaseResultRow> load(KeyType key) {
+        final Promise<DatabaseResultRow> promise = new Promise<DatabaseResultRow>();
+
+        // The Database will flush this loader during the next server tick, but only has to be
+        // told about this once for every batch.
+        if (mPendingLookups.isEmpty())
+            mDatabase.scheduleBatchFlush(this);
+
+        final Object normalizedKey = normalizeKey(key);
+
+        PendingLookup lookup = mPendingLookups.get(normalizedKey);
+        if (lookup == null) {
+            lookup = new PendingLookup(key);
+            mPendingLookups.put(normalizedKey, lookup);
+        }
+
+        lookup.promises.add(promise);
+        
+        // When the lookup is cancelled before the batch has been flushed, remove it from the batch
+        // again. The key will be dropped from the query when nobody else is waiting for it.
+        final PendingLookup pendingLookup = lookup;
+        promise.onCancelled(new PromiseCancellationHandler() {
+            public void onCancelled() {
+                if (mPendingLookups.get(normalizedKey) != pendingLookup)
+                    return; // the batch has already been flushed.
+                
+                pendingLookup.promises.remove(promise);
+                if (pendingLookup.promises.isEmpty())
+                    mPendingLookups.remove(normalizedKey);
+            }
+        });
+        
+        return promise;
+    }
+
+    /**
+     * Executes the lookups which have been requested since the previous flush. Batches larger than
+     * MAXIMUM_BATCH_SIZE keys will be split up in multiple queries.
+     */
+    void flush() {
+        if (mPendingLookups.isEmpty())
+            return;
+
+        final List<PendingLookup> lookups = new ArrayList<PendingLookup>(mPendingLookups.values());
+        mPendingLookups = new LinkedHashMap<Object, PendingLookup>();
+
+        for (int offset = 0; offset < lookups.size(); offset += MAXIMUM_BATCH_SIZE)
+            executeBatch(lookups.subList(offset, Math.min(offset + MAXIMUM_BATCH_SIZE, lookups.size())));
+    }
+
+    /**
+     * Executes a single query for all keys in |lookups|, and settles each of their promises once the
+     * result is available. Keys for which no row was returned will be resolved with NULL.
+     *
+     * @param lookups The lookups which should be included in this query.
+     */
+    private void executeBatch(List<PendingLookup> lookups) {
+        final Map<Object, PendingLookup> lookupMap = new LinkedHashMap<Object, PendingLookup>();
+        final DatabaseStatementParams parameters = new DatabaseStatementParams();
+        final StringBuilder placeholders = new StringBuilder();
+
+        int parameterIndex = 1;
+        for (PendingLookup lookup : lookups) {
+            if (parameterIndex > 1)
+                placeholders.append(", ");
+
+            placeholders.append("?");
+            parameters.put(parameterIndex++, lookup.key);
+
+            lookupMap.put(normalizeKey(lookup.key), lookup);
+        }
+
+        mDatabase.query(mQuery.replace("%s", placeholders), parameters).then(new PromiseResultHandler<DatabaseResult>() {
+            public void onFulfilled(DatabaseResult result) {
+                for (DatabaseResultRow resultRow : result.rows) {
+                    final PendingLookup lookup = lookupMap.remove(normalizeKey(readKey(resultRow)));
+                    if (lookup == null)
+                        continue; // duplicated row, or a key we didn't ask for.
+
+                    for (Promise<DatabaseResultRow> promise : lookup.promises)
+                        promise.resolve(resultRow);
+                }
+
+                // All lookups which remain in |lookupMap| did not match any row in the database.
+                for (PendingLookup lookup : lookupMap.values()) {
+                    for (Promise<DatabaseResultRow> promise : lookup.promises)
+                        promise.resolve(null);
+                }
+            }
+            public void onRejected(PromiseError error) {
+                for (PendingLookup lookup : lookupMap.values()) {
+                    for (Promise<DatabaseResultRow> promise : lookup.promises)
+                        promise.reject(error);
+                }
+            }
+        });
+    }
+
+    /**
+     * Reads the value of the key column from |resultRow|, in the type of keys used by this loader.
+     *
+     * @param resultRow The row to read the key from.
+     * @return          The key stored in the row.
+     */
+    private Object readKey(DatabaseResultRow resultRow) {
+        if (mKeyType == String.class)
+            return resultRow.getString(mKeyColumn);
+
+        return resultRow.getInteger(mKeyColumn);
+    }
+
+    /**
+     * Normalizes |key| for use in the pending lookup maps. Textual keys will be compared in a case
+     * insensitive manner, as MySQL's default collation does the same.
+     *
+     * @param key   The key which should be normalized.
+     * @return      The normalized key.
+     */
+    private static Object normalizeKey(Object key) {
+        if (key instanceof String)
+            return ((String) key).toLowerCase();
+
+        return key;
+    }
+}
@@ -52,4 +52,11 @@ public interface DatabaseConnection {
      * settled. This method should be called every 2 server ticks (~100ms) on the main thread.
      */
     public void doPollForResults();
+    
+    /**
+     * Returns the statistics about the queries which have been handled by this connection.
+     * 
+     * @return Statistics of this connection.
+     */
+    public DatabaseStatistics getStatistics();
 }
@@ -18,6 +18,7 @@ package com.mineground.database;
 import java.util.logging.Logger;
 
 import com.mineground.base.Promise;
+import com.mineground.base.PromiseCancellationHandler;
 import com.mineground.base.PromiseError;
 
 /**
@@ -70,13 +71,20 @@ public class DatabaseConnectionImpl implements DatabaseConnection {
 
     /**
      * Creates a PendingQuery instance holding |query|, and adds it to a queue on the database
-     * thread. The promise belonging to the PendingQuery will be returned.
+     * thread. The promise belonging to the PendingQuery will be returned. Cancelling the promise
+     * will remove the query from the queue, or cancel its execution when it's already running.
      */
     public Promise<DatabaseResult> enqueueQueryForExecution(String query, DatabaseStatementParams parameters) {
         if (mDatabaseThread == null)
             throw new RuntimeException("A query is being queued for execution while the database thread is inactive.");
         
-        PendingQuery pendingQuery = new PendingQuery(query, parameters);
+        final PendingQuery pendingQuery = new PendingQuery(query, parameters);
+        pendingQuery.promise.onCancelled(new PromiseCancellationHandler() {
+            public void onCancelled() {
+                mDatabaseThread.cancel(pendingQuery);
+            }
+        });
+        
         mDatabaseThread.enqueue(pendingQuery);
 
         return pendingQuery.promise;
@@ -89,12 +97,22 @@ public class DatabaseConnectionImpl implements DatabaseConnection {
     public void doPollForResults() {
         PendingQuery finishedQuery = mDatabaseThread.immediatelyRetrieveFinishedQuery();
         while (finishedQuery != null) {
-            if (finishedQuery.result != null)
-                finishedQuery.promise.resolve(finishedQuery.result);
-            else
-                finishedQuery.promise.reject(new PromiseError(finishedQuery.error));
+            // The promises of cancelled queries have already been rejected by their requester.
+            if (!finishedQuery.cancelled) {
+                if (finishedQuery.result != null)
+                    finishedQuery.promise.resolve(finishedQuery.result);
+                else
+                    finishedQuery.promise.reject(new PromiseError(finishedQuery.error));
+            }
             
             finishedQuery = mDatabaseThread.immediatelyRetrieveFinishedQuery();
         }
     }
+    
+    /**
+     * Returns the statistics about the queries which have been handled by the database thread.
+     */
+    public DatabaseStatistics getStatistics() {
+        return mDatabaseThread.getStatistics();
+    }
 }
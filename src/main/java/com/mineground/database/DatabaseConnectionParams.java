@@ -30,4 +30,7 @@ public class DatabaseConnectionParams {
     
     // The database in which all of Mineground's information is stored.
     String database;
+    
+    // Optional file to which a trace of all executed queries should be written.
+    String captureFile;
 }
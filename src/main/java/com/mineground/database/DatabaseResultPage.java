@@ -0,0 +1,53 @@
+/**
+ * Copyright (c) 2011 - 2014 Mineground, Las Venturas Playground
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.mineground.database;
+
+import java.util.List;
+
+/**
+ * A single page of rows returned by a keyset-paginated query, created through the executePage()
+ * method of DatabaseStatement. The cursor for the next page is the key of the last row on this
+ * page, which the next query will seek past instead of counting rows using an OFFSET.
+ */
+public class DatabaseResultPage {
+    /**
+     * The rows on this page. There will never be more rows than the requested page size.
+     */
+    public final List<DatabaseResultRow> rows;
+    
+    /**
+     * Whether there are more rows available after this page.
+     */
+    public final boolean hasNextPage;
+    
+    /**
+     * The cursor which should be passed to executePage() in order to retrieve the next page. Only
+     * meaningful when |hasNextPage| is true.
+     */
+    public final long nextCursor;
+    
+    DatabaseResultPage(DatabaseResult result, String keyColumn, int pageSize) {
+        // The query selects one row more than the page size, which tells us whether there are any
+        // rows beyond this page without having to count them.
+        hasNextPage = result.rows.size() > pageSize;
+        rows = hasNextPage ? result.rows.subList(0, pageSize) : result.rows;
+        
+        if (hasNextPage)
+            nextCursor = rows.get(pageSize - 1).getInteger(keyColumn);
+        else
+            nextCursor = 0;
+    }
+}
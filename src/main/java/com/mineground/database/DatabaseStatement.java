@@ -16,6 +16,7 @@
 package com.mineground.database;
 
 import com.mineground.base.Promise;
+import com.mineground.base.PromiseFunction;
 
 /**
  * The DatabaseStatement class encapsulates a prepared statement which can be reused during its
@@ -86,10 +87,41 @@ public class DatabaseStatement {
     /**
      * Sends |mQuery| to the database connection to be executed, together with the parameters as
      * they have been stored for this statement. Preparing the statement will be done by the thread.
+     * A copy of the parameters will be sent, as the statement may be executed again with different
+     * parameters before the database thread gets to executing this query.
      * 
      * @return A Promise, which will be resolved when the query finished executing.
      */
     public Promise<DatabaseResult> execute() {
-        return mDatabase.query(mQuery, mParameters);
+        return mDatabase.query(mQuery, new DatabaseStatementParams(mParameters));
+    }
+    
+    /**
+     * Executes this statement as a single page of a keyset-paginated query. Rather than skipping
+     * rows using an OFFSET, which gets slower for every page, the query seeks past the key of the
+     * last row on the previous page. The query must end with a clause in the following form, where
+     * the parameter for the cursor is at |cursorParameterIndex| and the limit directly follows it:
+     * 
+     *     ... AND key_column < ? ORDER BY key_column DESC LIMIT ?
+     * 
+     * Long.MAX_VALUE should be passed as the |cursor| for the first page. The cursor for the pages
+     * thereafter is available on the DatabaseResultPage the promise will be resolved with.
+     * 
+     * @param cursorParameterIndex  Index (one-based) of the parameter for the cursor.
+     * @param keyColumn             Name of the column containing the key, which must be selected.
+     * @param cursor                The cursor of the page which should be retrieved.
+     * @param pageSize              The maximum number of rows on the page.
+     * @return                      A Promise, which will be resolved with the page.
+     */
+    public Promise<DatabaseResultPage> executePage(int cursorParameterIndex, final String keyColumn, long cursor, final int pageSize) {
+        // Select one row more than the page size, to know whether there is a next page.
+        setInteger(cursorParameterIndex, cursor);
+        setInteger(cursorParameterIndex + 1, pageSize + 1);
+        
+        return execute().map(new PromiseFunction<DatabaseResult, DatabaseResultPage>() {
+            public DatabaseResultPage apply(DatabaseResult result) {
+                return new DatabaseResultPage(result, keyColumn, pageSize);
+            }
+        });
     }
 }
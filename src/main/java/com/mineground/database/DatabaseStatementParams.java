@@ -22,4 +22,12 @@ import java.util.HashMap;
  */
 public class DatabaseStatementParams extends HashMap<Integer, Object> {
     private static final long serialVersionUID = 6532469330995484424L;
+    
+    public DatabaseStatementParams() {
+        super();
+    }
+    
+    public DatabaseStatementParams(DatabaseStatementParams parameters) {
+        super(parameters);
+    }
 }
@@ -0,0 +1,64 @@
+/**
+ * Copyright (c) 2011 - 2014 Mineground, Las Venturas Playground
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.mineground.database;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters describing the queries which have been handled by the database thread. The counters
+ * will be updated from the database thread and its watchdog, but may be read from any thread.
+ */
+public class DatabaseStatistics {
+    /**
+     * Number of queries which have been executed on the database, regardless of their outcome.
+     */
+    private final AtomicLong mExecutedQueries = new AtomicLong();
+    
+    /**
+     * Number of queries which have failed to execute, including those which were cancelled.
+     */
+    private final AtomicLong mFailedQueries = new AtomicLong();
+    
+    /**
+     * Number of queries which have been cancelled by their requester, either whilst waiting in the
+     * queue or whilst executing on the database.
+     */
+    private final AtomicLong mCancelledQueries = new AtomicLong();
+    
+    /**
+     * Number of queries which have been killed by the watchdog for exceeding their deadline.
+     */
+    private final AtomicLong mWatchdogTerminations = new AtomicLong();
+    
+    public void recordExecutedQuery(boolean succeeded) {
+        mExecutedQueries.incrementAndGet();
+        if (!succeeded)
+            mFailedQueries.incrementAndGet();
+    }
+    
+    public void recordCancelledQuery() {
+        mCancelledQueries.incrementAndGet();
+    }
+    
+    public void recordWatchdogTermination() {
+        mWatchdogTerminations.incrementAndGet();
+    }
+    
+    public long getExecutedQueries() { return mExecutedQueries.get(); }
+    public long getFailedQueries() { return mFailedQueries.get(); }
+    public long getCancelledQueries() { return mCancelledQueries.get(); }
+    public long getWatchdogTerminations() { return mWatchdogTerminations.get(); }
+}
@@ -15,6 +15,7 @@
 
 package com.mineground.database;
 
+import java.io.IOException;
 import java.sql.Connection;
 import java.sql.DriverManager;
 import java.sql.PreparedStatement;
@@ -24,6 +25,8 @@ import java.sql.SQLException;
 import java.sql.Statement;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Timer;
+import java.util.TimerTask;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.TimeUnit;
 import java.util.logging.Logger;
@@ -38,6 +41,18 @@ public class DatabaseThread extends Thread {
      * duration the query will be considered as having failed.
      */
     private final static int MAXIMUM_QUERY_EXECUTION_TIME = 10;
+    
+    /**
+     * The number of *milliseconds* a query may execute beyond MAXIMUM_QUERY_EXECUTION_TIME before
+     * the watchdog forcefully cancels it. The driver should normally enforce the timeout itself,
+     * but it can't do so when the connection or the server has stopped responding.
+     */
+    private final static int WATCHDOG_GRACE_TIME = 2000;
+    
+    /**
+     * Interval, in *milliseconds*, at which the watchdog checks the query which is executing.
+     */
+    private final static int WATCHDOG_INTERVAL = 1000;
 
     /**
      * Connection parameters which are being used to connect to the database. This field will be
@@ -72,6 +87,30 @@ public class DatabaseThread extends Thread {
      */
     private Connection mConnection;
     
+    /**
+     * Statistics about the queries which have been handled by this thread.
+     */
+    private final DatabaseStatistics mStatistics;
+    
+    // The query which is currently executing on the database, together with its statement and the
+    // time at which its execution started. These are shared with the watchdog and with the main
+    // thread (for cancellation), so must only be accessed whilst holding |mActiveQueryLock|.
+    private final Object mActiveQueryLock;
+    private PendingQuery mActiveQuery;
+    private Statement mActiveStatement;
+    private long mActiveQueryStartTime;
+    private boolean mActiveQueryTerminated;
+    
+    /**
+     * The timer on which the watchdog runs, which terminates queries running beyond their deadline.
+     */
+    private Timer mWatchdogTimer;
+    
+    /**
+     * The workload capture to which all executed queries will be written, when enabled.
+     */
+    private DatabaseWorkloadCapture mWorkloadCapture;
+    
     /**
      * Exception which will be thrown by the executeQuery() method when it notices that the open
      * connection with the database server has been lost.
@@ -84,6 +123,8 @@ public class DatabaseThread extends Thread {
         mConnectionParams = connectionParams;
         
         mLogger = Logger.getLogger(getClass().getCanonicalName());
+        mStatistics = new DatabaseStatistics();
+        mActiveQueryLock = new Object();
         mShutdownRequested = false;
         mPendingQueryQueue = new LinkedBlockingQueue<PendingQuery>();
         
@@ -98,6 +139,22 @@ public class DatabaseThread extends Thread {
      * the |mFinishedQueryQueue| so that the main thread can run off with the results.
      */
     public void run() {
+        mWatchdogTimer = new Timer("Mineground Database Watchdog", true /** isDaemon **/);
+        mWatchdogTimer.schedule(new TimerTask() {
+            public void run() {
+                checkActiveQuery();
+            }
+        }, WATCHDOG_INTERVAL, WATCHDOG_INTERVAL);
+        
+        if (mConnectionParams.captureFile != null && !mConnectionParams.captureFile.isEmpty()) {
+            try {
+                mWorkloadCapture = new DatabaseWorkloadCapture(mConnectionParams.captureFile);
+                mLogger.info("Capturing the database workload to " + mConnectionParams.captureFile + ".");
+            } catch (IOException exception) {
+                mLogger.severe("Unable to open the workload capture file: " + exception.getMessage());
+            }
+        }
+        
         int reconnectionBackoffExponent = 0, reconnectionBackoffSeconds = 0;
         while (!mShutdownRequested) {
             if (mConnection == null) {
@@ -123,7 +180,7 @@ public class DatabaseThread extends Thread {
 
             try {
                 PendingQuery query = mPendingQueryQueue.poll(1, TimeUnit.SECONDS);
-                if (query == null)
+                if (query == null || query.cancelled)
                     continue;
                 
                 mFinishedQueryQueue.add(executeQuery(query));
@@ -140,21 +197,36 @@ public class DatabaseThread extends Thread {
         // pending SELECT queries, given that it's likely their features are gone already.
         if (mPendingQueryQueue.size() > 0) {
             mLogger.info("Shutting down database thread.. flushing " + mPendingQueryQueue.size() + " queries.");
-            while (mPendingQueryQueue.size() > 0) {
-                PendingQuery query = mPendingQueryQueue.poll();
-                if (query == null || query.query.startsWith("SELECT"))
+            
+            final List<PendingQuery> remainingQueries = new ArrayList<PendingQuery>();
+            mPendingQueryQueue.drainTo(remainingQueries);
+            
+            // Group consecutive writes with the same query, so that each group can be executed as
+            // a single batch. Writes are never moved past writes with a different query, as they
+            // may update the same rows, so the order of the queue will be maintained.
+            final List<List<PendingQuery>> batches = new ArrayList<List<PendingQuery>>();
+            List<PendingQuery> batch = null;
+            
+            for (PendingQuery query : remainingQueries) {
+                if (query.cancelled || query.query.startsWith("SELECT"))
                     continue;
                 
-                try {
-                    executeQuery(query);
-
-                } catch (ConnectionLostException e) {
-                    // If we *did* lose connection at this point, we're just going to give up. It's
-                    // likely that the plugin is being reloaded because of database connectivity
-                    // issues as it is, and reconnecting would just block the database further.
-                    mLogger.severe("Could not cleanly shut down the database thread. Queries lost.");
-                    return;
+                if (batch == null || !batch.get(0).query.equals(query.query)) {
+                    batch = new ArrayList<PendingQuery>();
+                    batches.add(batch);
                 }
+                
+                batch.add(query);
+            }
+            
+            if (batches.size() > 0) {
+                // If we lost connection at this point, we're just going to give up. It's likely
+                // that the plugin is being reloaded because of database connectivity issues as it
+                // is, and reconnecting would just block the database further.
+                if (mConnection == null)
+                    mLogger.severe("Could not cleanly shut down the database thread. Queries lost.");
+                else
+                    flushBatches(batches);
             }
         }
 
@@ -162,6 +234,8 @@ public class DatabaseThread extends Thread {
         mFinishedQueryQueue.clear();
         mShutdownRequested = false;
         
+        mWatchdogTimer.cancel();
+        stopWorkloadCapture();
         disconnect();
     }
     
@@ -175,30 +249,26 @@ public class DatabaseThread extends Thread {
      */
     private PendingQuery executeQuery(PendingQuery query) throws ConnectionLostException {
         boolean executed = false;
+        long executionStartTime = 0;
+        PreparedStatement statement = null;
         try {
-            final PreparedStatement statement = mConnection.prepareStatement(query.query, Statement.RETURN_GENERATED_KEYS);
+            statement = mConnection.prepareStatement(query.query, Statement.RETURN_GENERATED_KEYS);
             final DatabaseResult result = new DatabaseResult();
             
             statement.setQueryTimeout(MAXIMUM_QUERY_EXECUTION_TIME);
-            if (query.parameters != null) {
-                // Apply all parameters to the prepared statement depending on their type. Only
-                // the types supported in DatabaseStatement will be inserted here. If an entry
-                // with an unknown type is occurred, execution of this query will be aborted.
-                for (int parameterIndex : query.parameters.keySet()) {
-                    Object parameter = query.parameters.get(parameterIndex);
-                    
-                    if (parameter instanceof String)
-                        statement.setString(parameterIndex, (String) parameter);
-                    else if (parameter instanceof Long)
-                        statement.setLong(parameterIndex, (Long) parameter);
-                    else if (parameter instanceof Double)
-                        statement.setDouble(parameterIndex, (Double) parameter);
-                    else {
-                        query.error = "Invalid query parameter supplied at index " + parameterIndex;
-                        return query;
-                    }
-                }
+            
+            final int invalidParameterIndex = applyParameters(statement, query.parameters);
+            if (invalidParameterIndex != 0) {
+                query.error = "Invalid query parameter supplied at index " + invalidParameterIndex;
+                return query;
             }
+            
+            // Mark the query as being active, which allows it to be cancelled by the main thread
+            // or by the watchdog. Bail out if it has been cancelled since it left the queue.
+            if (!activateQuery(query, statement))
+                return query;
+            
+            executionStartTime = System.nanoTime();
 
             if (statement.execute()) {
                 executed = true; // so that we don't accidentially run the query again.
@@ -247,11 +317,245 @@ public class DatabaseThread extends Thread {
                     exception.getErrorCode() + "): " + exception.getMessage();
 
             query.error = message;
+        } finally {
+            deactivateQuery();
+            if (statement != null) {
+                try {
+                    statement.close();
+                } catch (SQLException exception) { /** It's safe to ignore this exception **/ }
+            }
+        }
+        
+        mStatistics.recordExecutedQuery(query.error == null);
+        if (mWorkloadCapture != null) {
+            try {
+                mWorkloadCapture.record(query, System.nanoTime() - executionStartTime);
+            } catch (IOException exception) {
+                mLogger.severe("Unable to write to the workload capture, disabling it: " + exception.getMessage());
+                stopWorkloadCapture();
+            }
         }
         
         return query;
     }
     
+    /**
+     * Applies |parameters| to the prepared |statement| depending on their type. Only the types
+     * supported in DatabaseStatement will be applied. If an entry with an unknown type is found,
+     * its index will be returned and execution of the query should be aborted.
+     * 
+     * @param statement     The statement to apply the parameters to.
+     * @param parameters    The parameters which should be applied, may be NULL.
+     * @return              Index of an invalid parameter, or zero if all parameters were applied.
+     */
+    private int applyParameters(PreparedStatement statement, DatabaseStatementParams parameters) throws SQLException {
+        if (parameters == null)
+            return 0;
+        
+        for (int parameterIndex : parameters.keySet()) {
+            Object parameter = parameters.get(parameterIndex);
+            
+            if (parameter instanceof String)
+                statement.setString(parameterIndex, (String) parameter);
+            else if (parameter instanceof Long)
+                statement.setLong(parameterIndex, (Long) parameter);
+            else if (parameter instanceof Double)
+                statement.setDouble(parameterIndex, (Double) parameter);
+            else
+                return parameterIndex;
+        }
+        
+        return 0;
+    }
+    
+    /**
+     * Executes the groups of queries in |batches| as JDBC batches within a single transaction. This
+     * is used for flushing the remaining writes when the thread shuts down, which has to finish in
+     * a few seconds. If the transaction fails for reasons other than losing the connection, the
+     * queries will be executed one by one instead, so that a single failing query won't cause the
+     * writes of all other queries to be lost. Either way, the queries are executed in order.
+     * 
+     * @param batches Runs of consecutive queries sharing the same query text, in queue order.
+     */
+    private void flushBatches(List<List<PendingQuery>> batches) {
+        final long flushStartTime = System.currentTimeMillis();
+        
+        // The executed batches and their execution times, which will be recorded once the
+        // transaction has been committed.
+        final List<List<PendingQuery>> executedBatches = new ArrayList<List<PendingQuery>>();
+        final List<Long> executionTimes = new ArrayList<Long>();
+        int queryCount = 0;
+        
+        try {
+            mConnection.setAutoCommit(false);
+            for (List<PendingQuery> batch : batches) {
+                final List<PendingQuery> executedQueries = new ArrayList<PendingQuery>(batch.size());
+                final PreparedStatement statement = mConnection.prepareStatement(batch.get(0).query);
+                try {
+                    statement.setQueryTimeout(MAXIMUM_QUERY_EXECUTION_TIME);
+                    for (PendingQuery query : batch) {
+                        if (applyParameters(statement, query.parameters) != 0) {
+                            mLogger.severe("Invalid query parameters supplied, dropping query: " + query.query);
+                            continue;
+                        }
+                        
+                        statement.addBatch();
+                        executedQueries.add(query);
+                    }
+                    
+                    final long executionStartTime = System.nanoTime();
+                    statement.executeBatch();
+                    
+                    executedBatches.add(executedQueries);
+                    executionTimes.add(System.nanoTime() - executionStartTime);
+                    queryCount += executedQueries.size();
+                    
+                } finally {
+                    statement.close();
+                }
+            }
+            
+            mConnection.commit();
+            mConnection.setAutoCommit(true);
+            
+            for (int batchIndex = 0; batchIndex < executedBatches.size(); ++batchIndex)
+                recordBatch(executedBatches.get(batchIndex), executionTimes.get(batchIndex));
+            
+            mLogger.info("Flushed " + queryCount + " queries in " + batches.size() + " batches (" +
+                    (System.currentTimeMillis() - flushStartTime) + "ms).");
+            
+        } catch (SQLException exception) {
+            try {
+                mConnection.rollback();
+                mConnection.setAutoCommit(true);
+            } catch (SQLException rollbackException) { /** It's safe to ignore this exception **/ }
+            
+            if (isErrorCodeConnectionLost(exception)) {
+                mLogger.severe("Could not cleanly shut down the database thread. Queries lost.");
+                return;
+            }
+            
+            mLogger.warning("Unable to flush the queries in batches, executing them individually: " + exception.getMessage());
+            for (List<PendingQuery> batch : batches) {
+                for (PendingQuery query : batch) {
+                    try {
+                        executeQuery(query);
+                    } catch (ConnectionLostException connectionLostException) {
+                        mLogger.severe("Could not cleanly shut down the database thread. Queries lost.");
+                        return;
+                    }
+                }
+            }
+        }
+    }
+    
+    /**
+     * Records the |queries| which have been executed as part of a batch in the statistics and the
+     * workload capture. The execution time of the batch will be divided evenly over the queries.
+     * 
+     * @param queries       The queries which have been executed in the batch.
+     * @param executionTime The time, in nanoseconds, it took to execute the batch.
+     */
+    private void recordBatch(List<PendingQuery> queries, long executionTime) {
+        for (PendingQuery query : queries) {
+            mStatistics.recordExecutedQuery(true);
+            if (mWorkloadCapture == null)
+                continue;
+            
+            try {
+                mWorkloadCapture.record(query, executionTime / queries.size());
+            } catch (IOException exception) {
+                mLogger.severe("Unable to write to the workload capture, disabling it: " + exception.getMessage());
+                stopWorkloadCapture();
+            }
+        }
+    }
+    
+    /**
+     * Stops capturing the workload, if enabled, and closes the trace file.
+     */
+    private void stopWorkloadCapture() {
+        if (mWorkloadCapture == null)
+            return;
+        
+        mWorkloadCapture.close();
+        mWorkloadCapture = null;
+    }
+    
+    /**
+     * Marks |query| as the query which is currently being executed through |statement|. When the
+     * query has already been cancelled by its requester, it will not be activated.
+     * 
+     * @param query     The query which is about to be executed.
+     * @param statement The statement through which it will be executed.
+     * @return          Whether the query has been activated, false if it has been cancelled.
+     */
+    private boolean activateQuery(PendingQuery query, Statement statement) {
+        synchronized (mActiveQueryLock) {
+            if (query.cancelled) {
+                mStatistics.recordCancelledQuery();
+                return false;
+            }
+            
+            mActiveQuery = query;
+            mActiveStatement = statement;
+            mActiveQueryStartTime = System.currentTimeMillis();
+            mActiveQueryTerminated = false;
+        }
+        
+        return true;
+    }
+    
+    /**
+     * Clears the active query, after which it can no longer be cancelled.
+     */
+    private void deactivateQuery() {
+        synchronized (mActiveQueryLock) {
+            mActiveQuery = null;
+            mActiveStatement = null;
+        }
+    }
+    
+    /**
+     * Invoked periodically on the watchdog's timer thread. If the active query has been executing
+     * for longer than its deadline, its statement will be cancelled and the termination recorded.
+     */
+    private void checkActiveQuery() {
+        Statement statement = null;
+        String query = null;
+        long executionTime = 0;
+        
+        synchronized (mActiveQueryLock) {
+            if (mActiveQuery == null || mActiveQueryTerminated)
+                return;
+            
+            executionTime = System.currentTimeMillis() - mActiveQueryStartTime;
+            if (executionTime < MAXIMUM_QUERY_EXECUTION_TIME * 1000 + WATCHDOG_GRACE_TIME)
+                return;
+            
+            mActiveQueryTerminated = true;
+            statement = mActiveStatement;
+            query = mActiveQuery.query;
+        }
+        
+        mLogger.warning("Terminating a query which has been executing for " + executionTime + "ms: " + query);
+        mStatistics.recordWatchdogTermination();
+        
+        cancelStatement(statement);
+    }
+    
+    /**
+     * Cancels execution of |statement|. This is safe to call from any thread, and will be ignored
+     * if the statement has finished executing or has been closed in the mean time.
+     * 
+     * @param statement The statement which should be cancelled.
+     */
+    private void cancelStatement(Statement statement) {
+        try {
+            statement.cancel();
+        } catch (SQLException exception) { /** It's safe to ignore this exception **/ }
+    }
+    
     /**
      * If we can recognize the |exception| thrown by the database driver as something which means
      * that the connection has been lost, Mineground should automatically reconnect to the server.
@@ -278,8 +582,10 @@ public class DatabaseThread extends Thread {
      * @return Whether the connection to the database was successful.
      */
     private boolean connect() {
+        // Batched statements will be rewritten to multi-row statements by the driver, which makes
+        // executing them significantly faster, particularly when flushing writes on shutdown.
         String connectionUrl = "jdbc:mysql://" + mConnectionParams.hostname + ":" +
-                mConnectionParams.port + "/" + mConnectionParams.database;
+                mConnectionParams.port + "/" + mConnectionParams.database + "?rewriteBatchedStatements=true";
         
         try {
             mConnection = DriverManager.getConnection(connectionUrl, mConnectionParams.username, mConnectionParams.password);
@@ -331,6 +637,31 @@ public class DatabaseThread extends Thread {
         mPendingQueryQueue.add(pendingQuery);
     }
     
+    /**
+     * Cancels |pendingQuery|. If it's still waiting in the queue it will be removed, whereas it will
+     * be cancelled on the database when it's currently being executed. The query will still be
+     * returned through the finished queue in the latter case, but must be ignored there.
+     * 
+     * @param pendingQuery The query which should be cancelled.
+     */
+    public void cancel(PendingQuery pendingQuery) {
+        Statement statement = null;
+        synchronized (mActiveQueryLock) {
+            pendingQuery.cancelled = true;
+            if (mActiveQuery == pendingQuery)
+                statement = mActiveStatement;
+        }
+        
+        if (statement != null) {
+            mStatistics.recordCancelledQuery();
+            cancelStatement(statement);
+            return;
+        }
+        
+        if (mPendingQueryQueue.remove(pendingQuery))
+            mStatistics.recordCancelledQuery();
+    }
+    
     /**
      * Immediately returns the PendingQuery object of a finished query if one is available. The
      * name emphasizes the fact that we will not block the main thread on this.
@@ -340,4 +671,13 @@ public class DatabaseThread extends Thread {
     public PendingQuery immediatelyRetrieveFinishedQuery() {
         return mFinishedQueryQueue.poll();
     }
+    
+    /**
+     * Returns the statistics about the queries which have been handled by this thread.
+     * 
+     * @return Statistics of this thread.
+     */
+    public DatabaseStatistics getStatistics() {
+        return mStatistics;
+    }
 }
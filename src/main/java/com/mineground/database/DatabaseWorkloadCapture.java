@@ -0,0 +1,177 @@
+/**
+ * Copyright (c) 2011 - 2014 Mineground, Las Venturas Playground
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.mineground.database;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Writes a compact binary trace of the queries executed by the database thread, which can be used
+ * to replay Mineground's real workload against a test database using DatabaseWorkloadReplay. The
+ * trace is only written to from the database thread, so this class is not thread-safe.
+ *
+ * The trace starts with a header (the FILE_MAGIC and FILE_VERSION constants, followed by the time
+ * at which the capture started in milliseconds since the epoch), followed by a list of records:
+ *
+ *     RECORD_QUERY_TEXT   varint id, UTF-8 query text
+ *     RECORD_QUERY        varint query text id, zigzag varlong submit time (in microseconds since
+ *                         the previous query), varlong execution time (in microseconds), byte
+ *                         succeeded, varint parameter count, followed by the parameters.
+ *
+ * Each query text will be written once, the first time it's being executed. Parameters are written
+ * as a varint parameter index, followed by a type byte and the value itself. Numbers are written
+ * using variable-length encodings, as most of Mineground's parameters are small Ids and counters.
+ */
+public class DatabaseWorkloadCapture {
+    public static final int FILE_MAGIC = 0x4D475754; // "MGWT"
+    public static final int FILE_VERSION = 1;
+    
+    public static final int RECORD_QUERY_TEXT = 1;
+    public static final int RECORD_QUERY = 2;
+    
+    public static final int PARAMETER_STRING = 1;
+    public static final int PARAMETER_LONG = 2;
+    public static final int PARAMETER_DOUBLE = 3;
+    
+    /**
+     * The output stream to which the trace is being written.
+     */
+    private final DataOutputStream mOutput;
+    
+    /**
+     * Map between the query texts which have been written to the trace and their Ids.
+     */
+    private final Map<String, Integer> mQueryTextIds;
+    
+    /**
+     * Submit time, in nanoseconds, of the previously captured query. Submit times are written as
+     * deltas to keep the trace compact. Initialized to the time at which the capture started.
+     */
+    private long mPreviousSubmitTime;
+    
+    public DatabaseWorkloadCapture(String filename) throws IOException {
+        mOutput = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(filename)));
+        mQueryTextIds = new HashMap<String, Integer>();
+        mPreviousSubmitTime = System.nanoTime();
+        
+        mOutput.writeInt(FILE_MAGIC);
+        mOutput.writeShort(FILE_VERSION);
+        mOutput.writeLong(System.currentTimeMillis());
+    }
+    
+    /**
+     * Writes |query| to the trace. Its parameters will be written in the form they have been
+     * received in, the submit time will be read from the query itself.
+     * 
+     * @param query         The query which has been executed.
+     * @param executionTime The time, in nanoseconds, it took to execute the query.
+     * @throws IOException  When the trace could not be written to.
+     */
+    public void record(PendingQuery query, long executionTime) throws IOException {
+        Integer queryTextId = mQueryTextIds.get(query.query);
+        if (queryTextId == null) {
+            queryTextId = mQueryTextIds.size() + 1;
+            mQueryTextIds.put(query.query, queryTextId);
+            
+            mOutput.writeByte(RECORD_QUERY_TEXT);
+            writeVarLong(mOutput, queryTextId);
+            mOutput.writeUTF(query.query);
+        }
+        
+        mOutput.writeByte(RECORD_QUERY);
+        writeVarLong(mOutput, queryTextId);
+        writeVarLong(mOutput, zigZagEncode((query.submitTime - mPreviousSubmitTime) / 1000));
+        writeVarLong(mOutput, executionTime / 1000);
+        mOutput.writeByte(query.error == null ? 1 : 0);
+        
+        mPreviousSubmitTime = query.submitTime;
+        
+        if (query.parameters == null) {
+            writeVarLong(mOutput, 0);
+            return;
+        }
+        
+        writeVarLong(mOutput, query.parameters.size());
+        for (Map.Entry<Integer, Object> parameter : query.parameters.entrySet()) {
+            final Object value = parameter.getValue();
+            
+            writeVarLong(mOutput, parameter.getKey());
+            if (value instanceof String) {
+                mOutput.writeByte(PARAMETER_STRING);
+                mOutput.writeUTF((String) value);
+            } else if (value instanceof Long) {
+                mOutput.writeByte(PARAMETER_LONG);
+                writeVarLong(mOutput, zigZagEncode((Long) value));
+            } else if (value instanceof Double) {
+                mOutput.writeByte(PARAMETER_DOUBLE);
+                mOutput.writeDouble((Double) value);
+            } else
+                throw new IOException("Unable to capture a parameter of type " + value.getClass().getName());
+        }
+    }
+    
+    /**
+     * Flushes the remaining buffered records to the trace, and closes it.
+     */
+    public void close() {
+        try {
+            mOutput.close();
+        } catch (IOException exception) { /** It's safe to ignore this exception **/ }
+    }
+    
+    /**
+     * Writes |value| as an unsigned variable-length integer, seven bits per byte.
+     */
+    static void writeVarLong(DataOutputStream output, long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            output.writeByte((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        
+        output.writeByte((int) value);
+    }
+    
+    /**
+     * Reads an unsigned variable-length integer as written by writeVarLong().
+     */
+    static long readVarLong(DataInputStream input) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            final int currentByte = input.readUnsignedByte();
+            value |= (long) (currentByte & 0x7F) << shift;
+            if ((currentByte & 0x80) == 0)
+                return value;
+        }
+        
+        throw new IOException("Malformed variable-length integer in the workload trace.");
+    }
+    
+    /**
+     * Maps signed integers to unsigned ones, so that small negative values stay small.
+     */
+    static long zigZagEncode(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+    
+    static long zigZagDecode(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+}
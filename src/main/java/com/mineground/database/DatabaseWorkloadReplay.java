@@ -0,0 +1,265 @@
+/**
+ * Copyright (c) 2011 - 2014 Mineground, Las Venturas Playground
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.mineground.database;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Command-line tool which replays a workload trace written by DatabaseWorkloadCapture. The queries
+ * will be executed on a single connection in the order they were captured in, paced by the time at
+ * which they were submitted, mirroring how the database thread executes them. The speed factor may
+ * be used to accelerate the replay, or set to zero to execute all queries as fast as possible.
+ *
+ * When no JDBC URL is passed, the replay will run against a stand-in which only simulates the
+ * captured execution times. This is useful for verifying a trace before replaying it for real.
+ *
+ *     java -cp mineground.jar:mysql-connector.jar com.mineground.database.DatabaseWorkloadReplay
+ *         trace-file speed [jdbc-url username password]
+ *
+ * Mind that the trace contains all of the writes which were made, so it must never be replayed
+ * against the production database. Use a copy of it instead.
+ */
+public class DatabaseWorkloadReplay {
+    /**
+     * A query as it has been read from the trace file.
+     */
+    private static class TraceQuery {
+        public int queryTextId;
+        public long submitTime; // microseconds since the capture started.
+        public long executionTime; // microseconds.
+        public boolean succeeded;
+        public DatabaseStatementParams parameters;
+    }
+    
+    /**
+     * Statistics gathered for all queries sharing the same query text.
+     */
+    private static class QueryTextStatistics {
+        public int count;
+        public int failures;
+        public long capturedExecutionTime;
+        public long replayedExecutionTime;
+    }
+    
+    private final Map<Integer, String> mQueryTexts = new HashMap<Integer, String>();
+    private final List<TraceQuery> mQueries = new ArrayList<TraceQuery>();
+    
+    private final Map<Integer, QueryTextStatistics> mStatistics = new TreeMap<Integer, QueryTextStatistics>();
+    private long mMaximumLag;
+    
+    public static void main(String[] arguments) throws Exception {
+        if (arguments.length != 2 && arguments.length != 5) {
+            System.out.println("Usage: DatabaseWorkloadReplay trace-file speed [jdbc-url username password]");
+            System.out.println("       A speed of 1 replays in real time, 0 replays as fast as possible.");
+            return;
+        }
+        
+        final DatabaseWorkloadReplay replay = new DatabaseWorkloadReplay();
+        replay.readTrace(arguments[0]);
+        
+        Connection connection = null;
+        if (arguments.length == 5)
+            connection = DriverManager.getConnection(arguments[2], arguments[3], arguments[4]);
+        
+        try {
+            replay.replay(connection, Double.parseDouble(arguments[1]));
+        } finally {
+            if (connection != null)
+                connection.close();
+        }
+        
+        replay.printStatistics();
+    }
+    
+    /**
+     * Reads the trace stored in |filename| in its entirety.
+     * 
+     * @param filename      Name of the file containing the trace.
+     * @throws IOException  When the trace could not be read, or is malformed.
+     */
+    private void readTrace(String filename) throws IOException {
+        final DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(filename)));
+        try {
+            if (input.readInt() != DatabaseWorkloadCapture.FILE_MAGIC)
+                throw new IOException("The file is not a Mineground workload trace.");
+            if (input.readShort() != DatabaseWorkloadCapture.FILE_VERSION)
+                throw new IOException("The workload trace has been written in an unsupported version.");
+            
+            input.readLong(); // the time at which the capture started.
+            
+            long submitTime = 0;
+            while (true) {
+                int recordType;
+                try {
+                    recordType = input.readUnsignedByte();
+                } catch (EOFException exception) {
+                    break;
+                }
+                
+                if (recordType == DatabaseWorkloadCapture.RECORD_QUERY_TEXT) {
+                    final int queryTextId = (int) DatabaseWorkloadCapture.readVarLong(input);
+                    mQueryTexts.put(queryTextId, input.readUTF());
+                    continue;
+                }
+                
+                if (recordType != DatabaseWorkloadCapture.RECORD_QUERY)
+                    throw new IOException("Unknown record type in the workload trace: " + recordType);
+                
+                final TraceQuery query = new TraceQuery();
+                query.queryTextId = (int) DatabaseWorkloadCapture.readVarLong(input);
+                
+                submitTime += DatabaseWorkloadCapture.zigZagDecode(DatabaseWorkloadCapture.readVarLong(input));
+                query.submitTime = submitTime;
+                query.executionTime = DatabaseWorkloadCapture.readVarLong(input);
+                query.succeeded = input.readByte() != 0;
+                query.parameters = new DatabaseStatementParams();
+                
+                final int parameterCount = (int) DatabaseWorkloadCapture.readVarLong(input);
+                for (int parameter = 0; parameter < parameterCount; ++parameter) {
+                    final int parameterIndex = (int) DatabaseWorkloadCapture.readVarLong(input);
+                    final int parameterType = input.readUnsignedByte();
+                    
+                    if (parameterType == DatabaseWorkloadCapture.PARAMETER_STRING)
+                        query.parameters.put(parameterIndex, input.readUTF());
+                    else if (parameterType == DatabaseWorkloadCapture.PARAMETER_LONG)
+                        query.parameters.put(parameterIndex, DatabaseWorkloadCapture.zigZagDecode(DatabaseWorkloadCapture.readVarLong(input)));
+                    else if (parameterType == DatabaseWorkloadCapture.PARAMETER_DOUBLE)
+                        query.parameters.put(parameterIndex, input.readDouble());
+                    else
+                        throw new IOException("Unknown parameter type in the workload trace: " + parameterType);
+                }
+                
+                mQueries.add(query);
+            }
+        } finally {
+            input.close();
+        }
+        
+        System.out.println("Read " + mQueries.size() + " queries (" + mQueryTexts.size() + " distinct) from " + filename + ".");
+    }
+    
+    /**
+     * Replays the queries which have been read from the trace on |connection|, or on the stand-in
+     * when |connection| is NULL. Queries will be executed sequentially, at their submit time divided
+     * by |speed|, or immediately when the previous query finished executing after that time.
+     * 
+     * @param connection    The connection to execute the queries on, or NULL.
+     * @param speed         Speed factor of the replay, or zero to disable pacing.
+     */
+    private void replay(Connection connection, double speed) throws InterruptedException {
+        if (mQueries.isEmpty())
+            return;
+        
+        final long firstSubmitTime = mQueries.get(0).submitTime;
+        final long replayStartTime = System.nanoTime();
+        
+        for (TraceQuery query : mQueries) {
+            final long elapsedTime = (System.nanoTime() - replayStartTime) / 1000;
+            if (speed > 0) {
+                final long targetTime = (long) ((query.submitTime - firstSubmitTime) / speed);
+                if (targetTime > elapsedTime)
+                    Thread.sleep((targetTime - elapsedTime) / 1000, (int) ((targetTime - elapsedTime) % 1000) * 1000);
+                else
+                    mMaximumLag = Math.max(mMaximumLag, elapsedTime - targetTime);
+            }
+            
+            final long executionStartTime = System.nanoTime();
+            boolean succeeded = true;
+            
+            if (connection != null)
+                succeeded = execute(connection, query);
+            else if (query.executionTime > 0)
+                Thread.sleep(query.executionTime / 1000, (int) (query.executionTime % 1000) * 1000);
+            
+            QueryTextStatistics statistics = mStatistics.get(query.queryTextId);
+            if (statistics == null) {
+                statistics = new QueryTextStatistics();
+                mStatistics.put(query.queryTextId, statistics);
+            }
+            
+            statistics.count++;
+            statistics.capturedExecutionTime += query.executionTime;
+            statistics.replayedExecutionTime += (System.nanoTime() - executionStartTime) / 1000;
+            if (!succeeded)
+                statistics.failures++;
+        }
+    }
+    
+    /**
+     * Executes |query| on |connection|, reading all rows of the result set if there is any.
+     * 
+     * @param connection    The connection to execute the query on.
+     * @param query         The query which should be executed.
+     * @return              Whether the query could be executed successfully.
+     */
+    private boolean execute(Connection connection, TraceQuery query) {
+        try {
+            final PreparedStatement statement = connection.prepareStatement(mQueryTexts.get(query.queryTextId));
+            try {
+                for (Map.Entry<Integer, Object> parameter : query.parameters.entrySet()) {
+                    if (parameter.getValue() instanceof String)
+                        statement.setString(parameter.getKey(), (String) parameter.getValue());
+                    else if (parameter.getValue() instanceof Long)
+                        statement.setLong(parameter.getKey(), (Long) parameter.getValue());
+                    else
+                        statement.setDouble(parameter.getKey(), (Double) parameter.getValue());
+                }
+                
+                if (statement.execute()) {
+                    final ResultSet resultSet = statement.getResultSet();
+                    while (resultSet.next()) { /** read the entire result set **/ }
+                }
+            } finally {
+                statement.close();
+            }
+        } catch (SQLException exception) {
+            return !query.succeeded; // queries which failed during the capture may fail again.
+        }
+        
+        return true;
+    }
+    
+    /**
+     * Prints the statistics of the replay per query text, comparing the average execution time
+     * during the capture with the average execution time during the replay.
+     */
+    private void printStatistics() {
+        System.out.println("Maximum lag behind the trace: " + (mMaximumLag / 1000) + "ms");
+        for (Map.Entry<Integer, QueryTextStatistics> entry : mStatistics.entrySet()) {
+            final QueryTextStatistics statistics = entry.getValue();
+            
+            System.out.println("#" + entry.getKey() + ": " + statistics.count + " queries, " +
+                    statistics.failures + " unexpected failures, average " +
+                    (statistics.capturedExecutionTime / statistics.count) + "us captured, " +
+                    (statistics.replayedExecutionTime / statistics.count) + "us replayed.");
+            System.out.println("    " + mQueryTexts.get(entry.getKey()));
+        }
+    }
+}
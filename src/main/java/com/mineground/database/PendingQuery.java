@@ -33,9 +33,17 @@ public class PendingQuery {
     public DatabaseResult result;
     public String error;
     
+    // Whether the requester cancelled the query. Written on the main thread, and read by both the
+    // database thread and the watchdog, hence the volatile modifier.
+    public volatile boolean cancelled;
+    
+    // Time, in nanoseconds, at which the query has been submitted for execution.
+    public final long submitTime;
+    
     public PendingQuery(String query_, DatabaseStatementParams parameters_) {
         promise = new Promise<DatabaseResult>();
         query = query_;
         parameters = parameters_;
+        submitTime = System.nanoTime();
     }
 }
\ No newline at end of file
@@ -44,22 +44,18 @@ public class AdministratorCommands extends FeatureBase {
      * in-game, the console and from IRC.
      * 
      * @param sender    The player, console or user wanting to add a note.
-     * @param arguments Arguments passed. Two+ are expected: a username and the note's message.
+     * @param username  The username of the player to add the note to.
+     * @param words     The words making up the note's message.
      */
-    @CommandHandler(value = "note", aliases = { "addnote" }, console = true, remote = true)
-    public void onNoteCommand(final CommandSender sender, String[] arguments) {
-        if (!sender.hasPermission("command.note")) {
-            displayCommandError(sender, "You don't have permission to create a note.");
-            return;
-        }
-        
-        if (arguments.length < 2) {
+    @CommandHandler(value = "note", aliases = { "addnote" }, console = true, remote = true,
+                    permission = "command.note", permissionMessage = "You don't have permission to create a note.")
+    public void onNoteCommand(final CommandSender sender, final String username, String[] words) {
+        if (words.length == 0) {
             displayCommandUsage(sender, "/note [username] [message]");
             return;
         }
         
-        final String username = arguments[0];
-        final String message = StringUtils.join(arguments, " ", 1);
+        final String message = StringUtils.join(words);
         getAccountManager().findUserId(username).then(new PromiseResultHandler<Integer>() {
             public void onFulfilled(Integer user_id) {
                 // TODO: Inform other administrators about this action.
@@ -83,22 +79,12 @@ public class AdministratorCommands extends FeatureBase {
      * from both in-game, the console and from IRC.
      * 
      * @param sender    The player, console or user requesting a user's notes.
-     * @param arguments Arguments passed. One is expected: a username.
+     * @param username  The username of the player whose notes should be displayed.
      */
-    @CommandHandler(value = "notes", aliases = { "why" }, console = true, remote = true)
-    public void onNotesCommand(final CommandSender sender, String[] arguments) {
-        if (!sender.hasPermission("command.notes")) {
-            displayCommandError(sender, "You don't have permission to request a player's notes.");
-            return;
-        }
-        
-        if (arguments.length == 0) {
-            displayCommandUsage(sender, "/notes [username]");
-            return;
-        }
-        
-        final String username = arguments[0];
-        PlayerLog.findNotes(username).then(new PromiseResultHandler<List<Note>>() {
+    @CommandHandler(value = "notes", aliases = { "why" }, console = true, remote = true,
+                    permission = "command.notes", permissionMessage = "You don't have permission to request a player's notes.")
+    public void onNotesCommand(final CommandSender sender, final String username) {
+        trackForSession(sender, PlayerLog.findNotes(username)).then(new PromiseResultHandler<List<Note>>() {
             public void onFulfilled(List<Note> result) {
                 if (result.size() == 0) {
                     displayCommandError(sender, "No notes were found for **" + username + "**.");
@@ -120,28 +106,19 @@ public class AdministratorCommands extends FeatureBase {
      * player's profile containing the reason of the kick.
      * 
      * @param sender    The player, console or user wanting to kick an online player.
-     * @param arguments Arguments passed. Two+ are expected: the player's name, and a reason.
+     * @param player    The online player who should be kicked.
+     * @param words     The words making up the reason for kicking them.
      */
-    @CommandHandler(value = "kick", console = true, remote = true)
-    public void onKickCommand(CommandSender sender, String[] arguments) {
-        if (!sender.hasPermission("command.kick")) {
-            displayCommandError(sender, "You don't have permission to kick a player from Mineground.");
-            return;
-        }
-        
-        if (arguments.length < 2) {
+    @CommandHandler(value = "kick", console = true, remote = true,
+                    permission = "command.kick", permissionMessage = "You don't have permission to kick a player from Mineground.")
+    public void onKickCommand(CommandSender sender, Player player, String[] words) {
+        if (words.length == 0) {
             displayCommandUsage(sender, "/kick [player] [reason]");
             return;
         }
         
-        final Player player = getServer().getPlayer(arguments[0]);
-        if (player == null) {
-            displayCommandError(sender, "The player **" + arguments[0] + "** is not online on Mineground.");
-            return;
-        }
-        
         final String username = player.getName();
-        final String reason = StringUtils.join(arguments, " ", 1);
+        final String reason = StringUtils.join(words);
         final Integer userId = getUserId(player);
 
         // TODO: Inform other administrators about this action.
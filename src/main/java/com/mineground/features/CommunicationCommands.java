@@ -174,33 +174,24 @@ public class CommunicationCommands extends FeatureComponent<CommunicationManager
      * of the messages will only be visible to them, the receiver, and administrators (either
      * in-game or when watching on IRC).
      * 
-     * @param sender    The player who's sending a private message.
-     * @param arguments The message's destination and content.
+     * @param sender        The player who's sending a private message.
+     * @param destination   The online player who should receive the message.
+     * @param words         The words making up the message's content.
      */
-    @CommandHandler(value = "pm", remote = true)
-    public void onPrivateMessageCommand(CommandSender sender, String[] arguments) {
-        if (!sender.hasPermission("command.pm")) {
-            displayCommandError(sender, "You don't have permission to send a private message.");
-            return;
-        }
-        
-        if (arguments.length < 2) {
+    @CommandHandler(value = "pm", remote = true,
+                    permission = "command.pm", permissionMessage = "You don't have permission to send a private message.")
+    public void onPrivateMessageCommand(CommandSender sender, Player destination, String[] words) {
+        if (words.length == 0) {
             displayCommandUsage(sender, "/pm [player] [message]");
             return;
         }
-
-        final Player destination = getServer().getPlayer(arguments[0]);
-        if (destination == null) {
-            displayCommandError(sender, "No one named **" + arguments[0] + "** is on Mineground now.");
-            return;
-        }
         
         if (destination == sender) {
             displayCommandError(sender, "You can't send a message to yourself, silly!");
             return;
         }
         
-        sendPrivateMessage(sender, destination, StringUtils.join(arguments, " ", 1));
+        sendPrivateMessage(sender, destination, StringUtils.join(words));
         if (sender instanceof Player)
             mLastCommunicationMap.put((Player) sender, destination.getName());
     }
@@ -37,6 +37,8 @@ import com.mineground.base.CommandHandler;
 import com.mineground.base.FeatureBase;
 import com.mineground.base.FeatureInitParams;
 import com.mineground.base.Message;
+import com.mineground.base.PlayerSnapshot;
+import com.mineground.base.ServerSnapshot;
 
 /**
  * Various generic commands may be implemented in this class.
@@ -83,13 +85,17 @@ public class GeneralCommands extends FeatureBase {
      * based on their level, meaning that Management will be listed first, moderators last.
      * 
      * @param sender    The player who would like to know about online staff.
+     * @param server    Snapshot of the server's state, containing the online players.
      * @param arguments Additional arguments passed on to this method. Ignored.
      */
-    @CommandHandler(value = "staff", aliases = { "admins" }, console = true, remote = true)
-    public void onStaffCommand(CommandSender sender, String[] arguments) {
+    @CommandHandler(value = "staff", aliases = { "admins" }, console = true, remote = true, async = true)
+    public void onStaffCommand(CommandSender sender, ServerSnapshot server, String[] arguments) {
         Map<AccountLevel, List<String>> groups = new EnumMap<AccountLevel, List<String>>(AccountLevel.class);
-        for (Player player : getAccountManager().getOnlineStaff()) {
-            AccountLevel level = getAccountForPlayer(player).getLevel();
+        for (PlayerSnapshot player : server.getOnlinePlayers()) {
+            AccountLevel level = server.getLevel(player);
+            if (!AccountLevel.isStaff(level))
+                continue;
+            
             if (!groups.containsKey(level))
                 groups.put(level, new ArrayList<String>());
             
@@ -404,29 +410,30 @@ public class GeneralCommands extends FeatureBase {
      * on the server right now, that will be communicated clearly as well.
      * 
      * @param sender    The remote command sender who wants to know about online players.
+     * @param server    Snapshot of the server's state, containing the online players.
      * @param arguments Further passed arguments. Ignored.
      */
-    @CommandHandler(value = "players", ingame = false, console = true, remote = true)
-    public void onPlayersCommand(CommandSender sender, String[] arguments) {
+    @CommandHandler(value = "players", ingame = false, console = true, remote = true, async = true)
+    public void onPlayersCommand(CommandSender sender, ServerSnapshot server, String[] arguments) {
         if (!sender.hasPermission("command.players")) {
             displayCommandError(sender, "You don't have permission to get a list of all online players.");
             return;
         }
 
-        final Player[] players = getServer().getOnlinePlayers();
+        final List<PlayerSnapshot> players = server.getOnlinePlayers();
         final StringBuilder builder = new StringBuilder();
         
         builder.append("07Online players (");
-        builder.append(players.length);
+        builder.append(players.size());
         builder.append("): ");
         
         // TODO: Color each' player entry depending on their level. This requires us to have some
         //       kind of in-game color to remote-target-color conversion method.
 
-        for (Player player : players)
+        for (PlayerSnapshot player : players)
             builder.append(player.getName()).append(", ");
         
-        if (players.length > 0)
+        if (players.size() > 0)
             builder.setLength(builder.length() - 2);
         else
             builder.append("There currently are no players online on Mineground...");
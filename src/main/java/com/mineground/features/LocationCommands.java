@@ -17,7 +17,9 @@ package com.mineground.features;
 
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 import org.bukkit.Location;
 import org.bukkit.World;
@@ -30,11 +32,16 @@ import com.mineground.account.PlayerLog;
 import com.mineground.account.PlayerLog.RecordType;
 import com.mineground.base.CommandCompletionHandler;
 import com.mineground.base.CommandHandler;
+import com.mineground.base.DisconnectReason;
 import com.mineground.base.FeatureComponent;
 import com.mineground.base.FeatureInitParams;
+import com.mineground.base.PrefixIndex;
+import com.mineground.base.PromiseCancelledError;
 import com.mineground.base.PromiseError;
 import com.mineground.base.PromiseResultHandler;
 import com.mineground.base.SimpleHash;
+import com.mineground.base.WorldUtils;
+import com.mineground.features.LocationManager.LocationListPage;
 
 public class LocationCommands extends FeatureComponent<LocationManager> {
     /**
@@ -43,8 +50,83 @@ public class LocationCommands extends FeatureComponent<LocationManager> {
      */
     private static final int MAX_WARP_LIST_LINE_LENGTH = 60;
     
+    /**
+     * Maximum number of warps which will be displayed on a single page of "/warp list".
+     */
+    private static final int WARP_LIST_PAGE_SIZE = 30;
+    
+    /**
+     * Sub-commands of the /warp command, used for tab completion.
+     */
+    private static final PrefixIndex WARP_SUBCOMMANDS = new PrefixIndex("create", "list", "remove");
+    
+    /**
+     * Maximum number of warp names which will be suggested when completing the /warp command.
+     */
+    private static final int MAX_WARP_COMPLETIONS = 20;
+    
+    /**
+     * The position of a player in the pages of "/warp list", allowing them to navigate to the next
+     * and previous pages. Pages are identified by a cursor rather than a number, since the list is
+     * paginated by seeking past the last location on the previous page.
+     */
+    private class WarpListPosition {
+        // Hash of the world the locations are being listed for.
+        public final int worldHash;
+        
+        // Cursors of the pages the player has seen so far, the last one being the current page.
+        public final List<Long> pageCursors;
+        
+        // Cursor of the page following the current one, or zero if there is none.
+        public long nextPageCursor;
+        
+        public WarpListPosition(int worldHash_) {
+            worldHash = worldHash_;
+            pageCursors = new ArrayList<Long>();
+            nextPageCursor = 0;
+        }
+    }
+    
+    /**
+     * Map between players and their position in the pages of "/warp list".
+     */
+    private final Map<Player, WarpListPosition> mWarpListPositionMap;
+    
+    /**
+     * Map between players and the index of their warp names, used for tab completion.
+     */
+    private final Map<Player, WarpNameIndex> mWarpNameIndexMap;
+    
     public LocationCommands(LocationManager manager, FeatureInitParams params) {
         super(manager, params);
+        
+        mWarpListPositionMap = new HashMap<Player, WarpListPosition>();
+        mWarpNameIndexMap = new HashMap<Player, WarpNameIndex>();
+    }
+    
+    /**
+     * Invoked when a player joins Mineground, and their account has been loaded. The names of the
+     * warps they created will be loaded in the background. Warps created in the meantime will be
+     * added to the same index, so that they won't be lost when the load finishes afterwards.
+     * 
+     * @param player    The player who joined Mineground.
+     */
+    public void onPlayerJoined(Player player) {
+        final WarpNameIndex index = new WarpNameIndex();
+        mWarpNameIndexMap.put(player, index);
+        
+        trackForSession(player, getFeature().loadLocationNames(player, index));
+    }
+    
+    /**
+     * Invoked when a player disconnects from Mineground.
+     * 
+     * @param player    The player who disconnected from Mineground.
+     * @param reason    The reason why they disconnected from the server.
+     */
+    public void onPlayerDisconnect(Player player, DisconnectReason reason) {
+        mWarpListPositionMap.remove(player);
+        mWarpNameIndexMap.remove(player);
     }
     
     /**
@@ -98,7 +180,7 @@ public class LocationCommands extends FeatureComponent<LocationManager> {
             return;
         }
         
-        getFeature().findLocationById(locationId).then(new PromiseResultHandler<LocationRecord>() {
+        trackForSession(player, getFeature().findLocationById(locationId)).then(new PromiseResultHandler<LocationRecord>() {
             public void onFulfilled(LocationRecord location) {
                 Location destination = location.toBukkitLocation(getServer().getWorlds());
                 if (destination == null) {
@@ -123,6 +205,7 @@ public class LocationCommands extends FeatureComponent<LocationManager> {
     /**
      * Provides auto-completion suggestions for the /warp command. This will make it significantly
      * easier for players to work with their warps, as they can use <tab> to complete long names.
+     * Warp names are suggested from the player's WarpNameIndex, without consulting the database.
      * 
      * @param sender    The Player or console who executed this command.
      * @param arguments The arguments which they passed on to this command.
@@ -134,26 +217,43 @@ public class LocationCommands extends FeatureComponent<LocationManager> {
             return null; // no auto-completions for /warp list.
         if (arguments.length >= 2 && arguments[0].equals("create"))
             return null; // no auto-completions for /warp create.
- 
-        List<String> suggestions = new ArrayList<String>();
-        String completionWord = "";
         
         if (arguments.length == 1) {
-            completionWord = arguments[0];
-            if ("create".startsWith(completionWord))
-                suggestions.add("create");
-            if ("list".startsWith(completionWord))
-                suggestions.add("list");
-            if ("remove".startsWith(completionWord))
-                suggestions.add("remove");
+            final List<String> subCommands = WARP_SUBCOMMANDS.complete(arguments[0]);
+            final List<String> warpNames = completeWarpName(sender, arguments[0]);
+            if (warpNames.isEmpty())
+                return subCommands;
             
-        } else if (arguments.length >= 2)
-            completionWord = arguments[1];
+            final List<String> suggestions = new ArrayList<String>(subCommands.size() + warpNames.size());
+            suggestions.addAll(subCommands);
+            suggestions.addAll(warpNames);
+            return suggestions;
+        }
         
-        // TODO: Suggest warp names based on |completionWord|.
-
-        Collections.sort(suggestions);
-        return suggestions;
+        if (arguments.length == 2 && arguments[0].equals("remove"))
+            return completeWarpName(sender, arguments[1]);
+        
+        return Collections.emptyList();
+    }
+    
+    /**
+     * Returns the names of the warps |sender| created in their current world which start with
+     * |prefix|, ranked by relevance. Answered from memory, so it's cheap for every <tab> press.
+     * 
+     * @param sender    The player who is completing a warp name.
+     * @param prefix    The part of the warp name they have entered so far.
+     * @return          The ranked list of matching warp names.
+     */
+    private List<String> completeWarpName(CommandSender sender, String prefix) {
+        if (!(sender instanceof Player))
+            return Collections.emptyList();
+        
+        final WarpNameIndex index = mWarpNameIndexMap.get(sender);
+        if (index == null)
+            return Collections.emptyList();
+        
+        final int worldHash = WorldUtils.getWorldHash(((Player) sender).getWorld());
+        return index.complete(worldHash, prefix, MAX_WARP_COMPLETIONS);
     }
     
     /**
@@ -164,7 +264,9 @@ public class LocationCommands extends FeatureComponent<LocationManager> {
      * /warp create             Displays usage information for creating warps.
      * /warp create NAME        Creates warp |NAME| in the current world.
      * /warp create NAME PASS   Creates warp |NAME| in the current world, protected by |PASS|.
-     * /warp list               Lists all warps created by the player in the current world.
+     * /warp list               Lists the warps created by the player in the current world.
+     * /warp list next          Displays the next page of the player's warps.
+     * /warp list previous      Displays the previous page of the player's warps.
      * /warp remove             Displays usage information for removing warps.
      * /warp remove NAME        Removes warp |NAME| from the current world.
      * /warp NAME               Teleports to the warp |NAME| in the current world.
@@ -208,11 +310,15 @@ public class LocationCommands extends FeatureComponent<LocationManager> {
             // be resolved asynchronously, at which time the player may have moved.
             final Location location = player.getLocation();
             
-            getFeature().findLocation(locationName, world).then(new PromiseResultHandler<LocationRecord>() {
+            trackForSession(player, getFeature().findLocation(locationName, world)).then(new PromiseResultHandler<LocationRecord>() {
                 public void onFulfilled(LocationRecord result) {
                     displayCommandError(player, "A warp named \"" + locationName + "\" already exists in this world.");
                 }
                 public void onRejected(PromiseError error) {
+                    // The player disconnected before we knew whether the location exists.
+                    if (error instanceof PromiseCancelledError)
+                        return;
+                    
                     // It may seem odd to do the work in onRejected(), but in case of findLocation
                     // it means that the location was *not* found, which is what we want when the
                     // player tries to create a new location in a certain world.
@@ -220,6 +326,10 @@ public class LocationCommands extends FeatureComponent<LocationManager> {
                         public void onFulfilled(Integer locationId) {
                             // Records that the player created a new warp with Id |locationId|.
                             PlayerLog.record(RecordType.WARP_CREATED, getUserId(player), locationId);
+                            
+                            final WarpNameIndex index = mWarpNameIndexMap.get(player);
+                            if (index != null)
+                                index.add(WorldUtils.getWorldHash(world), locationName);
 
                             displayCommandSuccess(player, "The warp \"" + locationName + "\" has been created!");
                         }
@@ -233,35 +343,36 @@ public class LocationCommands extends FeatureComponent<LocationManager> {
             return;
         }
 
-        // Lists the warps created by the player, with up to ten warps per line. This can get quite
-        // spammy when the player has created a ton of warps, but then it's up to them to clean it
-        // up. Only warps in the player's current world will be returned.
+        // Lists the warps created by the player in their current world, a page at a time. Players
+        // can navigate through the pages using "/warp list next" and "/warp list previous".
         if (arguments[0].equals("list")) {
-            getFeature().listLocations(player, world).then(new PromiseResultHandler<List<String>>() {
-                public void onFulfilled(List<String> locations) {
-                    displayCommandSuccess(player, "You currently have " + locations.size() + " saved locations!");
-
-                    StringBuilder messageBuilder = new StringBuilder();
-                    for (String location : locations) {
-                        messageBuilder.append(location);
-                        if (messageBuilder.length() >= MAX_WARP_LIST_LINE_LENGTH) {
-                            player.sendMessage(messageBuilder.toString());
-                            messageBuilder.setLength(0);
-                        } else
-                            messageBuilder.append(", ");
-                    }
-                    
-                    int length = messageBuilder.length();
-                    if (length == 0)
-                        return;
-                    
-                    player.sendMessage(messageBuilder.delete(length - 2, length).toString());
+            final int worldHash = WorldUtils.getWorldHash(world);
+            
+            WarpListPosition position = mWarpListPositionMap.get(player);
+            if (arguments.length >= 2 && arguments[1].equals("next")) {
+                if (position == null || position.worldHash != worldHash || position.nextPageCursor == 0) {
+                    displayCommandError(player, "There are no more saved locations to display.");
+                    return;
                 }
-                public void onRejected(PromiseError error) {
-                    displayCommandError(player, error.reason());
+                
+                position.pageCursors.add(position.nextPageCursor);
+                
+            } else if (arguments.length >= 2 && arguments[1].equals("previous")) {
+                if (position == null || position.worldHash != worldHash || position.pageCursors.size() < 2) {
+                    displayCommandError(player, "You are already looking at the first page.");
+                    return;
                 }
-            });
+                
+                position.pageCursors.remove(position.pageCursors.size() - 1);
+                
+            } else {
+                position = new WarpListPosition(worldHash);
+                position.pageCursors.add(LocationManager.FIRST_PAGE_CURSOR);
+                
+                mWarpListPositionMap.put(player, position);
+            }
             
+            displayWarpListPage(player, world, position);
             return;
         }
         
@@ -282,7 +393,7 @@ public class LocationCommands extends FeatureComponent<LocationManager> {
             
             final String locationName = arguments[1];
             
-            getFeature().findLocation(locationName, world).then(new PromiseResultHandler<LocationRecord>() {
+            trackForSession(player, getFeature().findLocation(locationName, world)).then(new PromiseResultHandler<LocationRecord>() {
                 public void onFulfilled(final LocationRecord location) {
                     // Players normally are only allowed to remove their own warps, but members of
                     // Mineground's staff will be allowed to remove any warp from the world.
@@ -296,6 +407,8 @@ public class LocationCommands extends FeatureComponent<LocationManager> {
                             // Records that the player has removed the saved location |location|.
                             PlayerLog.record(RecordType.WARP_REMOVED, getUserId(player), location.location_id);
                             
+                            removeFromWarpNameIndex(location);
+                            
                             displayCommandSuccess(player, "The location \"" + locationName + "\" has been removed from this world.");
                         }
                         public void onRejected(PromiseError error) {
@@ -321,7 +434,7 @@ public class LocationCommands extends FeatureComponent<LocationManager> {
             return;
         }
 
-        getFeature().findLocation(destination, world).then(new PromiseResultHandler<LocationRecord>() {
+        trackForSession(player, getFeature().findLocation(destination, world)).then(new PromiseResultHandler<LocationRecord>() {
             public void onFulfilled(LocationRecord location) {
                 // If the location has been protected by a password, this needs to be verified. Only
                 // players with the warp.teleport_no_password permission are able to override this.
@@ -346,4 +459,67 @@ public class LocationCommands extends FeatureComponent<LocationManager> {
             }
         });
     }
+    
+    /**
+     * Removes |location| from the WarpNameIndex of the player who created it, if they are online.
+     * This doesn't have to be the player who removed it, as staff may remove any location.
+     * 
+     * @param location  The location which has been removed.
+     */
+    private void removeFromWarpNameIndex(LocationRecord location) {
+        for (Map.Entry<Player, WarpNameIndex> entry : mWarpNameIndexMap.entrySet()) {
+            if (getUserId(entry.getKey()) == location.user_id)
+                entry.getValue().remove(location.world_hash, location.name);
+        }
+    }
+    
+    /**
+     * Displays the current page of |position| to |player|, with a number of warps on each line. A
+     * hint about the next page will be displayed when there are more warps to display.
+     * 
+     * @param player    The player to display their warps to.
+     * @param world     The world in which the warps have been created.
+     * @param position  The player's position in the pages of their warps.
+     */
+    private void displayWarpListPage(final Player player, World world, final WarpListPosition position) {
+        final int pageNumber = position.pageCursors.size();
+        final long cursor = position.pageCursors.get(pageNumber - 1);
+        
+        // The next page is unknown until this page has been loaded, which prevents a quick series
+        // of "/warp list next" commands from seeking past the same cursor more than once.
+        position.nextPageCursor = 0;
+        
+        trackForSession(player, getFeature().listLocations(player, world, cursor, WARP_LIST_PAGE_SIZE)).then(new PromiseResultHandler<LocationListPage>() {
+            public void onFulfilled(LocationListPage page) {
+                // Ignore the page when the player navigated elsewhere, or started a new listing,
+                // while it was being loaded. The reply of their latest request will follow.
+                if (mWarpListPositionMap.get(player) != position || position.pageCursors.size() != pageNumber)
+                    return;
+                
+                position.nextPageCursor = page.nextCursor;
+                
+                displayCommandSuccess(player, "Your saved locations in this world (page " + pageNumber + "):");
+                
+                StringBuilder messageBuilder = new StringBuilder();
+                for (String location : page.names) {
+                    messageBuilder.append(location);
+                    if (messageBuilder.length() >= MAX_WARP_LIST_LINE_LENGTH) {
+                        player.sendMessage(messageBuilder.toString());
+                        messageBuilder.setLength(0);
+                    } else
+                        messageBuilder.append(", ");
+                }
+                
+                int length = messageBuilder.length();
+                if (length > 0)
+                    player.sendMessage(messageBuilder.delete(length - 2, length).toString());
+                
+                if (page.nextCursor != 0)
+                    displayCommandDescription(player, "Type \"/warp list next\" to see more of your saved locations.");
+            }
+            public void onRejected(PromiseError error) {
+                displayCommandError(player, error.reason());
+            }
+        });
+    }
 }
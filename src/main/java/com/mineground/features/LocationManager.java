@@ -27,10 +27,13 @@ import com.mineground.base.FeatureBase;
 import com.mineground.base.FeatureInitParams;
 import com.mineground.base.Promise;
 import com.mineground.base.PromiseError;
+import com.mineground.base.PromiseFunction;
 import com.mineground.base.PromiseResultHandler;
 import com.mineground.base.SimpleHash;
 import com.mineground.base.WorldUtils;
+import com.mineground.database.DatabaseBatchLoader;
 import com.mineground.database.DatabaseResult;
+import com.mineground.database.DatabaseResultPage;
 import com.mineground.database.DatabaseResultRow;
 import com.mineground.database.DatabaseStatement;
 
@@ -53,21 +56,54 @@ public class LocationManager extends FeatureBase {
     private final DatabaseStatement mFindLocationStatement;
     
     /**
-     * Database statement used to load saved location from the database using their location Id.
+     * Batch loader used to load saved locations from the database using their location Id. Many of
+     * these may be requested in the same tick, for example for homes after a server restart.
      */
-    private final DatabaseStatement mLoadLocationStatement;
+    private final DatabaseBatchLoader<Long> mLoadLocationLoader;
     
     /**
      * Database statement used to create a new location in the database.
      */
     private final DatabaseStatement mCreateLocationStatement;
     
+    /**
+     * Cursor which should be passed to listLocations() in order to retrieve the first page.
+     */
+    public static final long FIRST_PAGE_CURSOR = Long.MAX_VALUE;
+    
+    /**
+     * A single page of the locations created by a player in a certain world, as returned by the
+     * listLocations() method. Locations are ordered from the most to the least recently created.
+     */
+    public static class LocationListPage {
+        /**
+         * Names of the locations on this page.
+         */
+        public final List<String> names;
+        
+        /**
+         * Cursor for retrieving the next page, or zero when this is the last page.
+         */
+        public final long nextCursor;
+        
+        LocationListPage(List<String> names_, long nextCursor_) {
+            names = names_;
+            nextCursor = nextCursor_;
+        }
+    }
+    
     /**
      * Database statement used for finding the locations created by a certain player in a certain
-     * world. Only the location names will be returned.
+     * world. Only the location names will be returned, one page at a time.
      */
     private final DatabaseStatement mListLocationsStatement;
     
+    /**
+     * Database statement used for loading the names and worlds of all the locations created by a
+     * certain player, with which their WarpNameIndex will be populated.
+     */
+    private final DatabaseStatement mListLocationNamesStatement;
+    
     /**
      * Database statement used to remove a location from the database.
      */
@@ -96,13 +132,14 @@ public class LocationManager extends FeatureBase {
                     "locations.is_valid = 1"
         );
         
-        mLoadLocationStatement = getDatabase().prepare(
+        mLoadLocationLoader = getDatabase().prepareBatchLoader(
                 "SELECT " +
                     "locations.* " +
                 "FROM " +
                     "locations " +
                 "WHERE " +
-                    "locations.location_id = ?"
+                    "locations.location_id IN (%s)",
+                "location_id", Long.class
         );
 
         mCreateLocationStatement = getDatabase().prepare(
@@ -114,15 +151,29 @@ public class LocationManager extends FeatureBase {
         
         mListLocationsStatement = getDatabase().prepare(
                 "SELECT " +
+                    "locations.location_id, " +
                     "locations.name " +
                 "FROM " +
                     "locations " +
                 "WHERE " +
                     "locations.user_id = ? AND " +
                     "locations.world_hash = ? AND " +
-                    "locations.is_valid = 1 " +
+                    "locations.is_valid = 1 AND " +
+                    "locations.location_id < ? " +
                 "ORDER BY " +
-                    "location_id DESC"
+                    "location_id DESC " +
+                "LIMIT ?"
+        );
+        
+        mListLocationNamesStatement = getDatabase().prepare(
+                "SELECT " +
+                    "locations.name, " +
+                    "locations.world_hash " +
+                "FROM " +
+                    "locations " +
+                "WHERE " +
+                    "locations.user_id = ? AND " +
+                    "locations.is_valid = 1"
         );
         
         mRemoveLocationStatement = getDatabase().prepare(
@@ -146,25 +197,21 @@ public class LocationManager extends FeatureBase {
      * @return              A Promise, which will be resolved with the SavedLocation once available.
      */
     public Promise<LocationRecord> findLocation(String locationName, World world) {
-        final Promise<LocationRecord> promise = new Promise<LocationRecord>();
-        
         mFindLocationStatement.setString(1, locationName);
         mFindLocationStatement.setInteger(2, WorldUtils.getWorldHash(world));
-        mFindLocationStatement.execute().then(new PromiseResultHandler<DatabaseResult>() {
-            public void onFulfilled(DatabaseResult result) {
-                if (result.rows.size() == 0) {
-                    promise.reject("The location does not exist in the database.");
-                    return;
-                }
-                promise.resolve(new LocationRecord(result.rows.get(0)));
-            }
-            public void onRejected(PromiseError error) {
+        return mFindLocationStatement.execute().recover(new PromiseFunction<PromiseError, Promise<DatabaseResult>>() {
+            public Promise<DatabaseResult> apply(PromiseError error) {
                 getLogger().severe("Could not find a location in the database (table: locations): " + error.reason());
-                promise.reject("The location could not be read from the database.");
+                return Promise.rejected("The location could not be read from the database.");
+            }
+        }).flatMap(new PromiseFunction<DatabaseResult, Promise<LocationRecord>>() {
+            public Promise<LocationRecord> apply(DatabaseResult result) {
+                if (result.rows.size() == 0)
+                    return Promise.rejected("The location does not exist in the database.");
+                
+                return Promise.cast(new LocationRecord(result.rows.get(0)));
             }
         });
-        
-        return promise;
     }
     
     /**
@@ -176,23 +223,19 @@ public class LocationManager extends FeatureBase {
      * @return              A Promise, which will be resolved with the SavedLocation once available.
      */
     public Promise<LocationRecord> findLocationById(int locationId) {
-        final Promise<LocationRecord> promise = new Promise<LocationRecord>();
-        
-        mLoadLocationStatement.setInteger(1, locationId);
-        mLoadLocationStatement.execute().then(new PromiseResultHandler<DatabaseResult>() {
-            public void onFulfilled(DatabaseResult result) {
-                if (result.rows.size() == 0)
-                    promise.reject("The location does not exist in the database.");
-                else
-                    promise.resolve(new LocationRecord(result.rows.get(0)));
-            }
-            public void onRejected(PromiseError error) {
+        return mLoadLocationLoader.load((long) locationId).recover(new PromiseFunction<PromiseError, Promise<DatabaseResultRow>>() {
+            public Promise<DatabaseResultRow> apply(PromiseError error) {
                 getLogger().severe("Could not load a location from the database (table: locations): " + error.reason());
-                promise.reject("The location could not be read from the database.");
+                return Promise.rejected("The location could not be read from the database.");
+            }
+        }).flatMap(new PromiseFunction<DatabaseResultRow, Promise<LocationRecord>>() {
+            public Promise<LocationRecord> apply(DatabaseResultRow resultRow) {
+                if (resultRow == null)
+                    return Promise.rejected("The location does not exist in the database.");
+                
+                return Promise.cast(new LocationRecord(resultRow));
             }
         });
-        
-        return promise;
     }
     
     /**
@@ -259,39 +302,63 @@ public class LocationManager extends FeatureBase {
     }
     
     /**
-     * Asynchronously compiles a list of all locations which |player| has created in their current
-     * world. When available, the returned Promise will be resolved with an ArrayList. The Promise
-     * will be rejected when no locations could be found for the current world.
+     * Asynchronously compiles a page of the locations which |player| has created in their current
+     * world, starting after |cursor|. Use FIRST_PAGE_CURSOR for the first page, and the cursor on
+     * the returned page for the pages thereafter. The Promise will be rejected when no locations
+     * could be found for the current world.
      * 
-     * @param player    The player to find all locations for.
+     * @param player    The player to find the locations for.
      * @param world     The world to get the player's saved locations for.
-     * @return          A Promise, which will be resolved with a list of their locations.
+     * @param cursor    Cursor of the page which should be compiled.
+     * @param pageSize  The maximum number of locations on the page.
+     * @return          A Promise, which will be resolved with a page of their locations.
      */
-    public Promise<List<String>> listLocations(final Player player, World world) {
-        final Promise<List<String>> promise = new Promise<List<String>>();
-        
+    public Promise<LocationListPage> listLocations(final Player player, World world, long cursor, int pageSize) {
         mListLocationsStatement.setInteger(1, getUserId(player));
         mListLocationsStatement.setInteger(2, WorldUtils.getWorldHash(world));
-        mListLocationsStatement.execute().then(new PromiseResultHandler<DatabaseResult>() {
-            public void onFulfilled(DatabaseResult result) {
-                if (result.rows.size() == 0) {
-                    promise.reject("You haven't saved any locations in the current world!");
-                    return;
-                }
+        return mListLocationsStatement.executePage(3, "location_id", cursor, pageSize).recover(new PromiseFunction<PromiseError, Promise<DatabaseResultPage>>() {
+            public Promise<DatabaseResultPage> apply(PromiseError error) {
+                getLogger().severe("Unable to list locations from the database: " + error.reason());
+                return Promise.rejected("Unable to read your locations from the database, please talk to an administrator!");
+            }
+        }).flatMap(new PromiseFunction<DatabaseResultPage, Promise<LocationListPage>>() {
+            public Promise<LocationListPage> apply(DatabaseResultPage page) {
+                if (page.rows.size() == 0)
+                    return Promise.rejected("You haven't saved any locations in the current world!");
                 
-                List<String> locations = new ArrayList<String>(result.rows.size());
-                for (DatabaseResultRow resultRow : result.rows)
+                List<String> locations = new ArrayList<String>(page.rows.size());
+                for (DatabaseResultRow resultRow : page.rows)
                     locations.add(resultRow.getString("name"));
                 
-                promise.resolve(locations);
+                return Promise.cast(new LocationListPage(locations, page.hasNextPage ? page.nextCursor : 0));
             }
-            public void onRejected(PromiseError error) {
-                getLogger().severe("Unable to list locations from the database: " + error.reason());
-                promise.reject("Unable to read your locations from the database, please talk to an administrator!");
+        });
+    }
+    
+    /**
+     * Asynchronously loads the names of all locations which |player| has created, in all worlds,
+     * and adds them to |index|. The Promise will be resolved with the index once it has been
+     * populated, or rejected when the names could not be read from the database.
+     * 
+     * @param player    The player whose location names should be loaded.
+     * @param index     The index to which the location names should be added.
+     * @return          A Promise, which will be resolved with the populated index.
+     */
+    public Promise<WarpNameIndex> loadLocationNames(Player player, final WarpNameIndex index) {
+        mListLocationNamesStatement.setInteger(1, getUserId(player));
+        return mListLocationNamesStatement.execute().recover(new PromiseFunction<PromiseError, Promise<DatabaseResult>>() {
+            public Promise<DatabaseResult> apply(PromiseError error) {
+                getLogger().severe("Unable to load the location names from the database: " + error.reason());
+                return Promise.rejected("The location names could not be read from the database.");
+            }
+        }).map(new PromiseFunction<DatabaseResult, WarpNameIndex>() {
+            public WarpNameIndex apply(DatabaseResult result) {
+                for (DatabaseResultRow resultRow : result.rows)
+                    index.add(resultRow.getInteger("world_hash").intValue(), resultRow.getString("name"));
+                
+                return index;
             }
         });
-        
-        return promise;
     }
     
     /**
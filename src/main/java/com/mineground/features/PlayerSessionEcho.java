@@ -0,0 +1,47 @@
+/**
+ * Copyright (c) 2011 - 2014 Mineground, Las Venturas Playground
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.mineground.features;
+
+import com.mineground.base.AsyncEventHandler;
+import com.mineground.base.DisconnectReason;
+import com.mineground.base.FeatureComponent;
+import com.mineground.base.FeatureInitParams;
+import com.mineground.base.PlayerSnapshot;
+
+/**
+ * Echoes player session events to IRC. Writing to the IRC socket may block for a while, so these
+ * observers run asynchronously to keep the main server thread responsive while players leave.
+ */
+public class PlayerSessionEcho extends FeatureComponent<PlayerSessionMessages> {
+    public PlayerSessionEcho(PlayerSessionMessages feature, FeatureInitParams params) {
+        super(feature, params);
+    }
+    
+    /**
+     * Echoes that |player| has disconnected from Mineground to IRC.
+     * 
+     * @param player The snapshot of the player who is leaving the server.
+     * @param reason The reason why the player disconnected from Mineground.
+     */
+    @AsyncEventHandler
+    public void onPlayerDisconnect(PlayerSnapshot player, DisconnectReason reason) {
+        if (reason == DisconnectReason.SHUTDOWN)
+            return;
+        
+        // TODO: Convert this to use a Message instance instead.
+        getIrcManager().echoMessage("03*** " + player.getName() + " has disconnected from Mineground.");
+    }
+}
@@ -75,6 +75,11 @@ public class PlayerSessionMessages extends FeatureBase {
      */
     private final Message mPlayerQuitAnnouncement;
     
+    /**
+     * Component which echoes session events to IRC, asynchronously where possible.
+     */
+    private final PlayerSessionEcho mEcho;
+    
     public PlayerSessionMessages(FeatureInitParams params) {
         super(params);
         
@@ -87,6 +92,8 @@ public class PlayerSessionMessages extends FeatureBase {
         mPlayerDeathAnnouncement = Message.Load("player_death");
         mPlayerKilledAnnouncement = Message.Load("player_killed");
         mPlayerQuitAnnouncement = Message.Load("player_quit");
+        
+        mEcho = new PlayerSessionEcho(this, params);
     }
     
     /**
@@ -203,7 +210,8 @@ public class PlayerSessionMessages extends FeatureBase {
     }
     
     /**
-     * Announces that |player| is leaving the server to all online players.
+     * Announces that |player| is leaving the server to all online players. The IRC echo will be
+     * distributed by the PlayerSessionEcho component.
      * 
      * @param player The player who is leaving the server.
      * @param reason The reason why the player disconnected from Mineground.
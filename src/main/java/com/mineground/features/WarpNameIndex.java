@@ -0,0 +1,108 @@
+/**
+ * Copyright (c) 2011 - 2014 Mineground, Las Venturas Playground
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.mineground.features;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * In-memory index of the names of the warps a single player has created, grouped by the world they
+ * have been created in. It's loaded when the player joins the server and kept up-to-date by the
+ * /warp command, so that tab completion of warp names never has to touch the database.
+ *
+ * Names are matched case insensitively, like MySQL does when finding a location by its name.
+ */
+public class WarpNameIndex {
+    /**
+     * Orders completions by relevance: an exact match first, then shorter names before longer ones,
+     * and alphabetically thereafter. Shorter names need fewer keystrokes to be chosen.
+     */
+    private static final Comparator<String> RANK_COMPARATOR = new Comparator<String>() {
+        public int compare(String lhs, String rhs) {
+            if (lhs.length() != rhs.length())
+                return lhs.length() - rhs.length();
+            
+            return lhs.compareToIgnoreCase(rhs);
+        }
+    };
+    
+    /**
+     * Map between the hash of a world and the warps created in it, keyed by their lowercase name.
+     */
+    private final Map<Integer, TreeMap<String, String>> mWorldWarpMap;
+    
+    public WarpNameIndex() {
+        mWorldWarpMap = new HashMap<Integer, TreeMap<String, String>>();
+    }
+    
+    /**
+     * Adds the warp named |name| in the world identified by |worldHash| to the index.
+     * 
+     * @param worldHash Hash of the world in which the warp has been created.
+     * @param name      Name of the warp which has been created.
+     */
+    public void add(int worldHash, String name) {
+        TreeMap<String, String> warps = mWorldWarpMap.get(worldHash);
+        if (warps == null) {
+            warps = new TreeMap<String, String>();
+            mWorldWarpMap.put(worldHash, warps);
+        }
+        
+        warps.put(name.toLowerCase(), name);
+    }
+    
+    /**
+     * Removes the warp named |name| in the world identified by |worldHash| from the index.
+     * 
+     * @param worldHash Hash of the world in which the warp had been created.
+     * @param name      Name of the warp which has been removed.
+     */
+    public void remove(int worldHash, String name) {
+        final TreeMap<String, String> warps = mWorldWarpMap.get(worldHash);
+        if (warps != null)
+            warps.remove(name.toLowerCase());
+    }
+    
+    /**
+     * Returns at most |limit| names of warps in the world identified by |worldHash| which start with
+     * |prefix|, ranked by their relevance for the player completing them.
+     * 
+     * @param worldHash Hash of the world in which the warps should have been created.
+     * @param prefix    The prefix which the names must start with, matched case insensitively.
+     * @param limit     The maximum number of names to return.
+     * @return          The ranked list of matching warp names.
+     */
+    public List<String> complete(int worldHash, String prefix, int limit) {
+        final TreeMap<String, String> warps = mWorldWarpMap.get(worldHash);
+        if (warps == null)
+            return Collections.emptyList();
+        
+        final String lowerPrefix = prefix.toLowerCase();
+        final List<String> names = new ArrayList<String>(
+                warps.subMap(lowerPrefix, lowerPrefix + Character.MAX_VALUE).values());
+        
+        Collections.sort(names, RANK_COMPARATOR);
+        if (names.size() > limit)
+            return names.subList(0, limit);
+        
+        return names;
+    }
+}
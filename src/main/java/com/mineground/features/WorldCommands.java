@@ -15,9 +15,6 @@
 
 package com.mineground.features;
 
-import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -41,6 +38,7 @@ import com.mineground.base.CommandHandler;
 import com.mineground.base.FeatureComponent;
 import com.mineground.base.FeatureInitParams;
 import com.mineground.base.Message;
+import com.mineground.base.PrefixIndex;
 import com.mineground.features.WorldSettings.PvpSetting;
 
 /**
@@ -53,11 +51,30 @@ public class WorldCommands extends FeatureComponent<WorldManager> {
      */
     private final static int ENTITY_SPAWN_LIMIT = 150;
     
+    /**
+     * Sub-commands of the /world command, and the options which can be changed using /world set.
+     */
+    private final static PrefixIndex WORLD_SUBCOMMANDS = new PrefixIndex(
+            "classic", "create", "creative", "destroy", "list", "set", "survival", "warp");
+    private final static PrefixIndex WORLD_SET_OPTIONS = new PrefixIndex(
+            "animals", "difficulty", "mobs", "pvp", "readonly", "rule", "spawn");
+    
+    /**
+     * Sub-commands of the /world command which take the name of a world as their argument.
+     */
+    private final static PrefixIndex WORLD_NAME_SUBCOMMANDS = new PrefixIndex(
+            "classic", "creative", "destroy", "survival", "warp");
+    
     /**
      * Map containing the game rule mappings supported by Mineground.
      */
     private final Map<String, String> mGameRulesMap;
     
+    /**
+     * Index of the game rule names in |mGameRulesMap|, used for tab completion and listing them.
+     */
+    private final PrefixIndex mGameRulesIndex;
+    
     /**
      * Message for informing players that a world is being created on Mineground. This will cause
      * up to 30 seconds of lag, blocking all other kinds of playing.
@@ -102,6 +119,8 @@ public class WorldCommands extends FeatureComponent<WorldManager> {
             }
         }
         
+        mGameRulesIndex = new PrefixIndex(mGameRulesMap.keySet());
+        
         mCreatingWorldMessage = Message.Load("world_creation_start");
         mWorldCreatedMessage = Message.Load("world_creation_end");
         mWorldRemovedTeleportMessage = Message.Load("world_destroyed_teleport");
@@ -222,47 +241,17 @@ public class WorldCommands extends FeatureComponent<WorldManager> {
         if (arguments.length >= 2 && arguments[0].equals("list"))
             return null; // no auto-completions for /world list.
         
-        List<String> suggestions = new ArrayList<String>();
         if (arguments.length >= 2 && arguments[0].equals("set")) {
-            if (arguments.length >= 3 && arguments[1].equals("rule")) {
-                for (String option : mGameRulesMap.keySet()) {
-                    if (!option.startsWith(arguments[2]))
-                        continue;
-                    
-                    suggestions.add(option);
-                }
-                
-                Collections.sort(suggestions);
-                return suggestions;
-            }
-            
-            for (String option : Arrays.asList("animals", "difficulty", "mobs", "pvp", "readonly", "rule", "spawn")) {
-                if (!option.startsWith(arguments[1]))
-                    continue;
-                
-                suggestions.add(option);
-            }
+            if (arguments.length >= 3 && arguments[1].equals("rule"))
+                return mGameRulesIndex.complete(arguments[2]);
             
-            return suggestions;
+            return WORLD_SET_OPTIONS.complete(arguments[1]);
         }
         
-        if (arguments.length >= 2 && Arrays.asList("classic", "creative", "destroy", "survival", "warp").contains(arguments[0])) {
-            for (World world : getServer().getWorlds()) {
-                final String name = world.getName();
-                if (name.startsWith(arguments[1]))
-                    suggestions.add(name);
-            }
-            
-            Collections.sort(suggestions);
-            return suggestions;
-        }
+        if (arguments.length >= 2 && WORLD_NAME_SUBCOMMANDS.contains(arguments[0]))
+            return getFeature().getWorldNameIndex().complete(arguments[1]);
         
-        for (String option : Arrays.asList("classic", "create", "creative", "destroy", "list", "set", "survival", "warp")) {
-            if (option.startsWith(arguments[0]))
-                suggestions.add(option);
-        }
-
-        return suggestions;
+        return WORLD_SUBCOMMANDS.complete(arguments[0]);
     }
     
     /**
@@ -399,7 +388,7 @@ public class WorldCommands extends FeatureComponent<WorldManager> {
             creator.type(worldType);
             
             // Tell Bukkit to create the world. This takes an awkwardly long time.
-            getServer().createWorld(creator);
+            getFeature().onCreateWorld(getServer().createWorld(creator));
             
             // Announce that the world has been created, and that players can continue playing.
             mWorldCreatedMessage.setString("nickname", player.getName());
@@ -719,7 +708,7 @@ public class WorldCommands extends FeatureComponent<WorldManager> {
                     
                 if (gameRule == null) {
                     String gameRulesList = "";
-                    for (String rule : mGameRulesMap.keySet())
+                    for (String rule : mGameRulesIndex.complete(""))
                         gameRulesList += "§e" + rule + "§f, ";
                     
                     displayCommandDescription(player, "Available game rules: " + gameRulesList);
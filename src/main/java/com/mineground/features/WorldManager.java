@@ -15,13 +15,16 @@
 
 package com.mineground.features;
 
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 import org.bukkit.World;
 
 import com.mineground.base.FeatureBase;
 import com.mineground.base.FeatureInitParams;
+import com.mineground.base.PrefixIndex;
 
 /**
  * Minecraft supports an arbitrary amount of worlds existing simultaneously, each with their own
@@ -60,6 +63,12 @@ public class WorldManager extends FeatureBase {
      */
     private Map<World, WorldSettings> mWorldSettings;
     
+    /**
+     * Index of the names of all loaded worlds, used for tab completion. Must be updated when a
+     * world is being created or removed.
+     */
+    private PrefixIndex mWorldNameIndex;
+    
     public WorldManager(FeatureInitParams params) {
         super(params);
         
@@ -74,6 +83,8 @@ public class WorldManager extends FeatureBase {
         mClassicWorld = getServer().getWorld(getSettings().getString("worlds.classic", ""));
         
         mWorldSettings = new HashMap<World, WorldSettings>();
+        
+        updateWorldNameIndex();
     }
     
     /**
@@ -100,6 +111,36 @@ public class WorldManager extends FeatureBase {
      */
     public void onRemoveWorld(World world) {
         mWorldSettings.remove(world);
+        updateWorldNameIndex();
+    }
+    
+    /**
+     * Must be invoked when a world has been created, to make it available for tab completion.
+     * 
+     * @param world The world which has been created.
+     */
+    public void onCreateWorld(World world) {
+        updateWorldNameIndex();
+    }
+    
+    /**
+     * Returns the index of the names of all loaded worlds, for the purposes of tab completion.
+     * 
+     * @return Index of the names of the loaded worlds.
+     */
+    public PrefixIndex getWorldNameIndex() {
+        return mWorldNameIndex;
+    }
+    
+    /**
+     * Rebuilds the index of world names based on the worlds which are currently loaded.
+     */
+    private void updateWorldNameIndex() {
+        final List<String> worldNames = new ArrayList<String>();
+        for (World world : getServer().getWorlds())
+            worldNames.add(world.getName());
+        
+        mWorldNameIndex = new PrefixIndex(worldNames);
     }
     
     /**
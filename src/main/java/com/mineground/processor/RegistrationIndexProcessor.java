@@ -0,0 +1,217 @@
+/**
+ * Copyright (c) 2011 - 2014 Mineground, Las Venturas Playground
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.mineground.processor;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.AnnotationMirror;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.element.VariableElement;
+import javax.lang.model.type.ArrayType;
+import javax.lang.model.type.DeclaredType;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.ElementFilter;
+import javax.tools.Diagnostic;
+import javax.tools.JavaFileObject;
+
+/**
+ * Annotation processor which generates the registration index for the Mineground plugin. For every
+ * class being compiled, it lists the public methods which the EventDispatcher or CommandManager may
+ * be interested in: methods annotated with @CommandHandler or @CommandCompletionHandler, and methods
+ * whose name could be that of an event (e.g. "onPlayerJoined"). Inherited methods are included, as
+ * registration looks at all public methods of an instance's class.
+ *
+ * The index will be written as the com.mineground.GeneratedRegistrationIndex class, which will be
+ * loaded by the RegistrationIndex at runtime. Classes which cannot be referenced from the generated
+ * code, for example anonymous classes, will not be indexed, and will be scanned at runtime instead.
+ */
+@SupportedAnnotationTypes("*")
+public class RegistrationIndexProcessor extends AbstractProcessor {
+    /**
+     * Package and simple name of the class which will be generated by this processor.
+     */
+    private static final String INDEX_PACKAGE = "com.mineground";
+    private static final String INDEX_CLASS = "GeneratedRegistrationIndex";
+    
+    /**
+     * Fully qualified names of the annotations which mark a method as a command handler.
+     */
+    private static final String COMMAND_HANDLER = "com.mineground.base.CommandHandler";
+    private static final String COMMAND_COMPLETION_HANDLER = "com.mineground.base.CommandCompletionHandler";
+    
+    /**
+     * Whether the index has been generated already. All sources are available in the first round,
+     * so the index will be generated there, avoiding warnings about files created in the last one.
+     */
+    private boolean mGenerated = false;
+    
+    @Override
+    public SourceVersion getSupportedSourceVersion() {
+        return SourceVersion.latestSupported();
+    }
+    
+    @Override
+    public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+        if (mGenerated || roundEnv.processingOver())
+            return false;
+        
+        final List<TypeElement> types = new ArrayList<TypeElement>();
+        for (TypeElement type : ElementFilter.typesIn(roundEnv.getRootElements()))
+            collectTypes(type, types);
+        
+        final StringBuilder entries = new StringBuilder();
+        for (TypeElement type : types)
+            writeEntries(type, entries);
+        
+        try {
+            final JavaFileObject file = processingEnv.getFiler().createSourceFile(INDEX_PACKAGE + "." + INDEX_CLASS);
+            final Writer writer = file.openWriter();
+            try {
+                writer.write("package " + INDEX_PACKAGE + ";\n\n");
+                writer.write("/**\n * Generated by " + RegistrationIndexProcessor.class.getName() + ". Do not edit.\n */\n");
+                writer.write("final class " + INDEX_CLASS + " implements RegistrationIndex.Source {\n");
+                writer.write("    public void populate(RegistrationIndex index) {\n");
+                writer.write(entries.toString());
+                writer.write("    }\n");
+                writer.write("}\n");
+            } finally {
+                writer.close();
+            }
+        } catch (IOException exception) {
+            processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR,
+                    "Unable to write the registration index: " + exception.getMessage());
+        }
+        
+        mGenerated = true;
+        return false;
+    }
+    
+    /**
+     * Adds |type| and all its member classes to |types|, when they are classes which could be
+     * instantiated and registered with the EventDispatcher or CommandManager.
+     * 
+     * @param type  The type to collect.
+     * @param types The list to which the collected types will be added.
+     */
+    private static void collectTypes(TypeElement type, List<TypeElement> types) {
+        if (type.getKind() == ElementKind.CLASS && !type.getModifiers().contains(Modifier.ABSTRACT))
+            types.add(type);
+        
+        for (TypeElement memberType : ElementFilter.typesIn(type.getEnclosedElements()))
+            collectTypes(memberType, types);
+    }
+    
+    /**
+     * Writes the index entries for |type| and its candidate methods to |entries|. Nothing will be
+     * written when one of the candidate methods cannot be referenced from the generated code, in
+     * which case the type will be scanned at runtime instead.
+     * 
+     * @param type      The type to write index entries for.
+     * @param entries   The buffer to which the entries should be written.
+     */
+    private void writeEntries(TypeElement type, StringBuilder entries) {
+        final String className = processingEnv.getElementUtils().getBinaryName(type).toString();
+        final StringBuilder typeEntries = new StringBuilder();
+        typeEntries.append("        index.addClass(\"" + className + "\");\n");
+        
+        for (ExecutableElement method : ElementFilter.methodsIn(processingEnv.getElementUtils().getAllMembers(type))) {
+            if (!isCandidate(method))
+                continue;
+            
+            final StringBuilder parameterTypes = new StringBuilder();
+            for (VariableElement parameter : method.getParameters()) {
+                final String parameterType = toClassLiteral(parameter.asType());
+                if (parameterType == null)
+                    return;
+                
+                parameterTypes.append(", ");
+                parameterTypes.append(parameterType);
+            }
+            
+            typeEntries.append("        index.addMethod(\"" + className + "\", \"" + method.getSimpleName() + "\"" +
+                    parameterTypes + ");\n");
+        }
+        
+        entries.append(typeEntries);
+    }
+    
+    /**
+     * Returns whether |method| may have to be registered with the EventDispatcher or CommandManager.
+     * Event names are not known here, so all public methods named like one are included, leaving
+     * it to the EventDispatcher to ignore the ones it doesn't know about.
+     * 
+     * @param method The method to consider.
+     * @return       Whether the method should be included in the index.
+     */
+    private static boolean isCandidate(ExecutableElement method) {
+        if (!method.getModifiers().contains(Modifier.PUBLIC) || method.getModifiers().contains(Modifier.STATIC))
+            return false;
+        
+        for (AnnotationMirror annotation : method.getAnnotationMirrors()) {
+            final String annotationName = ((TypeElement) annotation.getAnnotationType().asElement()).getQualifiedName().toString();
+            if (annotationName.equals(COMMAND_HANDLER) || annotationName.equals(COMMAND_COMPLETION_HANDLER))
+                return true;
+        }
+        
+        final String name = method.getSimpleName().toString();
+        return name.length() > 2 && name.startsWith("on") && Character.isUpperCase(name.charAt(2));
+    }
+    
+    /**
+     * Returns the class literal for the erasure of |type|, or NULL when the type cannot be referred
+     * to from the generated code, e.g. because it's not public.
+     * 
+     * @param type The type to get the class literal for.
+     * @return     The class literal, e.g. "java.lang.String[].class", or NULL.
+     */
+    private String toClassLiteral(TypeMirror type) {
+        final TypeMirror erasure = processingEnv.getTypeUtils().erasure(type);
+        if (erasure.getKind().isPrimitive())
+            return erasure.toString() + ".class";
+        
+        if (erasure.getKind() == TypeKind.ARRAY) {
+            final String componentType = toClassLiteral(((ArrayType) erasure).getComponentType());
+            if (componentType == null)
+                return null;
+            
+            return componentType.substring(0, componentType.length() - ".class".length()) + "[].class";
+        }
+        
+        if (erasure.getKind() != TypeKind.DECLARED)
+            return null;
+        
+        Element element = ((DeclaredType) erasure).asElement();
+        for (Element current = element; current instanceof TypeElement; current = current.getEnclosingElement()) {
+            if (!current.getModifiers().contains(Modifier.PUBLIC))
+                return null;
+        }
+        
+        return ((TypeElement) element).getQualifiedName().toString() + ".class";
+    }
+}
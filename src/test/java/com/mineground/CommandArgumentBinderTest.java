@@ -0,0 +1,217 @@
+/**
+ * Copyright (c) 2011 - 2014 Mineground, Las Venturas Playground
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.mineground;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.bukkit.Server;
+import org.bukkit.World;
+import org.bukkit.command.Command;
+import org.bukkit.command.CommandSender;
+import org.bukkit.entity.Player;
+
+import com.mineground.base.ServerSnapshot;
+
+import junit.framework.TestCase;
+
+// Tests for the CommandArgumentBinder class, which binds command arguments to typed parameters.
+public class CommandArgumentBinderTest extends TestCase {
+    private enum Speed { SLOW, FAST }
+    
+    // Command handlers of which the parameters will be bound in these tests.
+    public static class Handlers {
+        public void onKickCommand(CommandSender sender, Player player, String[] reason) {}
+        public void onSetCommand(CommandSender sender, World world, int amount, double factor, Speed speed) {}
+        public void onPlainCommand(CommandSender sender, String[] arguments) {}
+        public void onAsyncCommand(CommandSender sender, ServerSnapshot server, Player player) {}
+        public void onInvalidCommand(String name) {}
+    }
+    
+    private final List<String> mMessages = new ArrayList<String>();
+    
+    private Player mJoe;
+    private Player mJoey;
+    private World mWorld;
+    
+    private CommandSender mSender;
+    private CommandArgumentBinder.ResolverFactory mFactory;
+    
+    @Override
+    protected void setUp() throws Exception {
+        mJoe = OnlinePlayerIndexTest.createPlayer("Joe");
+        mJoey = OnlinePlayerIndexTest.createPlayer("Joey");
+        
+        OnlinePlayerIndex playerIndex = new OnlinePlayerIndex();
+        playerIndex.addPlayer(mJoe);
+        playerIndex.addPlayer(mJoey);
+        
+        mWorld = (World) createProxy(World.class, null);
+        mSender = (CommandSender) createProxy(CommandSender.class, new InvocationHandler() {
+            public Object invoke(Object proxy, Method method, Object[] arguments) {
+                if (method.getName().equals("sendMessage") && arguments[0] instanceof String) {
+                    mMessages.add((String) arguments[0]);
+                    return null;
+                }
+                
+                throw new UnsupportedOperationException(method.getName());
+            }
+        });
+        
+        Server server = (Server) createProxy(Server.class, new InvocationHandler() {
+            public Object invoke(Object proxy, Method method, Object[] arguments) {
+                if (method.getName().equals("getWorld") && arguments[0] instanceof String)
+                    return ((String) arguments[0]).equalsIgnoreCase("classic") ? mWorld : null;
+                
+                throw new UnsupportedOperationException(method.getName());
+            }
+        });
+        
+        mFactory = new CommandArgumentBinder.ResolverFactory(playerIndex, server);
+    }
+    
+    // Creates a proxy implementing |type|, handled by |handler|, or throwing when it's NULL.
+    private static Object createProxy(Class<?> type, InvocationHandler handler) {
+        if (handler == null) {
+            handler = new InvocationHandler() {
+                public Object invoke(Object proxy, Method method, Object[] arguments) {
+                    throw new UnsupportedOperationException(method.getName());
+                }
+            };
+        }
+        
+        return Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] { type }, handler);
+    }
+    
+    // Creates a command named |name| with |usage|, as it would be defined in plugin.yml.
+    private static Command createCommand(String name, String usage) {
+        return new Command(name, "", usage, new ArrayList<String>()) {
+            public boolean execute(CommandSender sender, String label, String[] arguments) {
+                return false;
+            }
+        };
+    }
+    
+    // Creates the binder for the handler named |name| in the Handlers class.
+    private CommandArgumentBinder createBinder(String name, boolean async) {
+        for (Method method : Handlers.class.getMethods()) {
+            if (method.getName().equals(name))
+                return CommandArgumentBinder.create(method, mFactory, async);
+        }
+        
+        fail("There is no handler named " + name + ".");
+        return null;
+    }
+    
+    // Tests that players are resolved by exact name or by their shortest prefix, and that the
+    // remaining arguments are passed as a String[], which may be empty.
+    public void testPlayerAndRemainingArguments() {
+        CommandArgumentBinder binder = createBinder("onKickCommand", false);
+        Command command = createCommand("kick", "/kick [player] [reason]");
+        assertEquals(3, binder.getParameterCount());
+        
+        Object[] values = binder.bind(mSender, command, new String[] { "joey", "being", "rude" }, null);
+        assertNotNull(values);
+        assertSame(mSender, values[0]);
+        assertSame(mJoey, values[1]);
+        assertEquals(Arrays.asList("being", "rude"), Arrays.asList((String[]) values[2]));
+        
+        values = binder.bind(mSender, command, new String[] { "jo" }, null);
+        assertNotNull(values);
+        assertSame(mJoe, values[1]);
+        assertEquals(0, ((String[]) values[2]).length);
+        assertTrue(mMessages.isEmpty());
+    }
+    
+    // Tests that missing and unresolvable arguments are reported to the sender, in which case the
+    // handler must not be invoked.
+    public void testMissingAndInvalidArguments() {
+        CommandArgumentBinder binder = createBinder("onKickCommand", false);
+        Command command = createCommand("kick", "/kick [player] [reason]");
+        
+        assertNull(binder.bind(mSender, command, new String[0], null));
+        assertEquals(Arrays.asList("§2Usage§r: /kick [player] [reason]"), mMessages);
+        
+        mMessages.clear();
+        assertNull(binder.bind(mSender, command, new String[] { "bob", "spam" }, null));
+        assertEquals(Arrays.asList("§cNo one named §4bob§c is on Mineground now."), mMessages);
+        
+        binder = createBinder("onSetCommand", false);
+        command = createCommand("set", "/set [world] [amount] [factor] [speed]");
+        
+        mMessages.clear();
+        assertNull(binder.bind(mSender, command, new String[] { "classic", "5", "0.5" }, null));
+        assertEquals(Arrays.asList("§2Usage§r: /set [world] [amount] [factor] [speed]"), mMessages);
+        
+        mMessages.clear();
+        assertNull(binder.bind(mSender, command, new String[] { "classic", "five", "0.5", "fast" }, null));
+        assertEquals(Arrays.asList("§c§4five§c is not a valid number."), mMessages);
+        
+        mMessages.clear();
+        assertNull(binder.bind(mSender, command, new String[] { "classic", "5", "0.5", "quick" }, null));
+        assertEquals(Arrays.asList("§c§4quick§c is not valid, choose one of: slow, fast."), mMessages);
+        
+        mMessages.clear();
+        assertNull(binder.bind(mSender, command, new String[] { "nether", "5", "0.5", "fast" }, null));
+        assertEquals(Arrays.asList("§cThe world §4nether§c does not exist."), mMessages);
+    }
+    
+    // Tests that worlds, numbers and enumerations are resolved, and that superfluous arguments are
+    // ignored when the handler doesn't accept the remaining arguments.
+    public void testTypedArguments() {
+        CommandArgumentBinder binder = createBinder("onSetCommand", false);
+        Command command = createCommand("set", "/set [world] [amount] [factor] [speed]");
+        
+        Object[] values = binder.bind(mSender, command, new String[] { "Classic", "-5", "0.5", "FaSt", "extra" }, null);
+        assertNotNull(values);
+        assertEquals(5, values.length);
+        assertSame(mWorld, values[1]);
+        assertEquals(Integer.valueOf(-5), values[2]);
+        assertEquals(Double.valueOf(0.5), values[3]);
+        assertSame(Speed.FAST, values[4]);
+        assertTrue(mMessages.isEmpty());
+    }
+    
+    // Tests that handlers with the traditional signature receive all arguments as they were.
+    public void testPlainArguments() {
+        CommandArgumentBinder binder = createBinder("onPlainCommand", false);
+        String[] arguments = new String[] { "list", "next" };
+        
+        Object[] values = binder.bind(mSender, createCommand("warp", "/warp"), arguments, null);
+        assertNotNull(values);
+        assertSame(arguments, values[1]);
+        
+        values = binder.bind(mSender, createCommand("warp", "/warp"), new String[0], null);
+        assertNotNull(values);
+        assertEquals(0, ((String[]) values[1]).length);
+    }
+    
+    // Tests that binders cannot be created for handlers which can't receive the sender, nor for
+    // asynchronous handlers which would receive objects only usable on the main thread.
+    public void testCreate() {
+        assertNull(createBinder("onInvalidCommand", false));
+        assertNull(createBinder("onAsyncCommand", true));
+        
+        CommandArgumentBinder binder = createBinder("onAsyncCommand", false);
+        assertNotNull(binder);
+        assertTrue(binder.hasServerSnapshot());
+        assertEquals(3, binder.getParameterCount());
+    }
+}
@@ -0,0 +1,138 @@
+/**
+ * Copyright (c) 2011 - 2014 Mineground, Las Venturas Playground
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.mineground;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+
+import org.bukkit.command.CommandSender;
+import org.bukkit.configuration.file.YamlConfiguration;
+import org.bukkit.entity.Player;
+
+import com.mineground.CommandRateLimiter.Decision;
+
+import junit.framework.TestCase;
+
+// Tests for the CommandRateLimiter class, which limits the rate at which commands may be executed.
+public class CommandRateLimiterTest extends TestCase {
+    private static final long SECOND = 1000000000L;
+
+    // Arbitrary starting time, as System.nanoTime() values may be negative.
+    private static final long START = -5 * SECOND;
+
+    private CommandRateLimiter mRateLimiter;
+
+    @Override
+    protected void setUp() throws Exception {
+        YamlConfiguration configuration = new YamlConfiguration();
+        configuration.set("command_rate_limits.ingame.burst", 2);
+        configuration.set("command_rate_limits.ingame.per_second", 1.0);
+        configuration.set("command_rate_limits.ingame.commands.home.burst", 1);
+        configuration.set("command_rate_limits.ingame.commands.home.per_second", 0.5);
+
+        mRateLimiter = new CommandRateLimiter(configuration);
+    }
+
+    // Creates a sender named |name|, which is a player when |player| is set, or the console.
+    private static CommandSender createSender(final String name, boolean player) {
+        final Class<?> senderClass = player ? Player.class : CommandSender.class;
+        return (CommandSender) Proxy.newProxyInstance(senderClass.getClassLoader(), new Class<?>[] { senderClass }, new InvocationHandler() {
+            public Object invoke(Object proxy, Method method, Object[] arguments) {
+                if (method.getName().equals("getName"))
+                    return name;
+
+                throw new UnsupportedOperationException(method.getName());
+            }
+        });
+    }
+
+    // Tests that a full bucket allows a burst of commands, after which tokens are added at the
+    // configured rate, and that the bucket never holds more than the burst.
+    public void testBurstAndInterval() {
+        CommandSender player = createSender("Russell", true);
+
+        assertEquals(Decision.ACCEPT, mRateLimiter.acquire(player, "tp", START));
+        assertEquals(Decision.ACCEPT, mRateLimiter.acquire(player, "tp", START));
+        assertEquals(Decision.REJECT, mRateLimiter.acquire(player, "tp", START));
+
+        assertEquals(Decision.REJECT_QUIETLY, mRateLimiter.acquire(player, "tp", START + SECOND / 2));
+        assertEquals(Decision.ACCEPT, mRateLimiter.acquire(player, "tp", START + SECOND));
+        assertEquals(Decision.REJECT, mRateLimiter.acquire(player, "tp", START + SECOND));
+
+        // After a long pause the bucket is full again, but holds no more than the burst.
+        final long later = START + 60 * SECOND;
+        assertEquals(Decision.ACCEPT, mRateLimiter.acquire(player, "tp", later));
+        assertEquals(Decision.ACCEPT, mRateLimiter.acquire(player, "tp", later));
+        assertEquals(Decision.REJECT, mRateLimiter.acquire(player, "tp", later));
+    }
+
+    // Tests that only the first of a series of rejections is answered, and that the next series
+    // is answered again once a command has been accepted in between.
+    public void testRejectionSequence() {
+        CommandSender player = createSender("Russell", true);
+
+        assertEquals(Decision.ACCEPT, mRateLimiter.acquire(player, "tp", START));
+        assertEquals(Decision.ACCEPT, mRateLimiter.acquire(player, "tp", START));
+        assertEquals(Decision.REJECT, mRateLimiter.acquire(player, "tp", START));
+        assertEquals(Decision.REJECT_QUIETLY, mRateLimiter.acquire(player, "tp", START));
+        assertEquals(Decision.REJECT_QUIETLY, mRateLimiter.acquire(player, "tp", START));
+
+        assertEquals(Decision.ACCEPT, mRateLimiter.acquire(player, "tp", START + SECOND));
+        assertEquals(Decision.REJECT, mRateLimiter.acquire(player, "tp", START + SECOND));
+        assertEquals(Decision.REJECT_QUIETLY, mRateLimiter.acquire(player, "tp", START + SECOND));
+    }
+
+    // Tests that per-command limits override the source's limit, that buckets are kept for each
+    // combination of sender and command, and that sources without a limit are unlimited.
+    public void testOverridesAndBuckets() {
+        CommandSender russell = createSender("Russell", true);
+        CommandSender joe = createSender("Joe", true);
+        CommandSender console = createSender("CONSOLE", false);
+
+        assertEquals(Decision.ACCEPT, mRateLimiter.acquire(russell, "home", START));
+        assertEquals(Decision.REJECT, mRateLimiter.acquire(russell, "home", START));
+        assertEquals(Decision.REJECT_QUIETLY, mRateLimiter.acquire(russell, "home", START + SECOND));
+        assertEquals(Decision.ACCEPT, mRateLimiter.acquire(russell, "home", START + 2 * SECOND));
+
+        assertEquals(Decision.ACCEPT, mRateLimiter.acquire(russell, "tp", START));
+        assertEquals(Decision.ACCEPT, mRateLimiter.acquire(joe, "home", START));
+
+        for (int i = 0; i < 100; ++i)
+            assertEquals(Decision.ACCEPT, mRateLimiter.acquire(console, "home", START));
+    }
+
+    // Tests that buckets which have been refilled are pruned once there are many of them, whereas
+    // the bucket which triggered the prune, and buckets still in use, are kept.
+    public void testPruning() {
+        // Fill the limiter up to the prune threshold of 1024 buckets.
+        for (int i = 0; i < 1023; ++i)
+            mRateLimiter.acquire(createSender("Player" + i, true), "tp", START);
+
+        CommandSender busy = createSender("Busy", true);
+        mRateLimiter.acquire(busy, "home", START);
+        assertEquals(1024, mRateLimiter.getBucketCount());
+
+        // The /home bucket of |busy| needs two seconds to refill, the others only one.
+        CommandSender newcomer = createSender("Newcomer", true);
+        assertEquals(Decision.ACCEPT, mRateLimiter.acquire(newcomer, "tp", START + SECOND));
+        assertEquals(2, mRateLimiter.getBucketCount());
+
+        assertEquals(Decision.REJECT, mRateLimiter.acquire(busy, "home", START + SECOND));
+        assertEquals(Decision.ACCEPT, mRateLimiter.acquire(newcomer, "tp", START + SECOND));
+        assertEquals(Decision.REJECT, mRateLimiter.acquire(newcomer, "tp", START + SECOND));
+    }
+}
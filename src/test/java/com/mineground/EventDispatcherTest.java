@@ -16,9 +16,19 @@
 package com.mineground;
 
 import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
+import org.bukkit.entity.Player;
+
+import com.mineground.base.AsyncEventHandler;
+import com.mineground.base.DisconnectReason;
 import com.mineground.base.Feature;
 import com.mineground.base.FeatureTestBase;
+import com.mineground.base.PlayerSnapshot;
 
 import junit.framework.TestCase;
 
@@ -88,4 +98,96 @@ public class EventDispatcherTest extends TestCase {
         
         mEventDispatcher.onMinegroundUnloaded();
     }
+    
+    // Tests that the arguments of an event are passed on to the observers, and that an observer
+    // throwing an exception does not stop the event from being delivered to the other observers.
+    public void testEventArgumentsAndExceptions() {
+        Feature throwingFeature = new FeatureTestBase() {
+            @SuppressWarnings("unused")
+            public void onPlayerDisconnect(Player player, DisconnectReason reason) {
+                throw new RuntimeException("testEventArgumentsAndExceptions");
+            }
+        };
+        
+        Feature myFeature = new FeatureTestBase() {
+            @SuppressWarnings("unused")
+            public void onPlayerDisconnect(Player player, DisconnectReason reason) {
+                assertNull(player);
+                assertEquals(DisconnectReason.KICKED, reason);
+                ++mInvocationCount;
+            }
+        };
+        
+        mEventDispatcher.registerListeners(throwingFeature);
+        mEventDispatcher.registerListeners(myFeature);
+        mEventDispatcher.onPlayerDisconnect(null, DisconnectReason.KICKED);
+        
+        assertEquals(1, mInvocationCount);
+    }
+    
+    // Tests that unregistering an instance stops events from being delivered to it, and that
+    // observers registered during a dispatch will only receive the next event.
+    public void testUnregisterAndRegisterDuringDispatch() {
+        final Feature lateFeature = new FeatureTestBase() {
+            @SuppressWarnings("unused")
+            public void onMinegroundUnloaded() {
+                ++mInvocationCount;
+            }
+        };
+        
+        Feature myFeature = new FeatureTestBase() {
+            @SuppressWarnings("unused")
+            public void onMinegroundUnloaded() {
+                mEventDispatcher.registerListeners(lateFeature);
+                mEventDispatcher.unregisterListeners(this);
+                ++mInvocationCount;
+            }
+        };
+        
+        mEventDispatcher.registerListeners(myFeature);
+        mEventDispatcher.onMinegroundUnloaded();
+        assertEquals(1, mInvocationCount);
+        
+        mEventDispatcher.onMinegroundUnloaded();
+        assertEquals(2, mInvocationCount);
+    }
+    
+    // Tests that asynchronous observers are invoked on another thread in the order the events were
+    // fired, and that observers which would receive a Player object are refused.
+    public void testAsyncEventHandlers() throws InterruptedException {
+        final List<Thread> threads = Collections.synchronizedList(new ArrayList<Thread>());
+        final CountDownLatch latch = new CountDownLatch(3);
+        final StringBuilder messages = new StringBuilder();
+        
+        Feature myFeature = new FeatureTestBase() {
+            @SuppressWarnings("unused")
+            @AsyncEventHandler
+            public void onPlayerChat(PlayerSnapshot player, String message) {
+                threads.add(Thread.currentThread());
+                messages.append(message);
+                latch.countDown();
+            }
+        };
+        
+        Feature invalidFeature = new FeatureTestBase() {
+            @SuppressWarnings("unused")
+            @AsyncEventHandler
+            public void onPlayerChat(Player player, String message) {
+                fail("Asynchronous observers must not receive Player objects.");
+            }
+        };
+        
+        mEventDispatcher.registerListeners(myFeature);
+        mEventDispatcher.registerListeners(invalidFeature);
+        
+        mEventDispatcher.onPlayerChat(null, "a");
+        mEventDispatcher.onPlayerChat(null, "b");
+        mEventDispatcher.onPlayerChat(null, "c");
+        
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+        assertEquals("abc", messages.toString());
+        assertFalse(threads.contains(Thread.currentThread()));
+        
+        mEventDispatcher.shutdown();
+    }
 }
@@ -0,0 +1,88 @@
+/**
+ * Copyright (c) 2011 - 2014 Mineground, Las Venturas Playground
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.mineground;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+
+import org.bukkit.entity.Player;
+
+import junit.framework.TestCase;
+
+// Tests for the OnlinePlayerIndex class, which resolves (partial) names of online players.
+public class OnlinePlayerIndexTest extends TestCase {
+    // Creates a player named |name|, which only supports getName().
+    static Player createPlayer(final String name) {
+        return (Player) Proxy.newProxyInstance(Player.class.getClassLoader(), new Class<?>[] { Player.class }, new InvocationHandler() {
+            public Object invoke(Object proxy, Method method, Object[] arguments) {
+                if (method.getName().equals("getName"))
+                    return name;
+                
+                if (method.getName().equals("toString"))
+                    return "Player(" + name + ")";
+                
+                throw new UnsupportedOperationException(method.getName());
+            }
+        });
+    }
+    
+    // Tests that exact matches are preferred over prefixes, that the shortest name starting with a
+    // prefix is found otherwise, and that matching is case insensitive.
+    public void testFindPlayer() {
+        Player joe = createPlayer("Joe");
+        Player joey = createPlayer("Joey");
+        Player johnny = createPlayer("Johnny");
+        
+        OnlinePlayerIndex index = new OnlinePlayerIndex();
+        index.addPlayer(johnny);
+        index.addPlayer(joey);
+        index.addPlayer(joe);
+        
+        assertSame(joe, index.findPlayer("Joe"));
+        assertSame(joe, index.findPlayer("jOE"));
+        assertSame(joey, index.findPlayer("joey"));
+        
+        assertSame(joe, index.findPlayer("j"));
+        assertSame(johnny, index.findPlayer("joh"));
+        
+        assertNull(index.findPlayer("joeys"));
+        assertNull(index.findPlayer("k"));
+        assertNull(index.findPlayer("a"));
+    }
+    
+    // Tests that players can be removed from the index, and that removing a stale Player object
+    // for a name doesn't remove the player who is currently online with that name.
+    public void testRemovePlayer() {
+        Player joe = createPlayer("Joe");
+        Player reconnectedJoe = createPlayer("Joe");
+        Player joey = createPlayer("Joey");
+        
+        OnlinePlayerIndex index = new OnlinePlayerIndex();
+        index.addPlayer(joe);
+        index.addPlayer(joey);
+        
+        index.addPlayer(reconnectedJoe);
+        index.removePlayer(joe);
+        assertSame(reconnectedJoe, index.findPlayer("joe"));
+        
+        index.removePlayer(reconnectedJoe);
+        assertSame(joey, index.findPlayer("joe"));
+        
+        index.removePlayer(joey);
+        assertNull(index.findPlayer("j"));
+    }
+}
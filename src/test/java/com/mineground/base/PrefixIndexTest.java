@@ -0,0 +1,41 @@
+/**
+ * Copyright (c) 2011 - 2014 Mineground, Las Venturas Playground
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.mineground.base;
+
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+// Tests for the PrefixIndex class, which is used for tab completion of commands.
+public class PrefixIndexTest extends TestCase {
+    // Tests that searching by prefix returns the matching candidates in sorted order, without
+    // duplicates, and that prefixes without matches return an empty list.
+    public void testComplete() {
+        PrefixIndex index = new PrefixIndex("survival", "set", "classic", "creative", "create", "set");
+        
+        assertEquals(5, index.size());
+        assertEquals(Arrays.asList("classic", "create", "creative", "set", "survival"), index.complete(""));
+        assertEquals(Arrays.asList("create", "creative"), index.complete("cre"));
+        assertEquals(Arrays.asList("creative"), index.complete("creative"));
+        assertEquals(Arrays.asList("set", "survival"), index.complete("s"));
+        assertTrue(index.complete("x").isEmpty());
+        assertTrue(index.complete("creativex").isEmpty());
+        
+        assertTrue(index.contains("set"));
+        assertFalse(index.contains("se"));
+        assertTrue(PrefixIndex.EMPTY.complete("").isEmpty());
+    }
+}
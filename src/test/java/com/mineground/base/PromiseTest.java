@@ -17,6 +17,7 @@ package com.mineground.base;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.Executor;
 
 import junit.framework.TestCase;
 
@@ -276,4 +277,261 @@ public class PromiseTest extends TestCase {
         promise.reject(new PromiseError("testPromiseAllReject"));
         assertEquals(1, mPromiseResultCount);
     }
+    
+    // Tests that cancelling a promise rejects it with a PromiseCancelledError, invokes the attached
+    // cancellation handlers and causes later attempts to settle it to be ignored.
+    public void testPromiseCancel() {
+        Promise<String> promise = new Promise<String>();
+        promise.then(new PromiseResultHandler<String>() {
+            public void onFulfilled(String result) {
+                fail("PromiseResultHandler::onFulfilled must not be invoked.");
+            }
+            public void onRejected(PromiseError error) {
+                assertTrue(error instanceof PromiseCancelledError);
+                ++mPromiseResultCount;
+            }
+        });
+        promise.onCancelled(new PromiseCancellationHandler() {
+            public void onCancelled() {
+                ++mPromiseResultCount;
+            }
+        });
+        
+        assertTrue(promise.cancel());
+        assertTrue(promise.isCancelled());
+        assertEquals(2, mPromiseResultCount);
+        
+        // Neither cancelling nor settling the promise again should have any effect.
+        assertFalse(promise.cancel());
+        promise.resolve("testPromiseCancel");
+        assertEquals(2, mPromiseResultCount);
+        
+        // Settled promises cannot be cancelled anymore.
+        assertFalse(Promise.cast("testPromiseCancel").cancel());
+    }
+    
+    // Tests that |Promise.map()| and |Promise.flatMap()| apply their functions to the resolved
+    // value, and that rejections are passed through the chain without invoking the functions.
+    public void testPromiseMapAndFlatMap() {
+        Promise<String> promise = new Promise<String>();
+        promise.map(new PromiseFunction<String, Integer>() {
+            public Integer apply(String value) {
+                return value.length();
+            }
+        }).flatMap(new PromiseFunction<Integer, Promise<String>>() {
+            public Promise<String> apply(Integer value) {
+                return Promise.cast("length: " + value);
+            }
+        }).then(new PromiseResultHandler<String>() {
+            public void onFulfilled(String result) {
+                assertEquals("length: 4", result);
+                ++mPromiseResultCount;
+            }
+            public void onRejected(PromiseError error) {
+                fail("PromiseResultHandler::onRejected must not be invoked.");
+            }
+        });
+        
+        promise.resolve("test");
+        assertEquals(1, mPromiseResultCount);
+        
+        Promise.<String>rejected("testPromiseMapAndFlatMap").map(new PromiseFunction<String, Integer>() {
+            public Integer apply(String value) {
+                fail("PromiseFunction::apply must not be invoked.");
+                return 0;
+            }
+        }).then(new PromiseResultHandler<Integer>() {
+            public void onFulfilled(Integer result) {
+                fail("PromiseResultHandler::onFulfilled must not be invoked.");
+            }
+            public void onRejected(PromiseError error) {
+                assertEquals("testPromiseMapAndFlatMap", error.reason());
+                ++mPromiseResultCount;
+            }
+        });
+        
+        assertEquals(2, mPromiseResultCount);
+    }
+    
+    // Tests that |Promise.recover()| is able to turn a rejection in to a value, and that cancelling
+    // a derived promise will cancel the promise it has been derived from as well.
+    public void testPromiseRecoverAndCancel() {
+        Promise<String> promise = new Promise<String>();
+        promise.recover(new PromiseFunction<PromiseError, Promise<String>>() {
+            public Promise<String> apply(PromiseError error) {
+                return Promise.cast("recovered: " + error.reason());
+            }
+        }).then(new PromiseResultHandler<String>() {
+            public void onFulfilled(String result) {
+                assertEquals("recovered: testPromiseRecover", result);
+                ++mPromiseResultCount;
+            }
+            public void onRejected(PromiseError error) {
+                fail("PromiseResultHandler::onRejected must not be invoked.");
+            }
+        });
+        
+        promise.reject("testPromiseRecover");
+        assertEquals(1, mPromiseResultCount);
+        
+        Promise<String> source = new Promise<String>();
+        Promise<Integer> derived = source.map(new PromiseFunction<String, Integer>() {
+            public Integer apply(String value) {
+                return value.length();
+            }
+        });
+        
+        assertTrue(derived.cancel());
+        assertTrue(source.isCancelled());
+    }
+    
+    // Tests that a ConcurrentPromise settled on another thread delivers its handlers through the
+    // executor it was created with, in the order in which they were attached.
+    public void testConcurrentPromiseExecutor() throws InterruptedException {
+        final List<Runnable> tasks = new ArrayList<Runnable>();
+        final ConcurrentPromise<String> promise = new ConcurrentPromise<String>(new Executor() {
+            public void execute(Runnable command) {
+                tasks.add(command);
+            }
+        });
+        
+        for (int i = 0; i < 2; ++i) {
+            final int expectedCount = i;
+            promise.then(new PromiseResultHandler<String>() {
+                public void onFulfilled(String result) {
+                    assertEquals("testConcurrentPromiseExecutor", result);
+                    assertEquals(expectedCount, mPromiseResultCount++);
+                }
+                public void onRejected(PromiseError error) {
+                    fail("PromiseResultHandler::onRejected must not be invoked.");
+                }
+            });
+        }
+        
+        Thread thread = new Thread() {
+            public void run() {
+                promise.resolve("testConcurrentPromiseExecutor");
+            }
+        };
+        
+        thread.start();
+        thread.join();
+        
+        assertEquals(0, mPromiseResultCount);
+        assertFalse(promise.cancel());
+        
+        for (Runnable task : tasks)
+            task.run();
+        
+        assertEquals(2, mPromiseResultCount);
+    }
+    
+    // Tests that |Promise.all()| resolves with the values in the order of the input promises, and
+    // that rejections after the first one will be ignored.
+    public void testPromiseAllOrderAndMultipleRejections() {
+        List<Promise<String>> promises = new ArrayList<Promise<String>>();
+        for (int i = 0; i < 3; ++i)
+            promises.add(new Promise<String>());
+        
+        Promise.all(promises).then(new PromiseResultHandler<List<String>>() {
+            public void onFulfilled(List<String> result) {
+                assertEquals("[first, second, third]", result.toString());
+                ++mPromiseResultCount;
+            }
+            public void onRejected(PromiseError error) {
+                fail("PromiseResultHandler::onRejected must not be invoked.");
+            }
+        });
+        
+        promises.get(2).resolve("third");
+        promises.get(0).resolve("first");
+        promises.get(1).resolve("second");
+        assertEquals(1, mPromiseResultCount);
+        
+        promises.clear();
+        for (int i = 0; i < 3; ++i)
+            promises.add(new Promise<String>());
+        
+        Promise.all(promises).then(new PromiseResultHandler<List<String>>() {
+            public void onFulfilled(List<String> result) {
+                fail("PromiseResultHandler::onFulfilled must not be invoked.");
+            }
+            public void onRejected(PromiseError error) {
+                assertEquals("first rejection", error.reason());
+                ++mPromiseResultCount;
+            }
+        });
+        
+        promises.get(1).reject("first rejection");
+        promises.get(0).reject("second rejection");
+        promises.get(2).resolve("value");
+        assertEquals(2, mPromiseResultCount);
+    }
+    
+    // Tests that |Promise.withTimeout()| rejects the derived promise and cancels the source once the
+    // timer wheel passes the timeout, including timeouts which have to cascade through the wheel.
+    public void testPromiseWithTimeout() {
+        TimerWheel timerWheel = new TimerWheel();
+        Promise.setTimerWheel(timerWheel);
+        
+        try {
+            Promise<String> resolvedPromise = new Promise<String>();
+            resolvedPromise.withTimeout(10).then(new PromiseResultHandler<String>() {
+                public void onFulfilled(String result) {
+                    ++mPromiseResultCount;
+                }
+                public void onRejected(PromiseError error) {
+                    fail("PromiseResultHandler::onRejected must not be invoked.");
+                }
+            });
+            
+            resolvedPromise.resolve("testPromiseWithTimeout");
+            assertEquals(0, timerWheel.size());
+            
+            final Promise<String> source = new Promise<String>();
+            source.withTimeout(5000).then(new PromiseResultHandler<String>() {
+                public void onFulfilled(String result) {
+                    fail("PromiseResultHandler::onFulfilled must not be invoked.");
+                }
+                public void onRejected(PromiseError error) {
+                    assertTrue(error instanceof PromiseTimeoutError);
+                    assertEquals(5000, Promise.getCurrentTick());
+                    ++mPromiseResultCount;
+                }
+            });
+            
+            for (int tick = 0; tick < 4999; ++tick)
+                timerWheel.advance();
+            
+            assertEquals(1, mPromiseResultCount);
+            assertFalse(source.isCancelled());
+            
+            timerWheel.advance();
+            
+            assertEquals(2, mPromiseResultCount);
+            assertTrue(source.isCancelled());
+            assertEquals(0, timerWheel.size());
+        } finally {
+            Promise.setTimerWheel(null);
+        }
+    }
+    
+    // Tests that cancelling a CancellationScope cancels the tracked promises which are still pending,
+    // and that promises tracked after that will be cancelled immediately.
+    public void testCancellationScope() {
+        CancellationScope scope = new CancellationScope();
+        
+        Promise<String> settledPromise = scope.track(new Promise<String>());
+        Promise<String> pendingPromise = scope.track(new Promise<String>());
+        
+        settledPromise.resolve("testCancellationScope");
+        assertEquals(1, scope.size());
+        
+        scope.cancel();
+        assertTrue(pendingPromise.isCancelled());
+        assertFalse(settledPromise.isCancelled());
+        assertEquals(0, scope.size());
+        
+        assertTrue(scope.track(new Promise<String>()).isCancelled());
+    }
 }